@@ -121,7 +121,7 @@ class OTGSeriesBuilder(val seriesType: OTGSeriesType) extends SeriesBuilder[OTGS
     rem(mc, key.id)
 
   def build(sampleClass: Long, probe: Int)(implicit mc: MatrixContext): OTGSeries = {
-    val compound = rem(mc, Compound)(((sampleClass) & 65535).toInt)
+    val compound = rem(mc, Compound)(compoundCode(sampleClass))
     val doseOrTime = rem(mc, seriesType.lastConstraint)(((sampleClass >> 16) & 255).toInt)
     val organism = rem(mc, Organism)(((sampleClass >> 24) & 255).toInt)
     val organ = rem(mc, Organ)(((sampleClass >> 32) & 255).toInt)
@@ -131,6 +131,11 @@ class OTGSeriesBuilder(val seriesType: OTGSeriesType) extends SeriesBuilder[OTGS
     OTGSeries(seriesType, repeat, organ, organism, probe, compound, doseOrTime, test, Vector())
   }
 
+  /**
+   * The compound enum code in a packed sample class.
+   */
+  def compoundCode(sampleClass: Long): Int = (sampleClass & 65535).toInt
+
   def pack(s: OTGSeries)(implicit mc: MatrixContext): Long = {
     var r = 0l
     r |= packWithLimit(TestType, s.testType, 3) << 42
@@ -6,42 +6,172 @@ import t.platform.{EnsemblPlatformHelper, Species}
 
 import scala.collection.{Map => CMap}
 
+/**
+ * A probe ID conversion compiled into int-indexed form.
+ * Source probes are numbered through sourceIndex, and each source probe maps to an array
+ * of indices into targets. The "speculative" conversion map is a backup mapping with lower
+ * confidence that is used only for source probes that have no primary mapping.
+ */
+class CompiledIDConversion(conversion: Map[ProbeId, Iterable[ProbeId]],
+                           speculativeConversion: Map[ProbeId, Iterable[ProbeId]] = Map()) {
+
+  IDConverter.checkDuplicates(conversion)
+
+  val sources: Array[ProbeId] =
+    (conversion.keys ++ speculativeConversion.keys.filter(!conversion.contains(_))).toArray
+
+  /**
+   * For each source, whether it is converted through the speculative mapping.
+   */
+  val speculative: Array[Boolean] = sources.map(!conversion.contains(_))
+
+  val targets: Array[ProbeId] = sources.iterator.flatMap(destinations).toArray.distinct
+
+  private def destinations(p: ProbeId): Iterable[ProbeId] =
+    conversion.getOrElse(p, speculativeConversion.getOrElse(p, Seq()))
+
+  private val sourceLookup = {
+    val r = new java.util.HashMap[ProbeId, Integer](sources.length * 2)
+    for ((p, i) <- sources.zipWithIndex) r.put(p, i)
+    r
+  }
+
+  /**
+   * For each source, the indices of its targets.
+   */
+  val mapping: Array[Array[Int]] = {
+    val targetLookup = Map() ++ targets.zipWithIndex
+    sources.map(p => destinations(p).toArray.distinct.map(targetLookup))
+  }
+
+  /**
+   * The index of a source probe, or -1 if the probe cannot be converted.
+   */
+  def sourceIndex(p: ProbeId): Int = {
+    val i = sourceLookup.get(p)
+    if (i == null) -1 else i
+  }
+}
+
 /**
  * ColumnExpressionData that converts probe IDs on the fly.
- * The supplied conversion map should map from the foreign ID space into the Toxygates space.
+ * The supplied conversion should map from the foreign ID space into the Toxygates space.
  *
- * In the case of a many-to-one mapping, one of the results will be selected in an undefined way.
- *
- * The "speculative" conversion map is a backup mapping with lower confidence that will be used
- * only if no primary mapping is available.
+ * Whole sample columns are converted through primitive arrays, in parallel across the samples
+ * of each chunk. In the case of a many-to-one mapping, the values of the source probes are
+ * combined according to the aggregation rule.
  */
-class IDConverter(raw: ColumnExpressionData, conversion: Map[ProbeId, Iterable[ProbeId]],
-                  speculativeConversion: Map[ProbeId, Iterable[ProbeId]] = Map()) extends
-  ColumnExpressionData {
+class IDConverter(raw: ColumnExpressionData, compiled: CompiledIDConversion,
+                  aggregation: IDConverter.Aggregation) extends ColumnExpressionData {
+  import IDConverter._
 
-  IDConverter.checkDuplicates(conversion)
+  def this(raw: ColumnExpressionData, conversion: Map[ProbeId, Iterable[ProbeId]],
+           speculativeConversion: Map[ProbeId, Iterable[ProbeId]] = Map()) =
+    this(raw, new CompiledIDConversion(conversion, speculativeConversion), IDConverter.FirstValue)
+
+  /**
+   * For each raw probe (by position), the compiled source index, or -1.
+   */
+  private lazy val rawSources: Array[Int] = raw.probes.map(p => {
+    val i = compiled.sourceIndex(p)
+    if (i == -1) {
+      Console.err.println(s"Warning: could not convert the following probe ID: $p")
+    } else if (compiled.speculative(i)) {
+      Console.err.println(s"Warning: speculative conversion of $p into " +
+        compiled.mapping(i).map(compiled.targets(_)).mkString(" "))
+    }
+    i
+  })
 
-  lazy val probes = raw.probes.flatMap(p =>
-    conversion.getOrElse(p,
-      speculativeConversion.getOrElse(p, Seq())
-    )).distinct
-
-  def convert(p: ProbeId) = {
-    conversion.getOrElse(p, {
-      val speculative = speculativeConversion.getOrElse(p, Seq())
-      if (speculative.isEmpty) {
-        Console.err.println(s"Warning: could not convert the following probe ID: $p")
-        Seq()
+  /**
+   * The target probes that can be reached from the raw probes, and for each raw probe
+   * (by position) the positions of its targets in that array.
+   */
+  private lazy val (targetProbes, rawColumns): (Array[ProbeId], Array[Array[Int]]) = {
+    val column = new java.util.HashMap[Integer, Integer]()
+    val order = Array.newBuilder[ProbeId]
+    val columns = rawSources.map(i =>
+      if (i == -1) {
+        noColumns
       } else {
-        Console.err.println(s"Warning: speculative conversion of $p into ${speculative.mkString(" ")}")
-        speculative
+        compiled.mapping(i).map(t => {
+          val c = column.get(t)
+          if (c != null) {
+            c.intValue
+          } else {
+            val n = column.size
+            column.put(t, n)
+            order += compiled.targets(t)
+            n
+          }
+        })
+      })
+    (order.result, columns)
+  }
+
+  lazy val probes = targetProbes
+
+  override def columns(x: Sample): (Array[Double], Array[Char], Array[Double]) = {
+    val (vs, cs, ps) = raw.columns(x)
+    val n = probes.length
+    val rvs = Array.fill(n)(Double.NaN)
+    val rcs = new Array[Char](n)
+    val rps = Array.fill(n)(Double.NaN)
+    val counts = new Array[Int](n)
+
+    val m = Math.min(Math.min(vs.length, rawColumns.length), Math.min(cs.length, ps.length))
+    var i = 0
+    while (i < m) {
+      val v = vs(i)
+      if (!java.lang.Double.isNaN(v)) {
+        val ts = rawColumns(i)
+        var j = 0
+        while (j < ts.length) {
+          val t = ts(j)
+          if (counts(t) == 0) {
+            rvs(t) = v
+            rcs(t) = cs(i)
+            rps(t) = ps(i)
+          } else if (aggregation == MeanValue) {
+            rvs(t) += v
+            rcs(t) = bestCall(rcs(t), cs(i))
+            rps(t) = minPValue(rps(t), ps(i))
+          }
+          counts(t) += 1
+          j += 1
+        }
       }
-    })
+      i += 1
+    }
+
+    if (aggregation == MeanValue) {
+      i = 0
+      while (i < n) {
+        if (counts(i) > 1) {
+          rvs(i) /= counts(i)
+        }
+        i += 1
+      }
+    }
+    (rvs, rcs, rps)
   }
 
-  def data(s: Sample): CMap[ProbeId, FoldPExpr] = {
-    val r = raw.data(s)
-    r.flatMap(p => convert(p._1).map( (_ -> p._2) ))
+  private def present(x: Sample): Array[(ProbeId, FoldPExpr)] = {
+    val (vs, cs, ps) = columns(x)
+    (for {
+      i <- 0 until vs.length
+      if !java.lang.Double.isNaN(vs(i))
+    } yield (probes(i), (vs(i), cs(i), ps(i)))).toArray
+  }
+
+  def data(s: Sample): CMap[ProbeId, FoldPExpr] =
+    Map() ++ present(s)
+
+  override def samplesAndData(forSamples: Array[Sample]): Iterator[(Sample, Array[(ProbeId, FoldPExpr)])] = {
+    forSamples.grouped(sampleChunkSize).flatMap(ss => {
+      loadData(ss)
+      ss.par.map(s => (s, present(s))).seq.iterator
+    })
   }
 
   def samples = raw.samples
@@ -59,6 +189,51 @@ class IDConverter(raw: ColumnExpressionData, conversion: Map[ProbeId, Iterable[P
  * Utilities for converting Probe IDs.
  */
 object IDConverter {
+  /**
+   * How the values of several source probes that map to the same target probe are combined.
+   */
+  sealed trait Aggregation
+
+  /**
+   * Keep the value of the first source probe, in data order, that has a value.
+   */
+  case object FirstValue extends Aggregation
+
+  /**
+   * Average the values. The best call and the lowest p-value are kept.
+   */
+  case object MeanValue extends Aggregation
+
+  private val noColumns = Array[Int]()
+
+  private def callRank(c: Char) = c match {
+    case 'P' => 2
+    case 'M' => 1
+    case _ => 0
+  }
+
+  private def bestCall(a: Char, b: Char) = if (callRank(b) > callRank(a)) b else a
+
+  private def minPValue(a: Double, b: Double) =
+    if (java.lang.Double.isNaN(a)) b else if (java.lang.Double.isNaN(b)) a else Math.min(a, b)
+
+  /*
+   * Compiled conversions, keyed by platform (or conversion type), conversion file and its
+   * modification time, so that mapping files are parsed only once.
+   */
+  private val compiledCache =
+    new java.util.concurrent.ConcurrentHashMap[(String, String, Long), CompiledIDConversion]
+
+  /**
+   * Obtain a compiled conversion for a platform and a conversion file, compiling
+   * it if it has not been compiled before.
+   */
+  def compiled(platform: String, file: String)(compile: => CompiledIDConversion): CompiledIDConversion = {
+    val f = new java.io.File(file)
+    compiledCache.computeIfAbsent((platform, f.getAbsolutePath, f.lastModified),
+      _ => compile)
+  }
+
   def checkDuplicates(map: Map[ProbeId, Iterable[ProbeId]]) {
     val pairs = map.toSeq.flatMap(x => (x._2.map(y => (x._1, y))))
     val bySnd = pairs.groupBy(_._2)
@@ -75,19 +250,30 @@ object IDConverter {
              (raw: ColumnExpressionData): ColumnExpressionData =
     new IDConverter(raw, conversion, speculativeConversion)
 
+  def convert(compiled: CompiledIDConversion, aggregation: Aggregation)
+             (raw: ColumnExpressionData): ColumnExpressionData =
+    new IDConverter(raw, compiled, aggregation)
+
   /**
    * Create an IDConverter from an affymetrix annotation file and a specified
    * "foreign" (non-probe ID) column.
    */
-  def fromAffy(file: String, column: String) = {
+  def fromAffy(file: String, column: String,
+               aggregation: Aggregation = FirstValue): ColumnExpressionData => ColumnExpressionData = {
     import t.platform.affy._
-    val conv = new t.platform.affy.IDConverter(file, Converter.columnLookup(column))
-    convert(conv.foreignToAffy)(_)
+    val c = compiled(s"affy:$column", file) {
+      val conv = new t.platform.affy.IDConverter(file, Converter.columnLookup(column))
+      new CompiledIDConversion(conv.foreignToAffy)
+    }
+    convert(c, aggregation)(_)
   }
 
-
-  def fromEnsembl(file: String) = {
-    convert(EnsemblPlatformHelper.loadConversionTable(file))(_)
+  def fromEnsembl(file: String,
+                  aggregation: Aggregation = FirstValue): ColumnExpressionData => ColumnExpressionData = {
+    val c = compiled("ensembl", file) {
+      new CompiledIDConversion(EnsemblPlatformHelper.loadConversionTable(file))
+    }
+    convert(c, aggregation)(_)
   }
 
   val probeIdColumn = "probe_id"
@@ -98,7 +284,15 @@ object IDConverter {
    * @param file
    * @return
    */
-  def fromMirbase(file: String, validProbes: Iterable[String]) = {
+  def fromMirbase(file: String, platform: String, validProbes: => Iterable[String],
+                  aggregation: Aggregation = FirstValue): ColumnExpressionData => ColumnExpressionData = {
+    val c = compiled(platform, file) {
+      compileMirbase(file, validProbes)
+    }
+    convert(c, aggregation)(_)
+  }
+
+  private def compileMirbase(file: String, validProbes: Iterable[String]) = {
     val lookup = validProbes.toSet
     val colMap = TSVFile.readMap("", file, true)
     val expanded = (
@@ -113,7 +307,7 @@ object IDConverter {
     val validated = mapping.map(x => (x._1, x._2.filter(lookup.contains))).filter(_._2.nonEmpty)
     val speculative = mapping.map(x => (x._1, x._2.flatMap(dst => Seq(s"$dst-3p", s"$dst-5p"))))
 
-    convert(validated, speculative)(_)
+    new CompiledIDConversion(validated, speculative)
   }
 
   /**
@@ -132,7 +326,7 @@ object IDConverter {
         fromEnsembl(file)
       case Some(MirbasePtn(platform, file)) =>
         //e.g. mirbase:mirbase-v21:mirbase_mapping.tsv
-        fromMirbase(file, context.probeStore.forPlatform(platform))
+        fromMirbase(file, platform, context.probeStore.forPlatform(platform))
       case Some(x) =>
         throw new Exception(s"Unknown ID conversion specifier $x")
       case None => (x => x)
@@ -156,7 +350,7 @@ object IDConverter {
       case None =>
         if (platform.startsWith("mirbase-v")) {
           println(s"Detected mirbase conversion into $platform")
-          fromMirbase(conversionFile, context.probeStore.forPlatform(platform))
+          fromMirbase(conversionFile, platform, context.probeStore.forPlatform(platform))
         } else {
           throw new Exception(s"Unable to convert probes into platform $platform")
         }
@@ -87,6 +87,14 @@ trait IndexDBWriter extends IndexDB {
    */
   def findOrCreate(key: String): Int = get(key).getOrElse(put(key))
 
+  /**
+   * Find or create mappings for a number of keys.
+   * Existing mappings are kept unchanged.
+   * Returns the mappings for all of the keys.
+   */
+  def putAll(keys: Iterable[String]): Map[String, Int] =
+    Map() ++ keys.map(k => k -> findOrCreate(k))
+
   /**
    * Find a mapping in an enum, or create it if it didn't exist.
    */
@@ -66,6 +66,21 @@ trait MatrixContext {
   }
 }
 
+/**
+ * A read plan for valuesForSamplesAndProbes, chosen by MatrixDBReader.planRead.
+ * Costs are estimated chunk reads per worker thread.
+ * @param sparse if set, values are read probe by probe (one random chunk read for each
+ *  probe and sample). Otherwise, each sample is scanned separately, reading each chunk
+ *  that contains requested probes once.
+ * @param chunks the number of distinct chunks that contain the requested probes
+ */
+case class ReadPlan(sparse: Boolean, chunks: Int,
+    probeReadCost: Double, sampleScanCost: Double) {
+  override def toString =
+    s"ReadPlan(${if (sparse) "probe reads" else "sample scans"}, $chunks chunks, " +
+      f"costs $probeReadCost%.1f/$sampleScanCost%.1f)"
+}
+
 /**
  * A database of samples.
  * The database will be opened when returned by its constructor.
@@ -133,6 +148,42 @@ trait MatrixDBReader[E <: ExprValue] {
     emptyValue(pname)
   }
 
+  /**
+   * The number of adjacent probes that are stored, and read, together for each sample.
+   */
+  def chunkSize: Int = 1
+
+  /**
+   * Estimate the cost of the two strategies of valuesForSamplesAndProbes, in chunk reads
+   * per worker thread, and choose the cheaper one.
+   * Probe reads touch one chunk per probe and sample, parallelised over probes.
+   * Sample scans touch each chunk that contains requested probes once per sample,
+   * parallelised over samples.
+   */
+  def planRead(numSamples: Int, probes: Array[Int],
+      parallelism: Int = Runtime.getRuntime.availableProcessors): ReadPlan = {
+    val chunks = probes.map(_ / chunkSize).distinct.size
+    def perThread(reads: Double, units: Int) = reads / Math.max(1, Math.min(parallelism, units))
+
+    val probeReads = perThread(probes.size.toDouble * numSamples, probes.size)
+    val sampleScans = perThread(chunks.toDouble * numSamples, numSamples)
+    ReadPlan(probeReads < sampleScans, chunks, probeReads, sampleScans)
+  }
+
+  /**
+   * Get values by probes and samples, choosing the read strategy with planRead.
+   * See valuesForSamplesAndProbes for the ordering guarantees.
+   */
+  def plannedValuesForSamplesAndProbes(xs: Seq[Sample], probes: Array[Int],
+      presentOnly: Boolean = false)(implicit tag: ClassTag[E]): Array[Array[E]] = {
+    val plan = planRead(xs.size, probes)
+    val start = System.currentTimeMillis()
+    val r = valuesForSamplesAndProbes(xs, probes, plan.sparse, presentOnly)
+    println(s"Read ${probes.size} probes for ${xs.size} samples with $plan in " +
+      s"${System.currentTimeMillis() - start} ms")
+    r
+  }
+
   /**
    * Get values by probes and samples.
    * Samples should be sorted prior to calling this method (using sortSamples above).
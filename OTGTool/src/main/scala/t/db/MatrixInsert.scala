@@ -49,6 +49,17 @@ abstract class MatrixInsert[E <: ExprValue](raw: ColumnExpressionData)
 
   protected def mkValue(v: FoldPExpr): E
 
+  /**
+   * Whether a sample has already been written, for example by an earlier insert that
+   * was interrupted. Such samples are skipped and their data is not read.
+   */
+  protected def alreadyInserted(sample: Sample): Boolean = false
+
+  /**
+   * Called after all values of a sample have been written.
+   */
+  protected def inserted(sample: Sample): Unit = {}
+
   private val pmap = context.probeMap
   def packProbe(knownProbes: Set[String], probe: ProbeId,
                 log: String => Unit): Option[Int] = {
@@ -71,7 +82,11 @@ abstract class MatrixInsert[E <: ExprValue](raw: ColumnExpressionData)
     new AtomicTask[Unit](name) {
       override def run(): Unit = {
         try {
-          val nsamples = raw.samples.size
+          val (skipped, remaining) = raw.samples.partition(alreadyInserted)
+          val nsamples = remaining.size
+          if (!skipped.isEmpty) {
+            log(s"${skipped.size} samples were already inserted and will be skipped")
+          }
           log(s"$nsamples samples")
           log(raw.probes.size + " probes")
 
@@ -90,13 +105,14 @@ abstract class MatrixInsert[E <: ExprValue](raw: ColumnExpressionData)
           var nvalues = 0
 
           for {
-            (sample, data) <- raw.samplesAndData
+            (sample, data) <- raw.samplesAndData(remaining)
             if shouldContinue(pcomp)
             withProbes = data.map { case (p, v) => (packProbe(knownProbes, p, x => log(x)), v) }
             values = withProbes.collect {case (Some(probe), (v, c, p)) => (probe, mkValue(v, c, p)) }
           } {
             nvalues += values.size
             db.writeMany(sample, values)
+            inserted(sample)
             pcomp += 100.0 / nsamples
           }
 
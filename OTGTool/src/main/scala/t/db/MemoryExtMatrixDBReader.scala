@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.db
+
+/**
+ * A read-only matrix of values held in memory, for example values that have been computed
+ * but not yet written to a database.
+ * @param values values keyed by sample ID and packed probe
+ */
+class MemoryExtMatrixDBReader(values: collection.Map[SampleId, collection.Map[Int, PExprValue]])
+  (implicit val probeMap: ProbeMap) extends ExtMatrixDBReader {
+
+  def allSamples: Iterable[Sample] = values.keys.map(Sample(_))
+
+  def sortSamples(xs: Iterable[Sample]): Seq[Sample] = xs.toSeq
+
+  def valuesInSample(x: Sample, probes: Array[Int],
+      padMissingValues: Boolean): Array[PExprValue] = {
+    val vs = values.getOrElse(x.sampleId, Map[Int, PExprValue]())
+    probes.flatMap(p => vs.get(p) match {
+      case Some(v) => Some(v.copy(probe = probeMap.unpack(p)))
+      case None => if (padMissingValues) Some(emptyValue(probeMap, p)) else None
+    })
+  }
+
+  def valuesForProbe(probe: Int, xs: Seq[Sample]): Iterable[(Sample, PExprValue)] = {
+    val probeName = probeMap.unpack(probe)
+    for {
+      x <- xs
+      v <- values.get(x.sampleId).flatMap(_.get(probe))
+    } yield (x, v.copy(probe = probeName))
+  }
+
+  def release(): Unit = {}
+}
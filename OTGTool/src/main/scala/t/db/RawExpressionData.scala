@@ -80,6 +80,19 @@ trait ColumnExpressionData extends Closeable {
     probes.map(p => d.get(p).map(_._1))
   }
 
+  /**
+   * Obtain expression values, calls and p-values for all probes as primitive columns.
+   * Missing values are NaN.
+   * Default implementation for convenience, may be overridden
+   */
+  def columns(x: Sample): (Array[Double], Array[Char], Array[Double]) = {
+    val d = data(x)
+    val vs = probes.map(p => d.get(p).map(_._1).getOrElse(Double.NaN))
+    val cs = probes.map(p => d.get(p).map(_._2).getOrElse('A'))
+    val ps = probes.map(p => d.get(p).map(_._3).getOrElse(Double.NaN))
+    (vs, cs, ps)
+  }
+
   /**
    * Release the resource after use.
    */
@@ -124,6 +124,11 @@ class CSVRawExpressionData(exprFile: String,
   override def exprs(x: Sample): Array[Option[Double]] =
     exprCache(x).map(Some(_))
 
+  override def columns(x: Sample): (Array[Double], Array[Char], Array[Double]) = {
+    val vs = exprCache.getOrElse(x, Array[Double]())
+    (vs, callsCache.getOrElse(x, defaultCalls), Array.fill(vs.length)(Double.NaN))
+  }
+
   protected def filterCalls(ss: Iterable[Sample]): CMap[Sample, Array[Char]] = {
     val sampleSet = ss.toSet
     callsCache.filter(x => sampleSet.contains(x._1))
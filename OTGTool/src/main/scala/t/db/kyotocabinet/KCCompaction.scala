@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.db.kyotocabinet
+
+import java.io.File
+import java.util.zip.CRC32
+
+import kyotocabinet.DB
+import t.global.KCDBRegistry
+
+/**
+ * Offline compaction of Kyoto Cabinet files.
+ * Records are copied, in cursor order (key order for tree DBs), into a fresh file with
+ * the same tuning options. The copy is verified against the original by record count,
+ * payload size and a checksum before it is swapped into place.
+ * The writer lock on the file is held through KCDBRegistry for the whole operation.
+ * Readers are not tracked by the registry, so this should only be done while no other
+ * process (e.g. the web application) is using the file.
+ */
+object KCCompaction {
+  /**
+   * Number of records written to the new file per bulk operation.
+   */
+  val batchSize = 1000
+
+  /**
+   * Summary of the contents of a file.
+   * @param size the size of the file in bytes
+   * @param payload the total size of all keys and values in bytes
+   * @param checksum a checksum of all records that does not depend on their order
+   * @param fragments the number of free fragments, if reported by the DB
+   */
+  case class Stats(file: String, size: Long, records: Long, payload: Long,
+                   checksum: Long, fragments: Option[Long]) {
+    def usedPercent: Double = if (size > 0) payload * 100.0 / size else 100.0
+
+    override def toString =
+      f"$file: $records records, $size bytes, $payload bytes of data ($usedPercent%.1f%% used)" +
+        fragments.map(f => s", $f fragments").getOrElse("")
+
+    def sameContents(other: Stats): Boolean =
+      records == other.records && payload == other.payload && checksum == other.checksum
+  }
+
+  /**
+   * Remove kyoto cabinet options from file name
+   */
+  private def onlyFileName(file: String) = file.split("#")(0)
+
+  /**
+   * The file that the compacted copy is written to before being swapped into place.
+   * The extension is kept, since Kyoto Cabinet uses it to choose the DB type, and so are
+   * the tuning options.
+   */
+  def tempFile(file: String): String = {
+    val path = onlyFileName(file)
+    val options = file.drop(path.length)
+    val dot = path.lastIndexOf('.')
+    val (base, ext) = if (dot > path.lastIndexOf('/')) path.splitAt(dot) else (path, "")
+    s"$base.compact$ext$options"
+  }
+
+  private def fragments(db: DB): Option[Long] =
+    Option(db.status()).flatMap(s => Option(s.get("frgcnt"))).map(_.toLong)
+
+  def stats(file: String, db: DB): Stats = {
+    val cur = db.cursor()
+    var records, payload, checksum = 0L
+    val crc = new CRC32
+    try {
+      cur.jump()
+      var rec = cur.get(true)
+      while (rec != null) {
+        crc.reset()
+        crc.update(rec(0))
+        crc.update(rec(1))
+        records += 1
+        payload += rec(0).length + rec(1).length
+        checksum += crc.getValue
+        rec = cur.get(true)
+      }
+    } finally {
+      cur.disable()
+    }
+    Stats(onlyFileName(file), db.size(), records, payload, checksum, fragments(db))
+  }
+
+  /**
+   * Dry run: the current state of a file, and the free disk space next to it.
+   * The compacted file will need at least `payload` bytes, so at most
+   * `size - payload` bytes can be reclaimed.
+   */
+  def estimate(file: String): (Stats, Long) = {
+    val db = KCDBRegistry.getReader(file).getOrElse(
+      throw new Exception(s"Unable to open $file"))
+    try {
+      val usable = new File(onlyFileName(file)).getAbsoluteFile.getParentFile.getUsableSpace
+      (stats(file, db), usable)
+    } finally {
+      db.close()
+    }
+  }
+
+  private def copy(from: DB, to: DB): Unit = {
+    val cur = from.cursor()
+    val buffer = new Array[Array[Byte]](batchSize * 2)
+    var n = 0
+    def flush(): Unit = {
+      if (n > 0) {
+        val records = if (n == batchSize) buffer else buffer.take(n * 2)
+        if (to.set_bulk(records, false) != n) {
+          throw new Exception(s"Failed to write records to ${to.path()}: ${to.error()}")
+        }
+        n = 0
+      }
+    }
+    try {
+      cur.jump()
+      var rec = cur.get(true)
+      while (rec != null) {
+        buffer(n * 2) = rec(0)
+        buffer(n * 2 + 1) = rec(1)
+        n += 1
+        if (n == batchSize) {
+          flush()
+        }
+        rec = cur.get(true)
+      }
+      flush()
+    } finally {
+      cur.disable()
+    }
+  }
+
+  /**
+   * Compact a file. Blocks until the writer for the file is available.
+   * @return the state of the file before and after compaction
+   */
+  def compact(file: String): (Stats, Stats) = {
+    if (KCDBRegistry.isMaintenanceMode) {
+      throw new Exception("Compaction is not possible in maintenance mode, where writers are shared")
+    }
+    val temp = tempFile(file)
+    val tempPath = new File(onlyFileName(temp))
+    var db = KCDBRegistry.getWriter(file).getOrElse(
+      throw new Exception(s"Unable to open $file"))
+    try {
+      val before = stats(file, db)
+      //Any leftover from an interrupted compaction is discarded
+      tempPath.delete()
+
+      val to = new DB()
+      if (!to.open(temp, DB.OWRITER | DB.OCREATE | DB.OTRUNCATE)) {
+        throw new Exception(s"Unable to create $temp: ${to.error()}")
+      }
+      val copied = try {
+        copy(db, to)
+        stats(temp, to)
+      } finally {
+        to.close()
+      }
+
+      if (!copied.sameContents(before)) {
+        tempPath.delete()
+        throw new Exception(s"Verification of compacted copy failed. Original: $before Copy: $copied")
+      }
+      db = KCDBRegistry.replaceWriterFile(file, temp)
+      val after = copied.copy(file = before.file, size = db.size(), fragments = fragments(db))
+      (before, after)
+    } finally {
+      KCDBRegistry.releaseWriter(file)
+    }
+  }
+}
@@ -152,22 +152,30 @@ class KCIndexDB(db: DB, writeMode: Boolean)
    * Retrieve the entire map encoded by this IndexDB.
    */
   def fullMap: Map[String, Int] = {
-    val cur = db.cursor()
     var r = Map[String, Int]()
+    foreachEntry((k, v) => r += (k -> v))
+    r
+  }
+
+  /**
+   * Traverse the entries of this IndexDB (excluding enums) without
+   * building a map.
+   */
+  def foreachEntry(f: (String, Int) => Unit): Unit = {
+    val cur = db.cursor()
     cur.jump() //go to first record
     try {
       var s = cur.get(true)
       while (s != null) {
         val k = extractKey(s(0))
         if (!k.startsWith("##")) {
-          r += (k -> extractValue(s(1)))
+          f(k, extractValue(s(1)))
         }
         s = cur.get(true)
       }
     } finally {
       cur.disable
     }
-    r
   }
 
   def enumMap(enum: String): Map[String, Int] = {
@@ -230,6 +238,62 @@ class KCIndexDB(db: DB, writeMode: Boolean)
     value
   }
 
+  /**
+   * Find or create mappings for a number of keys with bulk operations.
+   * New keys are given a contiguous range of IDs, and the new mappings as well as
+   * the counter are written in a single transaction. The write is atomic, so
+   * concurrent readers see either all of the new mappings or none of them.
+   */
+  override def putAll(keys: Iterable[String]): Map[String, Int] = synchronized {
+    val distinct = keys.toVector.distinct
+    for (k <- distinct; if k.startsWith("##")) {
+      throw new Exception("Forbidden value " + k + " (must not start with ##)")
+    }
+    val existing = getAll(distinct)
+    val missing = distinct.filter(!existing.contains(_))
+    if (missing.isEmpty) {
+      existing
+    } else {
+      val start = nextId
+      if (start.toLong + missing.size >= Int.MaxValue) {
+        Console.err.println(tooLargeMsg)
+        throw new Exception(tooLargeMsg)
+      }
+      val created = missing.zipWithIndex.map(x => (x._1, start + x._2))
+      val records = new Array[Array[Byte]]((created.size + 1) * 2)
+      for (((k, v), i) <- created.zipWithIndex) {
+        records(i * 2) = formKey(k)
+        records(i * 2 + 1) = formValue(v)
+      }
+      records(created.size * 2) = formKey(nextKey)
+      records(created.size * 2 + 1) = formValue(start + created.size)
+
+      transaction {
+        if (db.set_bulk(records, true) != created.size + 1) {
+          throw new Exception("Bulk insertion into KCIndexDB failed")
+        }
+      }
+      nextId = start + created.size
+      existing ++ created
+    }
+  }
+
+  /**
+   * Look up the existing mappings for a number of keys.
+   * The lookup is atomic with respect to putAll.
+   */
+  def getAll(keys: Iterable[String]): Map[String, Int] = {
+    val data = db.get_bulk(keys.map(formKey).toArray, true)
+    if (data == null) {
+      throw new Exception("Bulk lookup in KCIndexDB failed")
+    }
+    var r = Map[String, Int]()
+    for (i <- Range(0, data.length, 2)) {
+      r += (extractKey(data(i)) -> extractValue(data(i + 1)))
+    }
+    r
+  }
+
   def remove(key: String): Unit = {
     if (!db.remove(formKey(key))) {
       throw new Exception(s"Failed to remove key $key (does it exist?)")
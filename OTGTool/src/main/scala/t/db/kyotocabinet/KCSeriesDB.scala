@@ -161,6 +161,36 @@ class KCSeriesDB[S <: Series[S]](db: DB, writeMode: Boolean,
     db.accept(key, pointsVisitor(s, true), true)
   }
 
+  /**
+   * Traverse the keys of all series as (probe, packed sample class) pairs, without
+   * decoding the series. Series for which the function returns true are removed,
+   * which requires write mode.
+   * @return the number of series removed.
+   */
+  def scanKeys(remove: (Int, Long) => Boolean): Int = {
+    val cur = db.cursor()
+    var removed = 0
+    try {
+      cur.jump()
+      var key = cur.get_key(false)
+      while (key != null) {
+        val b = ByteBuffer.wrap(key)
+        if (remove(b.getInt, b.getLong)) {
+          if (!cur.remove()) {
+            throw new Exception("Failed to remove series")
+          }
+          removed += 1
+        } else {
+          cur.step()
+        }
+        key = cur.get_key(false)
+      }
+    } finally {
+      cur.disable()
+    }
+    removed
+  }
+
    /**
    * Insert or replace a series.
    */
@@ -28,6 +28,24 @@ abstract class KyotoCabinetDB(db: DB, writeMode: Boolean) extends Closeable {
   def get(key: Array[Byte]): Option[Array[Byte]] =
     Option(db.get(key))
 
+  /**
+   * Apply a set of updates atomically.
+   */
+  def transaction[T](f: => T): T = synchronized {
+    if (!db.begin_transaction(false)) {
+      throw new Exception(s"Unable to begin transaction on ${db.path()}")
+    }
+    try {
+      val r = f
+      db.end_transaction(true)
+      r
+    } catch {
+      case e: Exception =>
+        db.end_transaction(false)
+        throw e
+    }
+  }
+
   def release() {
     val path = db.path()
     if (path != null &&
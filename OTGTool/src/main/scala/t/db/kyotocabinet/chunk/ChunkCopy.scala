@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.db.kyotocabinet.chunk
+
+import java.util.zip.CRC32
+
+import t.util.Parallel
+
+object ChunkCopy {
+  val defaultThreads: Int = Math.max(1, Runtime.getRuntime.availableProcessors - 1)
+
+  /**
+   * The chunks of one sample, ready to be written.
+   */
+  private case class SampleChunks(sample: Int, chunks: Seq[(Int, Array[Byte])], bytes: Long)
+}
+
+/**
+ * Copies samples from one chunk matrix DB into another at the record level.
+ * Records are copied as they are if they are already in the destination's format, and
+ * re-encoded otherwise, so that values never go through a MatrixContext or an insert task.
+ * A new, empty destination takes on the format of the source.
+ * Samples are read and re-encoded in parallel by a bounded pool of workers, each reading
+ * one sample's chunks with a bulk lookup. All writes happen on the calling thread, so that
+ * the destination has a single writer.
+ * Sample and probe codes are copied unchanged, so both DBs must use the same sample and
+ * probe indexes. Copied chunks replace any chunks with the same keys in the destination.
+ */
+class ChunkCopy(from: KCChunkMatrixDB, to: KCChunkMatrixDB,
+    threads: Int = ChunkCopy.defaultThreads, log: String => Unit = println(_)) {
+  import ChunkCopy._
+
+  /**
+   * The format to copy into. A destination without data or a format of its own
+   * takes on the format of the source.
+   */
+  private val format =
+    if (!to.hasStoredFormat && to.isEmpty) from.detectedFormat else to.format
+
+  /**
+   * Run a function on each sample with a pool of workers, and consume the results in
+   * completion order on the calling thread.
+   */
+  private def parallel[T](samples: Seq[(Int, Seq[Int])], label: String)
+      (work: (Int, Seq[Int]) => T)(consume: T => Unit): Unit = {
+    Parallel.computeAndWrite(samples, threads,
+      progress = Parallel.etaLogger(label, "samples", samples.size, log))(
+      s => work(s._1, s._2))(consume)
+  }
+
+  /**
+   * The records of a sample, encoded in the destination format.
+   */
+  private def encoded(sample: Int, starts: Seq[Int]): Seq[(Int, Array[Byte])] =
+    for ((start, value) <- from.readChunks(sample, starts)) yield {
+      if (ChunkFormat.detect(value) == format) {
+        (start, value)
+      } else {
+        (start, format.encode(ChunkFormat.decode(sample, start, value)))
+      }
+    }
+
+  private def checksum(chunks: Seq[(Int, Array[Byte])]): Long = {
+    val crc = new CRC32
+    for ((start, value) <- chunks) {
+      crc.update(java.nio.ByteBuffer.allocate(4).putInt(start).array())
+      crc.update(value)
+    }
+    crc.getValue
+  }
+
+  /**
+   * Copy samples.
+   * @param samples the sample codes to copy, or None to copy all samples.
+   * @return the number of samples and chunks copied.
+   */
+  def copy(samples: Option[Set[Int]] = None): (Int, Int) = {
+    val chunks = from.chunkStarts(samples).toSeq.sortBy(_._1)
+    log(s"Copying ${chunks.size} samples in $format format with $threads threads")
+    if (!to.hasStoredFormat) {
+      to.setFormat(format)
+    }
+    var nchunks = 0
+    var bytes = 0L
+    parallel(chunks, "Copy") { (sample, starts) =>
+      val cs = encoded(sample, starts)
+      SampleChunks(sample, cs, cs.map(_._2.length.toLong).sum)
+    } { r =>
+      to.writeChunks(r.sample, r.chunks)
+      nchunks += r.chunks.size
+      bytes += r.bytes
+    }
+    log(s"Copied ${chunks.size} samples, $nchunks chunks, $bytes bytes")
+    (chunks.size, nchunks)
+  }
+
+  /**
+   * Compare each sample in the source with its copy, by checksums of the chunk records
+   * in the destination format.
+   * @param samples the sample codes to verify, or None to verify all source samples.
+   * @return the codes of samples whose copies differ from the source.
+   */
+  def verify(samples: Option[Set[Int]] = None): Seq[Int] = {
+    val chunks = from.chunkStarts(samples).toSeq.sortBy(_._1)
+    val copiedChunks = to.chunkStarts(Some(chunks.map(_._1).toSet))
+    var mismatches = Vector[Int]()
+    parallel(chunks, "Verify") { (sample, starts) =>
+      val source = encoded(sample, starts)
+      val copied = to.readChunks(sample, copiedChunks.getOrElse(sample, Seq()))
+      (sample, checksum(source) == checksum(copied))
+    } { case (sample, same) =>
+      if (!same) {
+        log(s"Warning: the copy of sample $sample differs from the source")
+        mismatches :+= sample
+      }
+    }
+    log(s"Verified ${chunks.size} samples, ${mismatches.size} mismatches")
+    mismatches
+  }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.db.kyotocabinet.chunk
+
+import java.nio.ByteBuffer
+
+import t.db.PExprValue
+
+/**
+ * Binary encodings of vector chunks.
+ * Every format can be decoded regardless of the format that a DB is configured to write,
+ * since the encoding of each record is detected on read (see ChunkFormat.decode).
+ */
+sealed trait ChunkFormat {
+  def name: String
+  def encode(vc: VectorChunk[PExprValue]): Array[Byte]
+  override def toString = name
+}
+
+object ChunkFormat {
+  /**
+   * Leading byte of records in the compact format.
+   * Legacy records start with the high byte of a probe ID, which is 0 for probe IDs below
+   * 2^24. Probe IDs are assigned sequentially from 0, so the two cannot be confused.
+   */
+  private[chunk] val COMPACT_TAG: Byte = 0x71
+
+  private val FLAG_DOUBLE_VALUES = 1
+  private val FLAG_P_FLOAT = 2
+  private val FLAG_P_DOUBLE = 4
+  private val FLAG_RAW_CALLS = 8
+
+  private val packedCalls = Array('A', 'P', 'M')
+
+  val defaultFormat: ChunkFormat = Legacy
+
+  /**
+   * The original encoding: 22 bytes per value (probe, value, p-value, call).
+   */
+  object Legacy extends ChunkFormat {
+    val name = "legacy"
+    private[chunk] val VALSIZE = 4 + 8 + 8 + 2
+
+    def encode(vc: VectorChunk[PExprValue]): Array[Byte] = {
+      val r = ByteBuffer.allocate(vc.xs.size * VALSIZE)
+      for (x <- vc.xs) {
+        r.putInt(x._1) //probe
+        r.putDouble(x._2.value)
+        r.putDouble(x._2.p)
+        r.putChar(x._2.call)
+      }
+      r.array()
+    }
+  }
+
+  /**
+   * Precision of stored values.
+   */
+  sealed abstract class Precision(val name: String, val size: Int)
+  case object Float32 extends Precision("f32", 4)
+  case object Float64 extends Precision("f64", 8)
+
+  /**
+   * A compact, versioned encoding. Layout:
+   * tag (1 byte), flags (1 byte), count (varint), probe offsets (varint deltas, the first
+   * relative to the chunk start), values, p-values (unless omitted), calls (2 bits each,
+   * or 2 bytes each if any call is not A, P or M).
+   * @param values the precision of expression values. Float64 is lossless.
+   * @param pValues the precision of p-values, or None to omit them (for absolute value DBs).
+   *  Omitted p-values are read as NaN.
+   */
+  case class Compact(values: Precision, pValues: Option[Precision]) extends ChunkFormat {
+    def name = s"compact:${values.name}:${pValues.map(_.name).getOrElse("none")}"
+
+    def encode(vc: VectorChunk[PExprValue]): Array[Byte] = {
+      val n = vc.xs.size
+      val rawCalls = vc.xs.exists(x => !packedCalls.contains(x._2.call))
+      val flags = (if (values == Float64) FLAG_DOUBLE_VALUES else 0) |
+        (pValues match {
+          case Some(Float32) => FLAG_P_FLOAT
+          case Some(Float64) => FLAG_P_DOUBLE
+          case None => 0
+        }) |
+        (if (rawCalls) FLAG_RAW_CALLS else 0)
+
+      val callSize = if (rawCalls) n * 2 else (n + 3) / 4
+      val r = ByteBuffer.allocate(2 + 5 + n * 5 +
+        n * (values.size + pValues.map(_.size).getOrElse(0)) + callSize)
+      r.put(COMPACT_TAG)
+      r.put(flags.toByte)
+      putVarint(r, n)
+
+      var prev = vc.start
+      for (x <- vc.xs) {
+        putVarint(r, x._1 - prev)
+        prev = x._1
+      }
+      for (x <- vc.xs) {
+        put(r, values, x._2.value)
+      }
+      for (pp <- pValues; x <- vc.xs) {
+        put(r, pp, x._2.p)
+      }
+      if (rawCalls) {
+        for (x <- vc.xs) {
+          r.putChar(x._2.call)
+        }
+      } else {
+        var i = 0
+        while (i < n) {
+          var b = 0
+          for (j <- 0 until 4; if i + j < n) {
+            b |= packedCalls.indexOf(vc.xs(i + j)._2.call) << (2 * j)
+          }
+          r.put(b.toByte)
+          i += 4
+        }
+      }
+      java.util.Arrays.copyOf(r.array(), r.position())
+    }
+  }
+
+  private def put(r: ByteBuffer, p: Precision, x: Double): Unit = p match {
+    case Float32 => r.putFloat(x.toFloat)
+    case Float64 => r.putDouble(x)
+  }
+
+  private def putVarint(r: ByteBuffer, x: Int): Unit = {
+    var v = x
+    while ((v & ~0x7F) != 0) {
+      r.put(((v & 0x7F) | 0x80).toByte)
+      v >>>= 7
+    }
+    r.put(v.toByte)
+  }
+
+  private def getVarint(b: ByteBuffer): Int = {
+    var r = 0
+    var shift = 0
+    var byte = 0
+    do {
+      byte = b.get
+      r |= (byte & 0x7F) << shift
+      shift += 7
+    } while ((byte & 0x80) != 0)
+    r
+  }
+
+  /**
+   * Look up a format by name: legacy, or compact:{f32|f64}:{f32|f64|none}.
+   */
+  def apply(name: String): ChunkFormat = {
+    def precision(p: String) = p match {
+      case "f32" => Float32
+      case "f64" => Float64
+      case _ => throw new Exception(s"Unknown precision $p")
+    }
+    name.split(":") match {
+      case Array("legacy") => Legacy
+      case Array("compact", v, "none") => Compact(precision(v), None)
+      case Array("compact", v, p) => Compact(precision(v), Some(precision(p)))
+      case _ => throw new Exception(s"Unknown chunk format $name")
+    }
+  }
+
+  /**
+   * The format that a record was written in.
+   */
+  def detect(data: Array[Byte]): ChunkFormat = {
+    if (data.length > 1 && data(0) == COMPACT_TAG) {
+      val flags = data(1)
+      val values = if ((flags & FLAG_DOUBLE_VALUES) != 0) Float64 else Float32
+      val pValues = if ((flags & FLAG_P_DOUBLE) != 0) Some(Float64)
+        else if ((flags & FLAG_P_FLOAT) != 0) Some(Float32)
+        else None
+      Compact(values, pValues)
+    } else {
+      Legacy
+    }
+  }
+
+  /**
+   * Decode a record in any format.
+   */
+  def decode(sample: Int, start: Int, data: Array[Byte]): VectorChunk[PExprValue] = {
+    val b = ByteBuffer.wrap(data)
+    if (data.length > 1 && data(0) == COMPACT_TAG) {
+      b.get
+      val flags = b.get
+      val n = getVarint(b)
+      val probes = new Array[Int](n)
+      var prev = start
+      for (i <- 0 until n) {
+        prev += getVarint(b)
+        probes(i) = prev
+      }
+      val doubleValues = (flags & FLAG_DOUBLE_VALUES) != 0
+      val values = Array.fill(n)(if (doubleValues) b.getDouble else b.getFloat.toDouble)
+      val ps = if ((flags & FLAG_P_DOUBLE) != 0) {
+        Array.fill(n)(b.getDouble)
+      } else if ((flags & FLAG_P_FLOAT) != 0) {
+        Array.fill(n)(b.getFloat.toDouble)
+      } else {
+        Array.fill(n)(Double.NaN)
+      }
+      val calls = if ((flags & FLAG_RAW_CALLS) != 0) {
+        Array.fill(n)(b.getChar)
+      } else {
+        val packed = Array.fill((n + 3) / 4)(b.get)
+        Array.tabulate(n)(i => packedCalls((packed(i / 4) >> (2 * (i % 4))) & 3))
+      }
+      VectorChunk(sample, start,
+        Vector.tabulate(n)(i => (probes(i), PExprValue(values(i), ps(i), calls(i)))))
+    } else {
+      val r = Vector.newBuilder[(Int, PExprValue)]
+      while (b.hasRemaining()) {
+        val pr = b.getInt
+        val x = b.getDouble
+        val p = b.getDouble
+        val c = b.getChar
+        r += ((pr, PExprValue(x, p, c)))
+      }
+      VectorChunk(sample, start, r.result())
+    }
+  }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.db.kyotocabinet.chunk
+
+import java.nio.ByteBuffer
+
+import kyotocabinet.DB
+import t.db.kyotocabinet.KyotoCabinetDB
+import t.global.KCDBRegistry
+
+import scala.collection.mutable
+
+object KCChunkIndexDB {
+  /**
+   * The index is a tree DB, so that all chunks of a sample can be found by a prefix scan.
+   */
+  val options = "#pccap=256m"
+
+  private val SAMPLE: Byte = 'S'
+  private val CHUNK: Byte = 'C'
+  private val PROBE: Byte = 'P'
+  private val completeKey = "#complete".getBytes("UTF-8")
+
+  /**
+   * The index file that accompanies a given chunk matrix DB file.
+   */
+  def fileFor(matrixFile: String): String = {
+    val path = matrixFile.split("#")(0)
+    val base = if (path.endsWith(".kch")) path.dropRight(4) else path
+    s"${base}_chunks.kct" + options
+  }
+
+  def apply(file: String, writeMode: Boolean): KCChunkIndexDB = {
+    KCDBRegistry.get(file, writeMode) match {
+      case Some(d) => new KCChunkIndexDB(d, writeMode)
+      case None => throw new Exception("Unable to get DB")
+    }
+  }
+
+  /**
+   * Open the index for a matrix DB, if one can be used.
+   * An index is only created automatically for an empty matrix DB. For a DB that already
+   * contains data, the index must be created with rebuild (see MatrixManager).
+   * An index that is incomplete (e.g. because a rebuild was interrupted) is not used.
+   * The matrix and the index are separate files, so a writer that stops without being
+   * released may leave them inconsistent. Opening the index for writing therefore marks
+   * it as incomplete, and KCChunkMatrixDB.release marks it as complete again. After a
+   * crashed writer, the index is ignored until it is rebuilt.
+   */
+  def forMatrix(matrixFile: String, writeMode: Boolean,
+                matrixEmpty: => Boolean): Option[KCChunkIndexDB] = {
+    val file = fileFor(matrixFile)
+    val exists = new java.io.File(file.split("#")(0)).exists()
+    if (!exists && !(writeMode && matrixEmpty)) {
+      None
+    } else {
+      val idx = apply(file, writeMode)
+      if (!exists) {
+        idx.setComplete(true)
+      }
+      if (idx.isComplete) {
+        if (writeMode) {
+          idx.setComplete(false)
+        }
+        Some(idx)
+      } else {
+        println(s"Warning: ignoring incomplete chunk index $file")
+        idx.release()
+        None
+      }
+    }
+  }
+}
+
+/**
+ * Secondary index for a KCChunkMatrixDB.
+ * Records the chunks stored for each sample (and hence the samples in the matrix),
+ * and the number of samples that have a value for each probe (and hence the distinct probes).
+ * Updates are applied in transactions, so that each write or deletion in the matrix
+ * DB is reflected in full or not at all.
+ *
+ * Key layout (sample, start and probe are big-endian ints):
+ *  'S' sample         -> number of chunks for the sample
+ *  'C' sample start   -> (empty)
+ *  'P' probe          -> number of samples with a value for the probe
+ */
+class KCChunkIndexDB(db: DB, writeMode: Boolean) extends KyotoCabinetDB(db, writeMode) {
+  import KCChunkIndexDB._
+
+  private def key(prefix: Byte, xs: Int*): Array[Byte] = {
+    val r = ByteBuffer.allocate(1 + 4 * xs.size)
+    r.put(prefix)
+    for (x <- xs) {
+      r.putInt(x)
+    }
+    r.array()
+  }
+
+  private def intValue(data: Array[Byte]) = ByteBuffer.wrap(data).getInt
+  private def formValue(x: Int) = ByteBuffer.allocate(4).putInt(x).array()
+
+  private def adjustCount(k: Array[Byte], delta: Int): Unit = {
+    val n = get(k).map(intValue).getOrElse(0) + delta
+    if (n <= 0) {
+      db.remove(k)
+    } else {
+      db.set(k, formValue(n))
+    }
+  }
+
+  /**
+   * Visit all keys starting with the given prefix, in order.
+   */
+  private def scan(prefix: Array[Byte])(f: Array[Byte] => Unit): Unit = {
+    val cur = db.cursor()
+    try {
+      cur.jump(prefix)
+      var k = cur.get_key(true)
+      while (k != null && k.length >= prefix.length &&
+        java.util.Arrays.equals(k.take(prefix.length), prefix)) {
+        f(k)
+        k = cur.get_key(true)
+      }
+    } finally {
+      cur.disable()
+    }
+  }
+
+  def isComplete: Boolean = get(completeKey).isDefined
+
+  /**
+   * Set or clear the completeness marker. The change is flushed to the file system
+   * immediately, so that it survives a crash of the process.
+   */
+  def setComplete(complete: Boolean): Unit = {
+    if (complete) {
+      db.set(completeKey, Array[Byte]())
+    } else {
+      db.remove(completeKey)
+    }
+    db.synchronize(false, null)
+  }
+
+  def hasChunk(sample: Int, start: Int): Boolean =
+    get(key(CHUNK, sample, start)).isDefined
+
+  /**
+   * Record a chunk. Returns false if it was already recorded.
+   */
+  def addChunk(sample: Int, start: Int): Boolean = {
+    val k = key(CHUNK, sample, start)
+    if (get(k).isDefined) {
+      false
+    } else {
+      db.set(k, Array[Byte]())
+      adjustCount(key(SAMPLE, sample), 1)
+      true
+    }
+  }
+
+  def removeChunk(sample: Int, start: Int): Unit = {
+    val k = key(CHUNK, sample, start)
+    if (get(k).isDefined) {
+      db.remove(k)
+      adjustCount(key(SAMPLE, sample), -1)
+    }
+  }
+
+  def addProbes(probes: Iterable[Int]): Unit =
+    for (p <- probes) { adjustCount(key(PROBE, p), 1) }
+
+  def removeProbes(probes: Iterable[Int]): Unit =
+    for (p <- probes) { adjustCount(key(PROBE, p), -1) }
+
+  /**
+   * All samples that have at least one chunk.
+   */
+  def samples: Seq[Int] = {
+    val r = mutable.ArrayBuffer[Int]()
+    scan(Array(SAMPLE))(k => r += ByteBuffer.wrap(k, 1, 4).getInt)
+    r
+  }
+
+  /**
+   * The start offsets of all chunks stored for a sample, in order.
+   */
+  def chunks(sample: Int): Seq[Int] = {
+    val r = mutable.ArrayBuffer[Int]()
+    scan(key(CHUNK, sample))(k => r += ByteBuffer.wrap(k, 5, 4).getInt)
+    r
+  }
+
+  /**
+   * All (sample, start) chunk keys.
+   */
+  def allChunks: Seq[(Int, Int)] = {
+    val r = mutable.ArrayBuffer[(Int, Int)]()
+    scan(Array(CHUNK))(k => {
+      val b = ByteBuffer.wrap(k, 1, 8)
+      r += ((b.getInt, b.getInt))
+    })
+    r
+  }
+
+  /**
+   * The probes that have a value in at least one sample, with the number of such samples.
+   */
+  def probeCounts: Map[Int, Int] = {
+    val r = mutable.Map[Int, Int]()
+    scan(Array(PROBE))(k => {
+      val p = ByteBuffer.wrap(k, 1, 4).getInt
+      r += p -> get(k).map(intValue).getOrElse(0)
+    })
+    Map() ++ r
+  }
+
+  def probes: Seq[Int] = probeCounts.keys.toSeq.sorted
+
+  /**
+   * Remove all entries, including the completeness marker.
+   */
+  def clear(): Unit = db.clear()
+}
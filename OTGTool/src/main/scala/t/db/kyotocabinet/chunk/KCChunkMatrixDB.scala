@@ -20,6 +20,7 @@
 package t.db.kyotocabinet.chunk
 
 import java.nio.ByteBuffer
+import java.util.BitSet
 
 import scala.collection.mutable
 import kyotocabinet.DB
@@ -101,13 +102,21 @@ case class VectorChunk[E <: ExprValue] (sample: Int, start: Int, xs: Seq[(Int, E
 object KCChunkMatrixDB {
   val CHUNK_PREFIX = "kcchunk:"
 
+  /**
+   * Number of chunks added to the index in each transaction when rebuilding it.
+   */
+  val rebuildBatchSize = 1000
+
   def removePrefix(file: String) = file.split(CHUNK_PREFIX)(1)
 
   def apply(file: String, writeMode: Boolean)(implicit context: MatrixContext) = {
     val db = KCDBRegistry.get(file, writeMode)
     db match {
       case Some(d) =>
-        new KCChunkMatrixDB(d, writeMode)
+        //The DB may hold non-chunk records, such as the format, even when it has no chunks
+        val index = KCChunkIndexDB.forMatrix(file, writeMode,
+          new KCChunkMatrixDB(d, writeMode).isEmpty)
+        new KCChunkMatrixDB(d, writeMode, index)
       case None => throw new Exception("Unable to get DB")
     }
   }
@@ -118,8 +127,12 @@ object KCChunkMatrixDB {
  * Key size: 8 bytes (sample + probe)
  * Value size: 22b * chunksize (2816b at 128 probe chunks)
  * Expected number of records: 5-10 million
+ *
+ * @param index secondary index of the chunks of each sample. If present, it is kept up to
+ *  date by writes and deletions, and used to avoid traversing the whole DB.
  */
-class KCChunkMatrixDB(db: DB, writeMode: Boolean)(implicit mc: MatrixContext)
+class KCChunkMatrixDB(db: DB, writeMode: Boolean, index: Option[KCChunkIndexDB] = None)
+  (implicit mc: MatrixContext)
   extends KyotoCabinetDB(db, writeMode) with ExtMatrixDB {
 
   type V = VectorChunk[PExprValue]
@@ -142,39 +155,111 @@ class KCChunkMatrixDB(db: DB, writeMode: Boolean)(implicit mc: MatrixContext)
     (b.getInt, b.getInt)
   }
 
-  private val CHUNKVALSIZE = (4 + (8 + 8 + 2))
+  /**
+   * The key of the record that holds the name of the chunk format used for writing.
+   * Its length distinguishes it from chunk keys.
+   */
+  private val formatKey = "#fmt".getBytes("UTF-8")
+
+  private def isChunkKey(key: Array[Byte]) = key.length == 8
+
+  @volatile private var _format: ChunkFormat =
+    get(formatKey).map(f => ChunkFormat(new String(f, "UTF-8"))).getOrElse(ChunkFormat.defaultFormat)
 
-  protected def formValue(vc: V): Array[Byte] = {
-    val r = ByteBuffer.allocate(vc.xs.size * CHUNKVALSIZE)
-    for (x <- vc.xs) {
-      r.putInt(x._1) //probe
-      r.putDouble(x._2.value)
-      r.putDouble(x._2.p)
-      r.putChar(x._2.call)
+  /**
+   * The format that chunks are written in. Chunks in any format can be read.
+   */
+  def format: ChunkFormat = _format
+
+  /**
+   * Whether a format was set for this DB, as opposed to the default format being used.
+   */
+  def hasStoredFormat: Boolean = get(formatKey).isDefined
+
+  /**
+   * The first chunk record found by a cursor, if any.
+   */
+  private def firstChunk: Option[Array[Array[Byte]]] = {
+    val cur = db.cursor()
+    try {
+      cur.jump()
+      var rec = cur.get(true)
+      while (rec != null && !isChunkKey(rec(0))) {
+        rec = cur.get(true)
+      }
+      Option(rec)
+    } finally {
+      cur.disable()
     }
-    r.array()
   }
 
+  /**
+   * Whether the DB contains no chunks.
+   */
+  def isEmpty: Boolean = firstChunk.isEmpty
+
+  /**
+   * The format of the existing data: the stored format if there is one, otherwise
+   * the format of a chunk record, or the default format if there are no chunks.
+   */
+  def detectedFormat: ChunkFormat =
+    if (hasStoredFormat) {
+      format
+    } else {
+      firstChunk.map(r => ChunkFormat.detect(r(1))).getOrElse(format)
+    }
+
+  /**
+   * Set the format that chunks will be written in from now on. Existing chunks are unchanged
+   * (see convertFormat).
+   */
+  def setFormat(f: ChunkFormat): Unit = {
+    if (!db.set(formatKey, f.name.getBytes("UTF-8"))) {
+      throw new Exception("Failed to write value")
+    }
+    _format = f
+  }
+
+  protected def formValue(vc: V): Array[Byte] = format.encode(vc)
+
   protected def extractValue(sample: Int, start: Int,
-      data: Array[Byte]): V = {
-    val b = ByteBuffer.wrap(data)
-    var r = Vector[(Int, PExprValue)]()
-
-    /*
-      Note: The use of Vector above slows down reads and some transformations due to slow vector construction.
-      However, it is beneficial during writes/updates. Replacing with List as-is
-      would probably slow down writes (e.g. VectorChunk.insert).
-      These data structures may be reconsidered at some point.
-     */
-
-    while(b.hasRemaining()) {
-      val pr = b.getInt
-      val x = b.getDouble
-      val p = b.getDouble
-      val c = b.getChar
-      r :+= (pr, PExprValue(x, p, c))
+      data: Array[Byte]): V = ChunkFormat.decode(sample, start, data)
+
+  /**
+   * Rewrite all chunks in the given format, and use it for future writes.
+   * @return the total size of chunk values before and after conversion.
+   */
+  def convertFormat(to: ChunkFormat): (Long, Long) = {
+    setFormat(to)
+    var before = 0L
+    var after = 0L
+    var n = 0
+    val cur = db.cursor()
+    try {
+      cur.jump()
+      var rec = cur.get(false)
+      while (rec != null) {
+        if (isChunkKey(rec(0))) {
+          val (sample, start) = extractKey(rec(0))
+          val converted = to.encode(extractValue(sample, start, rec(1)))
+          if (!cur.set_value(converted, false)) {
+            throw new Exception("Failed to write value")
+          }
+          before += rec(1).length
+          after += converted.length
+          n += 1
+          if (n % 100000 == 0) {
+            println(s"Converted $n chunks ($before -> $after bytes)")
+          }
+        }
+        cur.step()
+        rec = cur.get(false)
+      }
+    } finally {
+      cur.disable()
     }
-    VectorChunk(sample, start, r)
+    println(s"Converted $n chunks ($before -> $after bytes)")
+    (before, after)
   }
 
   /**
@@ -188,7 +273,9 @@ class KCChunkMatrixDB(db: DB, writeMode: Boolean)(implicit mc: MatrixContext)
     val dbcodes = forSample.map(_.dbCode).toSet
     while (continue) {
       val key = cur.get_key(true)
-      if (key != null) {
+      if (key != null && !isChunkKey(key)) {
+        //not a chunk, e.g. the format record
+      } else if (key != null) {
         val ex = extractKey(key)
         if (dbcodes.isEmpty ||
             dbcodes.contains(ex._1)) {
@@ -240,15 +327,63 @@ class KCChunkMatrixDB(db: DB, writeMode: Boolean)(implicit mc: MatrixContext)
 
   /**
    * Obtain all samples.
-   * This operation is slow for the chunk database (all current expression
-   * databases).
-   * Forces a full traversal.
+   * Read from the chunk index if there is one; otherwise this forces a full
+   * traversal, which is slow.
+   */
+  def allSamples: Iterable[Sample] = index match {
+    case Some(idx) => idx.samples.map(Sample(_))
+    case None => allChunks(List()).map(x => Sample(x._1)).toSeq.distinct
+  }
+
+  /**
+   * The codes of all samples that have chunks, including samples that are not
+   * in the sample map. If there is no index, the chunk keys are streamed
+   * with a cursor (a full traversal).
    */
-  def allSamples: Iterable[Sample] =
-    allChunks(List()).map(x => Sample(x._1))
+  def sampleCodes: BitSet = {
+    val r = new BitSet
+    index match {
+      case Some(idx) => idx.samples.foreach(r.set)
+      case None =>
+        val cur = db.cursor()
+        try {
+          cur.jump()
+          var key = cur.get_key(true)
+          while (key != null) {
+            if (isChunkKey(key)) {
+              r.set(extractKey(key)._1)
+            }
+            key = cur.get_key(true)
+          }
+        } finally {
+          cur.disable()
+        }
+    }
+    r
+  }
+
+  /**
+   * Delete all chunks of the given sample codes, for example samples that are
+   * no longer in the sample map.
+   */
+  def deleteSampleCodes(codes: Iterable[Int]): Unit = synchronized {
+    for ((sample, starts) <- chunkStarts(Some(codes.toSet))) {
+      val probes = starts.flatMap(c => get(formKey(sample, c)).toSeq.flatMap(
+        extractValue(sample, c, _).probes))
+      db.remove_bulk(starts.map(formKey(sample, _)).toArray, false)
+      for (idx <- index) {
+        idx.transaction {
+          starts.foreach(idx.removeChunk(sample, _))
+          idx.removeProbes(probes)
+        }
+      }
+    }
+  }
 
   implicit val probeMap = mc.probeMap
 
+  override def chunkSize: Int = CHUNKSIZE
+
   def sortSamples(xs: Iterable[Sample]): Seq[Sample] =
     xs.toSeq.sortBy(_.getDbCode.getOrElse(0))
 
@@ -340,21 +475,59 @@ class KCChunkMatrixDB(db: DB, writeMode: Boolean)(implicit mc: MatrixContext)
     //NB this will not delete chunks if probes/platforms are deleted prior to
     //deleting them, as we only delete probes that are present in the probe map
 
-    val keys = for {
-      s <- ss.toArray; c <- potentialChunks(s, probeSets)
-      key = formKey(c)
-    } yield key
-    db.remove_bulk(keys, false)
+    index match {
+      case Some(idx) =>
+        //Only the chunks recorded in the index need to be considered
+        for (s <- ss; dbcode <- s.getDbCode) {
+          val potential = potentialChunks(s, probeSets).map(_.start).toSet
+          val chunks = idx.chunks(dbcode).filter(potential.contains)
+          val probes = chunks.flatMap(c => get(formKey(dbcode, c)).toSeq.flatMap(
+            extractValue(dbcode, c, _).probes))
+          db.remove_bulk(chunks.map(formKey(dbcode, _)).toArray, false)
+          idx.transaction {
+            chunks.foreach(idx.removeChunk(dbcode, _))
+            idx.removeProbes(probes)
+          }
+        }
+      case None =>
+        val keys = for {
+          s <- ss.toArray; c <- potentialChunks(s, probeSets)
+          key = formKey(c)
+        } yield key
+        db.remove_bulk(keys, false)
+    }
+  }
+
+  /**
+   * Record written chunks in the index. Only the chunks that were actually written
+   * are passed here, so the index stays consistent with the DB if a write fails.
+   * @param written pairs of old and new chunks
+   */
+  private def indexWritten(written: Iterable[(V, V)]): Unit = {
+    for (idx <- index; if written.nonEmpty) {
+      idx.transaction {
+        for ((old, updated) <- written) {
+          idx.addChunk(updated.sample, updated.start)
+          idx.addProbes(updated.probes.toSet -- old.probes)
+        }
+      }
+    }
   }
 
   override def writeMany(s: Sample, vs: Iterable[(Int, PExprValue)]): Unit = {
     val byChunk = vs.groupBy(v => chunkStartFor(v._1))
-    for ((c, vs) <- byChunk) {
-      synchronized {
-        var ch = findOrCreateChunk(s.dbCode, vs.head._1)
-        ch = ch.insert(vs.toSeq.sortBy(_._1))
-        updateChunk(ch)
+    var written = List[(V, V)]()
+    try {
+      for ((c, vs) <- byChunk) {
+        synchronized {
+          val old = findOrCreateChunk(s.dbCode, vs.head._1)
+          val ch = old.insert(vs.toSeq.sortBy(_._1))
+          updateChunk(ch)
+          written ::= (old, ch)
+        }
       }
+    } finally {
+      indexWritten(written)
     }
   }
 
@@ -362,5 +535,172 @@ class KCChunkMatrixDB(db: DB, writeMode: Boolean)(implicit mc: MatrixContext)
     val c = findOrCreateChunk(s.dbCode, probe)
     val u = c.insert(probe, e)
     updateChunk(u)
+    indexWritten(Seq((c, u)))
+  }
+
+  /**
+   * The chunk starts of each sample, from the index if there is one, or else from
+   * a full traversal.
+   * @param samples the sample codes to include, or None for all samples.
+   */
+  private[chunk] def chunkStarts(samples: Option[Set[Int]]): Map[Int, Seq[Int]] = index match {
+    case Some(idx) =>
+      Map() ++ samples.map(_.toSeq).getOrElse(idx.samples).map(s => s -> idx.chunks(s))
+    case None =>
+      allChunks().filter(c => samples.forall(_.contains(c._1))).
+        groupBy(_._1).map(x => x._1 -> x._2.map(_._2).toSeq)
+  }
+
+  /**
+   * Read the raw records of chunks of a sample. Chunks that do not exist are omitted.
+   * @return (start, record) pairs sorted by start.
+   */
+  private[chunk] def readChunks(sample: Int, starts: Seq[Int]): Seq[(Int, Array[Byte])] = {
+    if (starts.isEmpty) {
+      return Seq()
+    }
+    val data = db.get_bulk(starts.map(formKey(sample, _)).toArray, false)
+    if (data == null) {
+      throw new Exception("Bulk read of chunks failed")
+    }
+    (for (i <- Range(0, data.length, 2))
+      yield (extractKey(data(i))._2, data(i + 1))).sortBy(_._1)
+  }
+
+  /**
+   * Write raw chunk records of a sample, replacing any existing chunks with the same keys,
+   * and update the index (if there is one).
+   * @param chunks (start, record) pairs. The records may be in any format.
+   */
+  private[chunk] def writeChunks(sample: Int, chunks: Seq[(Int, Array[Byte])]): Unit = synchronized {
+    if (chunks.nonEmpty) {
+      val written = index match {
+        case Some(_) =>
+          val existing = Map() ++ readChunks(sample, chunks.map(_._1))
+          for ((start, value) <- chunks) yield {
+            val old = existing.get(start).map(extractValue(sample, start, _)).
+              getOrElse(new VectorChunk[PExprValue](sample, start, Seq()))
+            (old, extractValue(sample, start, value))
+          }
+        case None => Seq()
+      }
+
+      val records = new Array[Array[Byte]](chunks.size * 2)
+      for (((start, value), i) <- chunks.zipWithIndex) {
+        records(i * 2) = formKey(sample, start)
+        records(i * 2 + 1) = value
+      }
+      if (db.set_bulk(records, false) != chunks.size) {
+        throw new Exception("Failed to write chunks")
+      }
+      indexWritten(written)
+    }
+  }
+
+  /**
+   * Rebuild the chunk index from a full traversal of the DB.
+   * Chunks are added in batches, one transaction per batch.
+   * The index is marked as incomplete until the rebuild has finished.
+   */
+  def rebuildIndex(idx: KCChunkIndexDB,
+                   batchSize: Int = KCChunkMatrixDB.rebuildBatchSize): Unit = {
+    idx.clear()
+    val batch = mutable.ArrayBuffer[(Int, Int, Seq[Int])]()
+    def flush(): Unit = {
+      idx.transaction {
+        for ((sample, start, probes) <- batch) {
+          idx.addChunk(sample, start)
+          idx.addProbes(probes)
+        }
+      }
+      batch.clear()
+    }
+
+    val cur = db.cursor()
+    try {
+      cur.jump()
+      var rec = cur.get(true)
+      var n = 0
+      while (rec != null) {
+        if (isChunkKey(rec(0))) {
+          val (sample, start) = extractKey(rec(0))
+          batch += ((sample, start, extractValue(sample, start, rec(1)).probes))
+          if (batch.size >= batchSize) {
+            flush()
+          }
+          n += 1
+          if (n % 100000 == 0) {
+            println(s"Indexed $n chunks")
+          }
+        }
+        rec = cur.get(true)
+      }
+      if (!batch.isEmpty) {
+        flush()
+      }
+      println(s"Indexed $n chunks")
+    } finally {
+      cur.disable()
+    }
+    idx.setComplete(true)
+  }
+
+  /**
+   * Verify the chunk index against a full traversal of the DB.
+   * @return descriptions of any inconsistencies found.
+   */
+  def verifyIndex(idx: KCChunkIndexDB): Seq[String] = {
+    val chunks = mutable.Set[(Int, Int)]()
+    val probeCounts = mutable.Map[Int, Int]()
+    val cur = db.cursor()
+    try {
+      cur.jump()
+      var rec = cur.get(true)
+      while (rec != null) {
+        if (isChunkKey(rec(0))) {
+          val (sample, start) = extractKey(rec(0))
+          chunks += ((sample, start))
+          for (p <- extractValue(sample, start, rec(1)).probes) {
+            probeCounts(p) = probeCounts.getOrElse(p, 0) + 1
+          }
+        }
+        rec = cur.get(true)
+      }
+    } finally {
+      cur.disable()
+    }
+
+    val indexed = idx.allChunks.toSet
+    val indexedProbes = idx.probeCounts
+    val indexedSamples = idx.samples.toSet
+    val missing = chunks -- indexed
+    val extra = indexed -- chunks
+    val wrongProbes = (probeCounts.keySet ++ indexedProbes.keySet).filter(p =>
+      probeCounts.get(p) != indexedProbes.get(p))
+    val wrongSamples = (chunks.map(_._1).toSet -- indexedSamples) ++
+      (indexedSamples -- chunks.map(_._1))
+
+    (if (!idx.isComplete) Seq("Index is marked as incomplete") else Seq()) ++
+      (if (missing.nonEmpty) Seq(s"${missing.size} chunks missing from index") else Seq()) ++
+      (if (extra.nonEmpty) Seq(s"${extra.size} indexed chunks not in DB") else Seq()) ++
+      (if (wrongSamples.nonEmpty) Seq(s"${wrongSamples.size} samples inconsistent") else Seq()) ++
+      (if (wrongProbes.nonEmpty) Seq(s"${wrongProbes.size} probe counts inconsistent") else Seq())
+  }
+
+  /**
+   * Release the DB. A writer's index is marked as complete again (see
+   * KCChunkIndexDB.forMatrix) once the matrix has been closed.
+   */
+  override def release(): Unit = {
+    try {
+      super.release()
+    } finally {
+      for (idx <- index) {
+        if (writeMode) {
+          idx.setComplete(true)
+        }
+        idx.release()
+      }
+    }
   }
 }
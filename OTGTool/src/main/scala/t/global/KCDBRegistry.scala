@@ -20,6 +20,8 @@
 
 package t.global
 
+import java.nio.file.{Files, Paths, StandardCopyOption}
+
 import kyotocabinet.DB
 import scala.collection.mutable.Map
 
@@ -137,6 +139,30 @@ object KCDBRegistry {
     openWriters -= file
   }
 
+  /**
+   * Replace the file of a writer that is held by the caller with another file,
+   * such as a compacted copy. The current handle is closed, the replacement is moved into
+   * place atomically and a new handle is opened on it and returned. The file stays locked
+   * throughout, and the caller should release the writer as usual afterwards.
+   * Readers that are open on the old file will not see the new file until they are reopened.
+   */
+  def replaceWriterFile(path: String, replacement: String): DB = synchronized {
+    val file = onlyFileName(path)
+    assert (openWriters.contains(file))
+    println(s"Replace $file with $replacement")
+    openWriters(file).close()
+    Files.move(Paths.get(onlyFileName(replacement)), Paths.get(file),
+      StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+    openWrite(path) match {
+      case Some(w) =>
+        openWriters += file -> w
+        w
+      case None =>
+        //The closed handle remains registered until the caller releases the writer
+        throw new Exception(s"Failed to reopen $file")
+    }
+  }
+
   /**
    * This method should be called when we shut down to close all writers.
    * Intended for maintenance mode and as a failsafe to guard against data corruption.
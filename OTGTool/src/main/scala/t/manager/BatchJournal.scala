@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.manager
+
+import java.io.{File, FileWriter, PrintWriter}
+
+import t.BaseConfig
+
+import scala.collection.mutable
+import scala.io.Source
+
+object BatchJournal {
+  /**
+   * Kinds of journal entries.
+   */
+  val Argument = "arg"
+  val Step = "step"
+  val RDFGroup = "rdf"
+  val ExprSample = "sample"
+
+  def file(config: BaseConfig, batch: String): File =
+    new File(s"${config.data.dir}/import_$batch.journal")
+
+  def exists(config: BaseConfig, batch: String): Boolean =
+    file(config, batch).exists()
+
+  def apply(config: BaseConfig, batch: String): BatchJournal =
+    new BatchJournal(file(config, batch))
+
+  /**
+   * Remove the journal of a batch, if there is one, along with the progress
+   * file of any interrupted recalculation.
+   */
+  def delete(config: BaseConfig, batch: String): Unit = {
+    file(config, batch).delete()
+    ControlGroupRecalculation.progressFile(config, batch).delete()
+  }
+}
+
+/**
+ * A small local journal of the work completed so far by a batch import, so that an
+ * interrupted import can be resumed. Each line of the file is a tab-separated entry:
+ * a kind, a key and (for arguments) a value. Entries are flushed to disk as soon as they
+ * are recorded. Series are checkpointed separately, per control group, by
+ * ControlGroupRecalculation.
+ */
+class BatchJournal(val file: File) {
+  import BatchJournal._
+
+  private val entries = mutable.Set[(String, String)]()
+  private val arguments = mutable.Map[String, String]()
+
+  if (file.exists()) {
+    val source = Source.fromFile(file)
+    try {
+      for (l <- source.getLines; if l.nonEmpty) {
+        l.split("\t", -1) match {
+          case Array(Argument, k, v) => arguments += k -> v
+          case Array(kind, key) => entries += ((kind, key))
+          case _ => println(s"Warning: ignoring malformed journal line in $file: $l")
+        }
+      }
+    } finally {
+      source.close()
+    }
+  }
+
+  private var unwritten: Vector[(String, String)] = Vector()
+  private var out: PrintWriter = null
+
+  private def checkField(f: String): Unit = {
+    if (f.contains('\t') || f.contains('\n')) {
+      throw new IllegalArgumentException(s"Journal entries may not contain tabs or newlines: $f")
+    }
+  }
+
+  private def write(fields: String*): Unit = {
+    fields.foreach(checkField)
+    if (out == null) {
+      file.getAbsoluteFile.getParentFile.mkdirs()
+      out = new PrintWriter(new FileWriter(file, true))
+    }
+    out.println(fields.mkString("\t"))
+    out.flush()
+  }
+
+  def isEmpty: Boolean = synchronized { entries.isEmpty && arguments.isEmpty }
+
+  def argument(key: String): Option[String] = synchronized { arguments.get(key) }
+
+  /**
+   * Record an argument needed to resume the import. Arguments are written out
+   * together with the first completed step, so that an import that fails before
+   * doing any work leaves no journal behind.
+   */
+  def setArgument(key: String, value: String): Unit = synchronized {
+    checkField(key)
+    checkField(value)
+    arguments += key -> value
+    unwritten :+= ((key, value))
+  }
+
+  def contains(kind: String, key: String): Boolean = synchronized {
+    entries.contains((kind, key))
+  }
+
+  def keys(kind: String): Set[String] = synchronized {
+    entries.filter(_._1 == kind).map(_._2).toSet
+  }
+
+  def record(kind: String, key: String): Unit = synchronized {
+    if (!entries.contains((kind, key))) {
+      for ((k, v) <- unwritten) {
+        write(Argument, k, v)
+      }
+      unwritten = Vector()
+      write(kind, key)
+      entries += ((kind, key))
+    }
+  }
+
+  def close(): Unit = synchronized {
+    if (out != null) {
+      out.close()
+      out = null
+    }
+  }
+
+  /**
+   * Close and remove the journal once the import has completed.
+   */
+  def delete(): Unit = synchronized {
+    close()
+    file.delete()
+    entries.clear()
+    arguments.clear()
+    unwritten = Vector()
+  }
+}
@@ -26,7 +26,6 @@ import t.global.KCDBRegistry
 import t.model.sample.CoreParameter
 import t.sparql._
 import t.util.DoThenClose._
-import t.util.TempFiles
 
 import scala.collection.JavaConverters._
 import scala.language.implicitConversions
@@ -85,12 +84,44 @@ object BatchManager extends ManagerTool {
                   "Please specify a data file with -data")
               val callFile = stringOption(args, "-calls")
 
+              if (BatchJournal.exists(config, title)) {
+                throw new Exception(s"An interrupted import of batch $title exists. " +
+                  s"Please resume it with 'batch resume $title' or remove it with 'batch delete -title $title'")
+              }
+              val journal = BatchJournal(config, title)
+              def absolute(file: String) = new java.io.File(file).getAbsolutePath
+              journal.setArgument("metadata", absolute(metaFile))
+              journal.setArgument("data", absolute(dataFile))
+              callFile.foreach(f => journal.setArgument("calls", absolute(f)))
+              journal.setArgument("append", append.toString)
+              journal.setArgument("comment", comment)
+              stringOption(args, "-idConversion").foreach(journal.setArgument("idConversion", _))
+
               new PlatformStore(config).populateAttributes(config.attributes)
               //val md = factory.tsvMetadata(metaFile, config.attributes)
               startTaskRunner(bm.add(Batch(title, comment, None, None),
-                metaFile, dataFile, callFile, append, conversion = idConversion))
+                metaFile, dataFile, callFile, append, conversion = idConversion,
+                journal = Some(journal)))
           }
 
+        case "resume" =>
+          expectArgs(args, 2)
+          val title = args(1)
+          if (!BatchJournal.exists(config, title)) {
+            throw new Exception(s"No interrupted import of batch $title was found")
+          }
+          val journal = BatchJournal(config, title)
+          def argument(key: String) = require(journal.argument(key),
+            s"The import journal ${journal.file} does not record the argument $key")
+          val idConversion = t.db.IDConverter.fromArgument(journal.argument("idConversion"), context)
+
+          new PlatformStore(config).populateAttributes(config.attributes)
+          startTaskRunner(new BatchManager(context).add(
+            Batch(title, journal.argument("comment").getOrElse(""), None, None),
+            argument("metadata"), argument("data"), journal.argument("calls"),
+            argument("append").toBoolean, conversion = idConversion,
+            journal = Some(journal)))
+
         case "recalculate" =>
           val title = require(stringOption(args, "-title"),
             "Please specify a title with -title")
@@ -201,7 +232,7 @@ object BatchManager extends ManagerTool {
     bs.verifyExists(batch)
 
   def showHelp() {
-    println("Please specify a command (add/updateMetadata/recalculate/delete/list/list-access/enable/disable)")
+    println("Please specify a command (add/resume/updateMetadata/recalculate/delete/list/list-access/enable/disable)")
   }
 
   case class Batch(title: String, comment: String, instances: Option[Seq[String]], dataset: Option[String])
@@ -243,12 +274,14 @@ class BatchManager(context: Context) {
   def add(batch: Batch, metadataFile: String,
     dataFile: String, callFile: Option[String],
     append: Boolean, simpleLog2: Boolean = false,
-    conversion: ExpressionConverter = identityConverter): Task[Unit] = {
+    conversion: ExpressionConverter = identityConverter,
+    journal: Option[BatchJournal] = None): Task[Unit] = {
 
     for {
       metadata <- readTSVMetadata(metadataFile)
-      _ <- newMetadataCheck(batch.title, metadata, config, append) andThen
-        addMetadata(batch, metadata, append) andThen
+      _ <- checkpointed(journal, "check",
+          newMetadataCheck(batch.title, metadata, config, append)) andThen
+        addMetadata(batch, metadata, append, journal = journal) andThen
         addEnums(metadata) andThen
         // Note that we rely on probe maps, sample maps etc in matrixContext
         // not being read until they are needed
@@ -257,12 +290,32 @@ class BatchManager(context: Context) {
           mc <- Task.simple("Create matrix context") {
             matrixContext()
           }
-          _ <- addExprData(metadata, dataFile, callFile, conversion)(mc) andThen
+          _ <- checkpointed(journal, "exprData",
+                addExprData(metadata, dataFile, callFile, conversion, journal)(mc)) andThen
                 recalculateFoldsAndSeries(batch, metadata, simpleLog2)
-        } yield ())
+        } yield ()) andThen
+        (journal match {
+          case Some(j) => Task.simple("Remove import journal") { j.delete() }
+          case None => Task.success
+        })
     } yield ()
   }
 
+  /**
+   * Run a step of a batch import unless the journal records it as completed,
+   * and record it in the journal once it completes.
+   */
+  private def checkpointed(journal: Option[BatchJournal], step: String,
+      task: => Task[Unit]): Task[Unit] = journal match {
+    case Some(j) if j.contains(BatchJournal.Step, step) =>
+      Task.simple(s"Skip completed step: $step") { () }
+    case Some(j) =>
+      task andThen Task.simple(s"Checkpoint step: $step") {
+        j.record(BatchJournal.Step, step)
+      }
+    case None => task
+  }
+
   def updateMetadata(batch: Batch, metaFile: String,
       recalculate: Boolean = false, simpleLog2: Boolean = false,
       force: Boolean = false): Task[Unit] = {
@@ -284,39 +337,11 @@ class BatchManager(context: Context) {
     val probes = platforms.flatMap(probeMap(_)).toSeq
     val codedProbes = probes.map(p => mc.probeMap.pack(p.identifier))
 
-    val treatedSamples = metadata.samples.filter(!metadata.isControl(_))
-
-    val dbReader = () => config.data.absoluteDBReader
-    val units = metadata.treatedControlGroups(metadata.samples)
-
-    val recalculateChunks = (for (unitChunk <- units.grouped(50);
-      sampleChunk = unitChunk.toSeq.flatMap(u => u._1 ++ u._2).distinct;
-      filteredMetadata = context.factory.filteredMetadata(metadata, sampleChunk)
-    ) yield {
-      for {
-        _ <- insertFoldsDataFromExpressionData(dbReader, codedProbes,
-            filteredMetadata, simpleLog2) andThen
-          addTimeSeriesData(filteredMetadata) andThen
-          addDoseSeriesData(filteredMetadata)
-      } yield ()
-    }).reduce(_ andThen _)
-
-    addEnums(metadata) andThen recalculateChunks
-
+    addEnums(metadata) andThen
+      new ControlGroupRecalculation(config, context.factory, batch.title, metadata,
+        codedProbes, simpleLog2)
   }
 
-  def insertFoldsDataFromExpressionData(reader: () => MatrixDBReader[PExprValue],
-    probes: Iterable[Int], metadata: Metadata, simpleLog2: Boolean)(implicit mc: MatrixContext) =
-    new AtomicTask[Unit]("Insert fold value data from expression data") {
-      def run() {
-        val expressionData = new DBColumnExpressionData(reader(), metadata.samples, probes) {
-          override def logEvent(msg: String) { log(msg) }
-        }
-        doThenClose(expressionData)(data =>
-          addFoldsData(metadata, data, simpleLog2).execute())
-      }
-    }
-
   def readTSVMetadata(filename: String) = new AtomicTask[Metadata]("Read TSV metadata") {
     override def run(): Metadata = {
       context.factory.tsvMetadata(filename, config.attributes, log(_))
@@ -324,20 +349,22 @@ class BatchManager(context: Context) {
   }
 
   def addMetadata(batch: Batch, metadata: Metadata,
-      append: Boolean, update: Boolean = false): Task[Unit] = {
+      append: Boolean, update: Boolean = false,
+      journal: Option[BatchJournal] = None): Task[Unit] = {
     val ts = config.triplestoreConfig.getTriplestore()
 
     val addRecordIfNecessary =
       if (!append) {
-        addRecord(batch.title, batch.comment, config.triplestoreConfig) andThen
-          updateBatch(batch)
+        checkpointed(journal, "record",
+          addRecord(batch.title, batch.comment, config.triplestoreConfig) andThen
+            updateBatch(batch))
       } else {
         Task.success
       }
 
     addRecordIfNecessary andThen
-      (if (!update) addSampleIDs(metadata) else Task.success) andThen
-      addRDF(batch.title, metadata, ts)
+      (if (!update) checkpointed(journal, "sampleIDs", addSampleIDs(metadata)) else Task.success) andThen
+      checkpointed(journal, "rdf", addRDF(batch.title, metadata, ts, journal))
   }
 
   def updateBatch(batch: Batch) = new AtomicTask[Unit]("Update batch record") {
@@ -380,7 +407,10 @@ class BatchManager(context: Context) {
         deleteDoseSeriesData(title) andThen
         deleteFoldData(title) andThen
         deleteExprData(title) andThen
-        deleteSampleIDs(title)
+        deleteSampleIDs(title) andThen
+        Task.simple("Remove import journal") {
+          BatchJournal.delete(config, title)
+        }
     } else {
       println("RDF ONLY mode - not deleting series, fold, expr, sample ID data")
       Task.success
@@ -475,19 +505,14 @@ class BatchManager(context: Context) {
 
   def addSampleIDs(metadata: Metadata) = new AtomicTask[Unit]("Insert sample IDs") {
     override def run(): Unit = {
-      var newSamples, existingSamples: Int = 0
       val dbfile = config.data.sampleIndex
       val db = KCIndexDB(dbfile, true)
       doThenClose(db)(db => {
         log(s"Writing to $dbfile")
-        for (s <- metadata.samples; id = s.identifier) {
-          db.get(id) match {
-            case Some(id) => existingSamples += 1
-            case None =>
-              db.put(id)
-              newSamples += 1
-          }
-        }
+        val ids = metadata.samples.map(_.identifier).toVector.distinct
+        val existingSamples = db.getAll(ids).size
+        db.putAll(ids)
+        val newSamples = ids.size - existingSamples
         logResult(s"$newSamples new samples added, $existingSamples samples already existed")
       }
       )
@@ -506,34 +531,48 @@ class BatchManager(context: Context) {
     }
   }
 
-  def addRDF(title: String, metadata: Metadata, ts: Triplestore) =
+  def addRDF(title: String, metadata: Metadata, ts: Triplestore,
+      journal: Option[BatchJournal] = None) =
     new AtomicTask[Unit]("Insert sample RDF data") {
       override def run(): Unit = {
-        val tempFiles = new TempFiles()
         //time series and dose series use same enums
         val summaries = config.timeSeriesBuilder.enums.map(e => AttribValueSummary(context.sampleStore, e))
 
+        val total = metadata.samples.size
+        val grs = metadata.samples.grouped(250).zipWithIndex
+        val context = BatchStore.context(title)
+
+        //Groups recorded in the journal are only skipped if all their samples can be found
+        val completed = journal.map(_.keys(BatchJournal.RDFGroup)).getOrElse(Set())
+        val insertedSamples = if (completed.isEmpty) Set[String]() else
+          new BatchStore(config.triplestoreConfig).getSamples(title).toSet
+        var skipped = 0
+
+        var percentComplete = 0d
         try {
-          val total = metadata.samples.size
-          val grs = metadata.samples.grouped(250)
-          var percentComplete = 0d
           while (grs.hasNext && shouldContinue(percentComplete)) {
-            val g = grs.next
+            val (g, i) = grs.next
             for (s <- summaries) {
               s.check(metadata, g)
             }
-            val ttl = BatchStore.metadataToTTL(metadata, tempFiles, g)
-            val context = BatchStore.context(title)
-            ts.addTTL(ttl, context)
+            if (completed.contains(i.toString) &&
+              g.forall(s => insertedSamples.contains(s.identifier))) {
+              skipped += 1
+            } else {
+              ts.addStatements(BatchStore.metadataStatements(metadata, g), context)
+              journal.foreach(_.record(BatchJournal.RDFGroup, i.toString))
+            }
             percentComplete += 250.0 * 100.0 / total
           }
-
-          for (s <- summaries) {
-            logResult(s.summary(true))
+          if (skipped > 0) {
+            log(s"$skipped sample groups were already inserted and were skipped")
           }
-
         } finally {
-          tempFiles.dropAll
+          SampleAttributeCache.invalidateAll()
+        }
+
+        for (s <- summaries) {
+          logResult(s.summary(true))
         }
       }
     }
@@ -542,6 +581,7 @@ class BatchManager(context: Context) {
     override def run(): Unit = {
       val bs = new BatchStore(config.triplestoreConfig)
       bs.delete(title)
+      SampleAttributeCache.invalidateAll()
     }
   }
 
@@ -556,15 +596,50 @@ class BatchManager(context: Context) {
   }
 
   def addExprData(md: Metadata, niFile: String, callFile: Option[String],
-      conversion: ExpressionConverter)
+      conversion: ExpressionConverter, journal: Option[BatchJournal] = None)
       (implicit mc: MatrixContext) = {
     val db = () => config.data.extWriter(config.data.exprDb)
     for {
       data <- readCSVExpressionData(md, niFile, callFile, conversion)
-      _ <- new SimpleValueInsert(db, data).insert("Insert expression value data")
+      written <- verifyInsertedSamples(journal)
+      _ <- new SimpleValueInsert(db, data) {
+          override protected def alreadyInserted(sample: Sample) =
+            written.contains(sample.sampleId)
+          override protected def inserted(sample: Sample) =
+            journal.foreach(_.record(BatchJournal.ExprSample, sample.sampleId))
+        }.insert("Insert expression value data")
     } yield ()
   }
 
+  /**
+   * Find the samples that the journal records as inserted into the expression
+   * database, and that are actually present there.
+   */
+  private def verifyInsertedSamples(journal: Option[BatchJournal])
+      (implicit mc: MatrixContext): Task[Set[String]] = {
+    val recorded = journal.map(_.keys(BatchJournal.ExprSample)).getOrElse(Set())
+    if (recorded.isEmpty) {
+      Task.success.map(_ => recorded)
+    } else {
+      new AtomicTask[Set[String]]("Verify inserted expression data") {
+        override def run(): Set[String] = {
+          val db = config.data.extWriter(config.data.exprDb)
+          val present = try {
+            db.allSamples.map(_.sampleId).toSet
+          } finally {
+            db.release()
+          }
+          val missing = recorded -- present
+          if (!missing.isEmpty) {
+            log(s"${missing.size} samples recorded in the journal are missing from the database " +
+              "and will be inserted again")
+          }
+          recorded -- missing
+        }
+      }
+    }
+  }
+
   def addFoldsData(md: Metadata, data: ColumnExpressionData, simpleLog2: Boolean)
       (implicit mc: MatrixContext) = {
     val db = () => config.data.extWriter(config.data.foldDb)
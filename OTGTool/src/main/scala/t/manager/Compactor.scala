@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.manager
+
+import java.io.File
+
+import t._
+import t.db.kyotocabinet.KCCompaction
+import t.db.kyotocabinet.chunk.KCChunkIndexDB
+
+/**
+ * Compaction CLI
+ */
+object Compactor extends ManagerTool {
+  /**
+   * The Kyoto Cabinet files of a data directory, by name, with their tuning options.
+   */
+  def files(data: DataConfig): Seq[(String, String)] = Seq(
+    "expr" -> data.exprDb,
+    "fold" -> data.foldDb,
+    "exprChunks" -> KCChunkIndexDB.fileFor(data.exprDb),
+    "foldChunks" -> KCChunkIndexDB.fileFor(data.foldDb),
+    "timeSeries" -> data.timeSeriesDb,
+    "doseSeries" -> data.doseSeriesDb,
+    "sample" -> data.sampleIndex,
+    "probe" -> data.probeIndex,
+    "enum" -> data.enumIndex)
+
+  def apply(args: Seq[String])(implicit context: Context): Unit = {
+    if (args.size > 0 && args(0) == "help") {
+      showHelp()
+    } else {
+      val all = files(context.config.data)
+      val selected = stringOption(args, "-db") match {
+        case Some(names) =>
+          val ns = names.split(",").toSeq
+          for (n <- ns; if !all.exists(_._1 == n)) {
+            throw new Exception(s"Unknown DB: $n")
+          }
+          all.filter(f => ns.contains(f._1))
+        case None => all
+      }
+      val dryRun = booleanOption(args, "-dryRun")
+      startTaskRunner(new Compactor(selected.map(_._2), dryRun))
+    }
+  }
+
+  def showHelp(): Unit = {
+    println("Usage: compact [-dryRun] [-db name,...]")
+    println(" Rebuilds Kyoto Cabinet files to remove fragmentation. Should be run while")
+    println(" the application is not using the data directory.")
+    println(" With -dryRun, only the current size and fragmentation are reported.")
+    println(s" Names: ${files(new DataConfig("", "")).map(_._1).mkString(", ")} (default: all)")
+  }
+}
+
+/**
+ * Compacts a number of Kyoto Cabinet files one at a time, reporting the size and
+ * fragmentation before and after. Files that do not exist are skipped.
+ * With dryRun, only the current state of each file is reported, with an upper bound
+ * for the space that compaction could reclaim.
+ */
+class Compactor(files: Seq[String], dryRun: Boolean)
+  extends AtomicTask[Unit](if (dryRun) "Compaction estimate" else "Compaction") {
+
+  private def exists(file: String) = new File(file.split("#")(0)).exists()
+
+  override def run(): Unit = {
+    var reclaimed = 0L
+    for ((file, i) <- files.zipWithIndex;
+         if exists(file) && shouldContinue(i * 100.0 / files.size)) {
+      if (dryRun) {
+        val (stats, usable) = KCCompaction.estimate(file)
+        logResult(stats.toString)
+        val reclaimable = Math.max(0L, stats.size - stats.payload)
+        reclaimed += reclaimable
+        logResult(s"Up to $reclaimable bytes could be reclaimed")
+        if (usable < stats.size) {
+          logResult(s"Warning: only $usable bytes of disk space available for the copy")
+        }
+      } else {
+        log(s"Compacting $file")
+        val (before, after) = KCCompaction.compact(file)
+        logResult(s"Before: $before")
+        logResult(s"After: $after")
+        reclaimed += before.size - after.size
+      }
+    }
+    if (dryRun) {
+      logResult(s"In total, up to $reclaimed bytes could be reclaimed")
+    } else {
+      logResult(s"In total, $reclaimed bytes were reclaimed")
+    }
+  }
+}
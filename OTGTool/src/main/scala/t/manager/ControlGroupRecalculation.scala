@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.manager
+
+import java.io.{File, FileWriter, PrintWriter}
+import java.nio.charset.StandardCharsets
+import java.security.MessageDigest
+
+import t._
+import t.db._
+import t.db.file.PFoldValueBuilder
+import t.db.kyotocabinet.KCSeriesDB
+import t.model.sample.CoreParameter
+import t.util.Parallel
+
+import scala.io.Source
+
+object ControlGroupRecalculation {
+  val defaultThreads: Int = Math.max(1, Runtime.getRuntime.availableProcessors - 1)
+
+  /**
+   * File that records the control groups completed so far by an interrupted
+   * recalculation of a batch.
+   */
+  def progressFile(config: BaseConfig, batch: String): File =
+    new File(s"${config.data.dir}/recalculate_$batch.progress")
+
+  /**
+   * A digest of everything that the recalculated values depend on: the samples with
+   * their attributes, the probes and the fold computation mode.
+   */
+  def fingerprint(metadata: Metadata, probes: Iterable[Int], simpleLog2: Boolean): String = {
+    val md = MessageDigest.getInstance("SHA-256")
+    def add(s: String): Unit = {
+      md.update(s.getBytes(StandardCharsets.UTF_8))
+      md.update(0.toByte)
+    }
+    for (s <- metadata.samples.toSeq.sortBy(_.sampleId)) {
+      add(s.sampleId)
+      for ((a, v) <- metadata.sampleAttributes(s).map(x => (x._1.id, x._2)).sorted) {
+        add(a)
+        add(v)
+      }
+    }
+    add(probes.toSeq.sorted.mkString(","))
+    add(simpleLog2.toString)
+    md.digest.map("%02x".format(_)).mkString
+  }
+
+  /**
+   * The results of one control group, ready to be written.
+   */
+  private case class GroupResult(key: String,
+      folds: Seq[(Sample, Map[Int, PExprValue])],
+      timeSeries: Iterable[OTGSeries], doseSeries: Iterable[OTGSeries])
+}
+
+/**
+ * Progress of a recalculation, recorded as one completed control group per line.
+ * The first line holds the fingerprint of the data being recalculated. A file with a
+ * different fingerprint was left by a recalculation of other data, and is discarded.
+ */
+class RecalculationProgress(val file: File, fingerprint: String) {
+  private val header = "#" + fingerprint
+
+  /**
+   * The control groups that were completed by earlier runs.
+   */
+  val done: Set[String] =
+    if (file.exists()) {
+      val source = Source.fromFile(file)
+      val lines = try {
+        source.getLines.filter(_.nonEmpty).toVector
+      } finally {
+        source.close()
+      }
+      if (lines.headOption == Some(header)) {
+        lines.tail.toSet
+      } else {
+        println(s"Discarding $file, which was written for different data")
+        file.delete()
+        Set()
+      }
+    } else {
+      Set()
+    }
+
+  private var out: PrintWriter = null
+
+  def record(key: String): Unit = synchronized {
+    if (out == null) {
+      val isNew = !file.exists()
+      file.getAbsoluteFile.getParentFile.mkdirs()
+      out = new PrintWriter(new FileWriter(file, true))
+      if (isNew) {
+        out.println(header)
+      }
+    }
+    out.println(key)
+    out.flush()
+  }
+
+  def close(): Unit = synchronized {
+    if (out != null) {
+      out.close()
+      out = null
+    }
+  }
+
+  /**
+   * Close and remove the file once the recalculation has completed.
+   */
+  def delete(): Unit = synchronized {
+    close()
+    file.delete()
+  }
+}
+
+/**
+ * Recomputes fold values and time and dose series for every control group of a batch.
+ * Control groups are independent, so they are computed in parallel by a bounded pool of
+ * workers. Each worker reads the absolute values of a group, computes the folds and builds
+ * the series points from them in memory. All database writes happen on the task's own
+ * thread, so that each database has a single writer, as KCDBRegistry requires.
+ * Completed groups are recorded in a progress file, so that an interrupted
+ * recalculation of the same data resumes after the groups that were already written.
+ */
+class ControlGroupRecalculation(config: BaseConfig, factory: Factory, batch: String,
+    metadata: Metadata, probes: Iterable[Int], simpleLog2: Boolean,
+    threads: Int = ControlGroupRecalculation.defaultThreads)(implicit mc: MatrixContext)
+  extends AtomicTask[Unit]("Recalculate folds and series") {
+  import ControlGroupRecalculation._
+
+  private def groupKey(group: (List[Sample], List[Sample])): String =
+    metadata.sampleAttribute((group._1 ++ group._2).head, CoreParameter.ControlTreatment).get
+
+  private def compute(reader: MatrixDBReader[PExprValue],
+      group: (List[Sample], List[Sample])): GroupResult = {
+    val (treated, controls) = group
+    val md = factory.filteredMetadata(metadata, treated ++ controls)
+    val data = new DBColumnExpressionData(reader, md.samples, probes) {
+      override def logEvent(msg: String) { }
+    }
+    val foldData = if (simpleLog2) {
+      new Log2Data(data)
+    } else {
+      new PFoldValueBuilder(md, data)
+    }
+    val pmap = mc.probeMap
+    val folds = (for {
+      (sample, values) <- foldData.samplesAndData
+    } yield sample -> (Map() ++ values.iterator.map { case (p, (v, c, pv)) =>
+      pmap.pack(p) -> PExprValue(v, pv, c)
+    })).toVector
+
+    val foldReader = new MemoryExtMatrixDBReader(Map() ++ folds.map(f => f._1.sampleId -> f._2))
+    GroupResult(groupKey(group), folds,
+      config.timeSeriesBuilder.makeNew(foldReader, md, treated),
+      config.doseSeriesBuilder.makeNew(foldReader, md, treated))
+  }
+
+  private def writeSeries(db: KCSeriesDB[OTGSeries], series: Iterable[OTGSeries]): Unit = {
+    //Grouping by probe gives better write performance
+    for (ss <- series.groupBy(_.probe).values; s <- ss) {
+      db.addPoints(s)
+    }
+  }
+
+  override def run(): Unit = {
+    val progress = new RecalculationProgress(progressFile(config, batch),
+      fingerprint(metadata, probes, simpleLog2))
+    val done = progress.done
+    val groups = metadata.treatedControlGroups(metadata.samples).filter(g => !done.contains(groupKey(g)))
+    if (done.nonEmpty) {
+      log(s"Resuming: ${done.size} control groups were already recalculated")
+    }
+    val total = groups.size
+    log(s"Recalculating $total control groups with $threads threads")
+
+    val reader = config.data.absoluteDBReader
+    var foldDB: MatrixDBWriter[PExprValue] = null
+    var timeDB: KCSeriesDB[OTGSeries] = null
+    var doseDB: KCSeriesDB[OTGSeries] = null
+
+    try {
+      foldDB = config.data.extWriter(config.data.foldDb)
+      timeDB = KCSeriesDB[OTGSeries](config.data.timeSeriesDb, true, config.timeSeriesBuilder, false)
+      doseDB = KCSeriesDB[OTGSeries](config.data.doseSeriesDb, true, config.doseSeriesBuilder, false)
+
+      var nvalues = 0
+      var n = 0
+      val written = Parallel.computeAndWrite(groups, threads,
+          continue = n => shouldContinue(100.0 * n / total))(compute(reader, _))(r => {
+        for ((sample, values) <- r.folds) {
+          foldDB.writeMany(sample, values)
+          nvalues += values.size
+        }
+        writeSeries(timeDB, r.timeSeries)
+        writeSeries(doseDB, r.doseSeries)
+        progress.record(r.key)
+        n += 1
+        log(s"Control group ${r.key} recalculated ($n/$total)")
+      })
+
+      if (written == total) {
+        logResult(s"$nvalues fold values written for $total control groups")
+        progress.delete()
+      } else {
+        logResult(s"Stopped after $written of $total control groups. Run again to resume.")
+      }
+    } finally {
+      progress.close()
+      if (foldDB != null) foldDB.release()
+      if (timeDB != null) timeDB.release()
+      if (doseDB != null) doseDB.release()
+      reader.release()
+    }
+  }
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.manager
+
+import java.io.File
+import java.util.BitSet
+import java.util.concurrent.Executors
+
+import t._
+import t.db.MatrixContext
+import t.db.kyotocabinet.{KCIndexDB, KCSeriesDB}
+import t.db.kyotocabinet.chunk.KCChunkMatrixDB
+import t.model.sample.OTGAttribute.Compound
+import t.sparql.BatchStore
+import t.util.DoThenClose._
+
+import scala.collection.mutable
+import scala.concurrent.duration.Duration
+import scala.concurrent.{Await, ExecutionContext, Future}
+
+/**
+ * Integrity check CLI
+ */
+object IntegrityChecker extends ManagerTool {
+  val defaultMaxExamples = 20
+  val defaultThreads: Int = Math.max(2, Runtime.getRuntime.availableProcessors)
+
+  def apply(args: Seq[String])(implicit context: Context): Unit = {
+    if (args.size > 0 && args(0) == "help") {
+      showHelp()
+    } else {
+      val repair = booleanOption(args, "-repair")
+      val maxExamples = intOption(args, "-maxExamples").getOrElse(defaultMaxExamples)
+      startTaskRunner(new IntegrityChecker(context, repair, maxExamples))
+    }
+  }
+
+  def showHelp(): Unit = {
+    println("Usage: integrity [-repair] [-maxExamples n]")
+    println(" Checks the consistency of the RDF, sample and probe index, matrix and series stores.")
+    println(" With -repair, orphaned records are removed. Repair is refused while an interrupted")
+    println(" import or recalculation has not been resumed or removed.")
+  }
+
+  /**
+   * Journals of interrupted imports and progress files of interrupted recalculations
+   * in a data directory. While these exist, the stores are expected to be inconsistent,
+   * and records that look orphaned may still be needed to resume.
+   */
+  def unfinishedWork(dir: String): Seq[File] = {
+    val files = Option(new File(dir).listFiles).map(_.toSeq).getOrElse(Seq())
+    files.filter(f => {
+      val n = f.getName
+      (n.startsWith("import_") && n.endsWith(".journal")) ||
+        (n.startsWith("recalculate_") && n.endsWith(".progress"))
+    }).sortBy(_.getName)
+  }
+
+  def codes(xs: Iterator[Int]): BitSet = {
+    val r = new BitSet
+    xs.foreach(r.set)
+    r
+  }
+
+  def minus(a: BitSet, b: BitSet): BitSet = {
+    val r = a.clone.asInstanceOf[BitSet]
+    r.andNot(b)
+    r
+  }
+
+  def bits(b: BitSet): Iterator[Int] =
+    Iterator.iterate(b.nextSetBit(0))(i => b.nextSetBit(i + 1)).takeWhile(_ >= 0)
+
+  /**
+   * Remove the chunks of orphaned samples from a matrix.
+   */
+  def removeSamples(db: KCChunkMatrixDB, orphans: BitSet): Unit =
+    db.deleteSampleCodes(bits(orphans).toSeq)
+}
+
+/**
+ * Comparison of the sample codes found in each store with the samples in RDF.
+ */
+class SampleConsistency(rdf: BitSet, sampleIndex: BitSet, expr: BitSet, folds: BitSet) {
+  import IntegrityChecker.minus
+
+  val orphanIDs = minus(sampleIndex, rdf)
+  val missingExpr = minus(rdf, expr)
+  val missingFolds = minus(rdf, folds)
+  val orphanExpr = minus(expr, rdf)
+  val orphanFolds = minus(folds, rdf)
+}
+
+/**
+ * Discrepancies found by an integrity check.
+ * All discrepancies are counted, but only a bounded number of examples of each kind is kept.
+ */
+class Discrepancies(maxExamples: Int) {
+  private val counts = mutable.LinkedHashMap[String, Long]()
+  private val examples = mutable.Map[String, Vector[String]]()
+
+  def add(kind: String, example: => String): Unit = synchronized {
+    val n = counts.getOrElse(kind, 0L)
+    counts(kind) = n + 1
+    if (n < maxExamples) {
+      examples(kind) = examples.getOrElse(kind, Vector()) :+ example
+    }
+  }
+
+  def add(kind: String, count: Long, someExamples: Seq[String]): Unit = synchronized {
+    if (count > 0) {
+      counts(kind) = counts.getOrElse(kind, 0L) + count
+      examples(kind) = (examples.getOrElse(kind, Vector()) ++ someExamples).take(maxExamples)
+    }
+  }
+
+  def isEmpty: Boolean = synchronized { counts.isEmpty }
+
+  def count(kind: String): Long = synchronized { counts.getOrElse(kind, 0L) }
+
+  def summary: Seq[String] = synchronized {
+    counts.toSeq.map { case (kind, n) =>
+      s"$kind: $n (e.g. ${examples.getOrElse(kind, Vector()).mkString(", ")})"
+    }
+  }
+}
+
+/**
+ * Checks the consistency of all stores: the RDF samples, the sample, probe and enum
+ * indexes, the absolute value and fold matrices and the time and dose series.
+ * The stores are scanned in parallel. Sample and probe codes are collected in bitsets
+ * (codes are assigned densely from 0), so that sets are compared without holding
+ * sample or probe identifiers in memory. Only a bounded number of examples is kept
+ * for each kind of discrepancy.
+ * With repair, orphaned records are removed: sample IDs and matrix data of samples that
+ * are not in RDF, and series of unknown probes or compounds. Missing data and unused enum
+ * values are only reported, since they can only be fixed by reinserting data.
+ * Repair is refused while there is unfinished work (see IntegrityChecker.unfinishedWork).
+ */
+class IntegrityChecker(context: Context, repair: Boolean, maxExamples: Int,
+    threads: Int = IntegrityChecker.defaultThreads)
+  extends AtomicTask[Unit]("Integrity check") {
+
+  def config = context.config
+  def data = config.data
+
+  import IntegrityChecker._
+
+  val found = new Discrepancies(maxExamples)
+
+  /**
+   * Whether repair is actually done. It is refused when there is unfinished work.
+   */
+  @volatile private var repairing = false
+
+  private def indexCodes(file: String): BitSet = {
+    val db = KCIndexDB(file, false)
+    doThenClose(db)(db => {
+      val r = new BitSet
+      db.foreachEntry((_, code) => r.set(code))
+      r
+    })
+  }
+
+  /**
+   * Look up the identifiers of some codes in an index.
+   */
+  private def names(file: String, wanted: Seq[Int]): Seq[String] = {
+    if (wanted.isEmpty) {
+      return Seq()
+    }
+    val lookup = wanted.toSet
+    val r = mutable.Map[Int, String]()
+    val db = KCIndexDB(file, false)
+    doThenClose(db)(db => {
+      db.foreachEntry((k, code) => if (lookup.contains(code)) r(code) = k)
+    })
+    wanted.map(c => r.getOrElse(c, s"[$c]"))
+  }
+
+  private def report(kind: String, diff: BitSet, file: String = data.sampleIndex): Unit =
+    found.add(kind, diff.cardinality, names(file, bits(diff).take(maxExamples).toVector))
+
+  /**
+   * Codes of the samples in RDF, batch by batch.
+   */
+  private def rdfSamples(): BitSet = {
+    val r = new BitSet
+    val bs = new BatchStore(config.triplestoreConfig)
+    val db = KCIndexDB(data.sampleIndex, false)
+    doThenClose(db)(db => {
+      for (batch <- bs.getList()) {
+        val ids = bs.getSamples(batch).toSeq
+        val known = db.getAll(ids)
+        for (id <- ids) {
+          known.get(id) match {
+            case Some(code) => r.set(code)
+            case None => found.add("RDF samples without a sample ID", s"$batch/$id")
+          }
+        }
+      }
+    })
+    r
+  }
+
+  private def matrixSamples(file: String)(implicit mc: MatrixContext): BitSet = {
+    val db = KCChunkMatrixDB(file, false)
+    try {
+      db.sampleCodes
+    } finally {
+      db.release()
+    }
+  }
+
+  /**
+   * Check (and optionally remove) series whose probe or compound is unknown.
+   */
+  private def checkSeries(file: String, builder: OTGSeriesBuilder, probes: BitSet,
+      compounds: BitSet)(implicit mc: MatrixContext): Unit = {
+    val db = KCSeriesDB[OTGSeries](file, repairing, builder, false)
+    try {
+      val removed = db.scanKeys((probe, sampleClass) => {
+        val compound = builder.compoundCode(sampleClass)
+        val unknownProbe = !probes.get(probe)
+        val unknownCompound = !compounds.get(compound)
+        if (unknownProbe) {
+          found.add(s"Series with unknown probes in $file", s"probe $probe")
+        }
+        if (unknownCompound) {
+          found.add(s"Series with unknown compounds in $file", s"compound $compound")
+        }
+        repairing && (unknownProbe || unknownCompound)
+      })
+      if (removed > 0) {
+        log(s"Removed $removed series from $file")
+      }
+    } finally {
+      db.release()
+    }
+  }
+
+  /**
+   * Report enum values that no sample in RDF uses.
+   */
+  private def checkEnums(): Unit = {
+    val standard = (config.timeSeriesBuilder.standardEnumValues ++
+      config.doseSeriesBuilder.standardEnumValues).toSet
+    val enums = KCIndexDB(data.enumIndex, false)
+    val used = config.timeSeriesBuilder.enums.map(e =>
+      e -> context.sampleStore.allValuesForSampleAttribute(e).toSet).toMap
+    doThenClose(enums)(enums => {
+      for (e <- config.timeSeriesBuilder.enums; (value, _) <- enums.enumMap(e);
+           if !used(e).contains(value) && !standard.contains((e, value))) {
+        found.add("Unused enum values", s"$e:$value")
+      }
+    })
+  }
+
+  private def await[T](f: Future[T]): T = Await.result(f, Duration.Inf)
+
+  override def run(): Unit = {
+    implicit val mc = context.matrix
+    val unfinished = unfinishedWork(data.dir)
+    repairing = repair && unfinished.isEmpty
+    if (repair && !repairing) {
+      log("Not repairing, since an import or recalculation is unfinished: " +
+        unfinished.map(_.getName).mkString(", ") + ". Resume or remove it first.")
+    }
+    val pool = Executors.newFixedThreadPool(threads)
+    implicit val ec = ExecutionContext.fromExecutorService(pool)
+
+    try {
+      log("Scanning stores")
+      val sampleIndex = Future { indexCodes(data.sampleIndex) }
+      val probeIndex = Future { indexCodes(data.probeIndex) }
+      val rdf = Future { rdfSamples() }
+      val expr = Future { matrixSamples(data.exprDb) }
+      val folds = Future { matrixSamples(data.foldDb) }
+      val compounds = Future {
+        val db = KCIndexDB(data.enumIndex, false)
+        doThenClose(db)(db => codes(db.enumMap(Compound.id).values.iterator))
+      }
+      val enums = Future { checkEnums() }
+
+      val series = for {
+        probes <- probeIndex
+        cs <- compounds
+        _ <- Future.sequence(Seq(
+          Future { checkSeries(data.timeSeriesDb, config.timeSeriesBuilder, probes, cs) },
+          Future { checkSeries(data.doseSeriesDb, config.doseSeriesBuilder, probes, cs) }))
+      } yield ()
+
+      val c = new SampleConsistency(await(rdf), await(sampleIndex), await(expr), await(folds))
+      report("Sample IDs not in RDF", c.orphanIDs)
+      report("RDF samples without absolute values", c.missingExpr)
+      report("RDF samples without fold values", c.missingFolds)
+      report("Absolute value data for samples not in RDF", c.orphanExpr)
+      report("Fold value data for samples not in RDF", c.orphanFolds)
+      await(enums)
+      await(series)
+
+      if (repairing && shouldContinue(90)) {
+        repairMatrix(data.exprDb, c.orphanExpr)
+        repairMatrix(data.foldDb, c.orphanFolds)
+        repairSampleIDs(c.orphanIDs)
+      }
+    } finally {
+      pool.shutdownNow()
+    }
+
+    if (found.isEmpty) {
+      logResult("No problems found")
+    } else {
+      for (s <- found.summary) {
+        log(s)
+        logResult(s)
+      }
+    }
+  }
+
+  private def repairMatrix(file: String, orphans: BitSet)(implicit mc: MatrixContext): Unit = {
+    if (!orphans.isEmpty) {
+      val db = KCChunkMatrixDB(file, true)
+      try {
+        removeSamples(db, orphans)
+        log(s"Removed data for ${orphans.cardinality} samples from $file")
+      } finally {
+        db.release()
+      }
+    }
+  }
+
+  private def repairSampleIDs(orphans: BitSet): Unit = {
+    if (!orphans.isEmpty) {
+      val db = KCIndexDB(data.sampleIndex, true)
+      doThenClose(db)(db => {
+        val ids = mutable.ArrayBuffer[String]()
+        db.foreachEntry((id, code) => if (orphans.get(code)) ids += id)
+        db.remove(ids)
+        log(s"Removed ${ids.size} sample IDs")
+      })
+    }
+  }
+}
@@ -71,7 +71,7 @@ object Manager extends CmdLineOptions {
 
   protected def showHelp() {
     println("Please supply one of the following commands:")
-    println(" batch, instance, platform, matrix")
+    println(" batch, instance, platform, matrix, integrity, compact")
   }
 
   protected def handleArgs(args: Array[String])(implicit context: Context) {
@@ -92,6 +92,8 @@ object Manager extends CmdLineOptions {
       case "instance" => InstanceManager(args.drop(1))
       case "platform" => PlatformManager(args.drop(1))
       case "matrix"   => MatrixManager(args.drop(1))
+      case "integrity" => IntegrityChecker(args.drop(1))
+      case "compact"  => Compactor(args.drop(1))
       case _ => showHelp()
     }
   }
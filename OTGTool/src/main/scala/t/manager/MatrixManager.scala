@@ -2,6 +2,8 @@ package t.manager
 
 import t.Context
 import t.db._
+import t.db.kyotocabinet.chunk.{ChunkCopy, ChunkFormat, KCChunkIndexDB, KCChunkMatrixDB}
+import t.global.KCDBRegistry
 import t.sparql.{BatchStore, SampleClassFilter}
 
 import scala.collection.JavaConverters._
@@ -22,32 +24,6 @@ object MatrixManager extends ManagerTool {
       context.sampleStore.samples(SampleClassFilter(), sf)
     }
 
-    def matcopy[E >: Null <: ExprValue](from: MatrixDBReader[E],
-                                        batch: Option[String],
-                                        getDB: () => MatrixDBWriter[PExprValue],
-                                        formVal: E => FoldPExpr,
-                                        label: String)(implicit mat: MatrixContext) {
-      val allProbes = from.sortProbes(mat.probeMap.keys)
-      def allSamples = from.sortSamples(mat.sampleMap.tokens.map(Sample(_)))
-
-      val useSamples = batch.map(samplesInBatch).getOrElse(allSamples)
-
-      for (ss <- useSamples.grouped(50)) {
-        val vs = from.valuesInSamples(ss, allProbes, true)
-        val svs = Map() ++ (ss zip vs)
-        val raw = new ColumnExpressionData {
-          val samples = ss.toArray
-          def probes = allProbes.map(mat.probeMap.unpack)
-          def data(s: Sample) = Map() ++
-            svs(s).filter(!_.isPadding).map(v => v.probe -> formVal(v))
-        }
-        val t = new SimpleValueInsert(getDB, raw).
-          insert(s"$label")
-        TaskRunner.runThenFinally(t)(())
-        println(s"$ss ($label)")
-      }
-    }
-
     if (args.size < 1) {
       showHelp()
     } else {
@@ -63,26 +39,113 @@ object MatrixManager extends ManagerTool {
           //Otherwise, all batches are copied.
           val batch = stringOption(args, "-batch")
 
+          //Chunks are written in the destination DB's format, unless one is specified here
+          val format = stringOption(args, "-format").map(ChunkFormat(_))
+          val threads = intOption(args, "-threads").getOrElse(ChunkCopy.defaultThreads)
+          val verify = booleanOption(args, "-verify")
+
+          implicit val mat = context.matrix
+          val samples = batch.map(b => samplesInBatch(b).flatMap(_.getDbCode).toSet)
+
+          for ((fromFile, toFile) <- Seq((config.data.foldDb, toDConfig.foldDb),
+            (config.data.exprDb, toDConfig.exprDb))) {
+            val from = KCChunkMatrixDB(fromFile, false)
+            try {
+              val to = KCChunkMatrixDB(toFile, true)
+              try {
+                format.foreach(to.setFormat)
+                println(s"Copy $fromFile to $toFile")
+                val copier = new ChunkCopy(from, to, threads)
+                copier.copy(samples)
+                if (verify) {
+                  val mismatches = copier.verify(samples)
+                  if (mismatches.nonEmpty) {
+                    throw new Exception(s"${mismatches.size} samples were not copied correctly to $toFile")
+                  }
+                }
+              } finally {
+                to.release()
+              }
+            } finally {
+              from.release()
+            }
+          }
+
+        case "rebuildIndex" =>
           implicit val mat = context.matrix
+          for (file <- Seq(config.data.exprDb, config.data.foldDb)) {
+            withChunkDB(file) { (db, idx) =>
+              println(s"Rebuilding chunk index for $file")
+              db.rebuildIndex(idx)
+            }
+          }
 
-          matcopy[PExprValue](config.data.foldsDBReader(mat),
-              batch,
-            () => toDConfig.extWriter(toDConfig.foldDb),
-            v => (v.value, v.call, v.p),
-            "Insert folds")
+        case "verifyIndex" =>
+          implicit val mat = context.matrix
+          for (file <- Seq(config.data.exprDb, config.data.foldDb)) {
+            withChunkDB(file) { (db, idx) =>
+              println(s"Verifying chunk index for $file")
+              val problems = db.verifyIndex(idx)
+              if (problems.isEmpty) {
+                println("The index is consistent")
+              } else {
+                problems.foreach(println)
+                println("Please rebuild the index with: matrix rebuildIndex")
+              }
+            }
+          }
 
-          matcopy[PExprValue](mat.absoluteDBReader,
-              batch,
-            () => toDConfig.extWriter(toDConfig.exprDb),
-            v => (v.value, v.call, 0.0),
-            "Insert absolute values")
+        case "convert" =>
+          //E.g. compact:f32:none for absolute values and compact:f32:f32 for folds.
+          //Use compact:f64:f64 for a lossless conversion.
+          val format = ChunkFormat(require(stringOption(args, "-format"),
+            "Please specify a chunk format with -format (legacy, compact:{f32|f64}:{f32|f64|none})"))
+          val files = stringOption(args, "-db") match {
+            case Some("expr") => Seq(config.data.exprDb)
+            case Some("fold") => Seq(config.data.foldDb)
+            case _ => Seq(config.data.exprDb, config.data.foldDb)
+          }
+          implicit val mat = context.matrix
+          for (file <- files) {
+            val db = openChunkDB(file)
+            try {
+              println(s"Converting $file from ${db.format} to $format")
+              val (before, after) = db.convertFormat(format)
+              println(s"$file: $before bytes -> $after bytes")
+            } finally {
+              db.release()
+            }
+          }
 
         case _ => showHelp()
       }
     }
   }
 
+  /**
+   * Open a chunk matrix DB for writing, without its index.
+   */
+  private def openChunkDB(file: String)(implicit mat: MatrixContext): KCChunkMatrixDB = {
+    val db = KCDBRegistry.get(file, true).getOrElse(throw new Exception(s"Unable to open $file"))
+    new KCChunkMatrixDB(db, true)
+  }
+
+  /**
+   * Open a chunk matrix DB, without its own index, together with its index DB for writing.
+   */
+  private def withChunkDB(file: String)(f: (KCChunkMatrixDB, KCChunkIndexDB) => Unit)
+                         (implicit mat: MatrixContext): Unit = {
+    val matrix = openChunkDB(file)
+    val idx = KCChunkIndexDB(KCChunkIndexDB.fileFor(file), true)
+    try {
+      f(matrix, idx)
+    } finally {
+      idx.release()
+      matrix.release()
+    }
+  }
+
   def showHelp(): Unit = {
-    println("Please specify a command (copy)")
+    println("Please specify a command (copy, rebuildIndex, verifyIndex, convert)")
   }
 }
@@ -53,24 +53,32 @@ class PlatformManager(context: Context) {
           val platforms = new PlatformStore(config)
           val temp = tf.makeNew("TPLATFORM", "tsv")
           Converter.convert(file, temp.getAbsolutePath())
-          val defns = new PlatformDefFile(temp.getAbsolutePath()).records
-          for (d <- defns) {
-            checkValidIdentifier(d.id, "probe ID")
-          }
-          val total = defns.size.toDouble
+          val defFile = new PlatformDefFile(temp.getAbsolutePath())
+
+          //First pass: validate and count without keeping the records in memory
+          val total = defFile.withRecords(records => {
+            var n = 0
+            for (d <- records) {
+              checkValidIdentifier(d.id, "probe ID")
+              n += 1
+            }
+            n.toDouble
+          })
 
           val g = 1000
 
-          val (start, rest) = defns.splitAt(g)
-          platforms.redefine(title, comment, false, start)
-          var pcomp = 0d
-          val groups = rest.grouped(g)
-          while (groups.hasNext && shouldContinue(pcomp)) {
-            val tg = groups.next
-            val ttl = ProbeStore.recordsToTTL(tf, title, tg)
-            pcomp += g.toDouble * 100.0 / total
-            platforms.triplestore.addTTL(ttl, PlatformStore.context(title))
-          }
+          defFile.withRecords(records => {
+            val groups = records.grouped(g)
+            val start = if (groups.hasNext) groups.next else Seq()
+            platforms.redefine(title, comment, false, start.iterator)
+            var pcomp = 0d
+            while (groups.hasNext && shouldContinue(pcomp)) {
+              val tg = groups.next
+              pcomp += g.toDouble * 100.0 / total
+              platforms.triplestore.addStatements(ProbeStore.recordStatements(tg),
+                PlatformStore.context(title))
+            }
+          })
         } finally {
           tf.dropAll()
         }
@@ -104,29 +112,23 @@ class PlatformManager(context: Context) {
       biological: Boolean): AtomicTask[Unit] =
     new AtomicTask[Unit]("Add platform (RDF)") {
       override def run(): Unit = {
-        val defns = new PlatformDefFile(file).records
         val platforms = new PlatformStore(config)
-        platforms.redefine(title, TRDF.escape(comment), biological, defns)
+        new PlatformDefFile(file).withRecords(defns =>
+          platforms.redefine(title, TRDF.escape(comment), biological, defns))
       }
     }
 
   def addProbeIDs(title: String): AtomicTask[Unit] =
     new AtomicTask[Unit]("Add probe IDs") {
       override def run(): Unit = {
-        var newProbes, existingProbes: Int = 0
-        val probes = new ProbeStore(config.triplestoreConfig).forPlatform(title)
+        val probes = new ProbeStore(config.triplestoreConfig).forPlatform(title).toVector.distinct
         val dbfile = config.data.probeIndex
         val db = KCIndexDB(dbfile, true)
         doThenClose(db)(db => {
           log(s"Opened $dbfile for writing")
-          for (p <- probes) {
-            db.get(p) match {
-              case Some(id) => existingProbes += 1
-              case None =>
-                db.put(p)
-                newProbes += 1
-            }
-          }
+          val existingProbes = db.getAll(probes).size
+          db.putAll(probes)
+          val newProbes = probes.size - existingProbes
           logResult(s"$newProbes new probes added, $existingProbes probes already existed")
         })
       }
@@ -186,7 +188,6 @@ object PlatformManager extends ManagerTool {
               "Please specify a title with -title")
             val inputFile = require(stringOption(args, "-input"),
               "Please specify a definition file with -input")
-            val defns = new PlatformDefFile(inputFile).records
             val comment = stringOption(args, "-comment").getOrElse("")
             startTaskRunner(manager.add(title, comment, inputFile, pfFormat))
           case "delete" =>
@@ -20,7 +20,9 @@
 package t.platform
 
 import scala.io.Source
+import org.eclipse.rdf4j.model.{IRI, Value}
 import t.db.kyotocabinet.KCIndexDB
+import t.sparql.TRDF
 
 import t.platform.affy.{GOMF, GOBP, GOCC, Entrez}
 
@@ -55,6 +57,16 @@ case class ProbeRecord(id: String, annotations: Map[String, Iterable[String]]) {
       (predicate, objct) <- ProbeRecord.asRdfTerms(k, v);
       item = s"$predicate $objct"
     ) yield item).mkString("; ")
+
+  /**
+   * The annotations as (predicate, object) pairs of RDF values.
+   */
+  def annotationTerms: Iterator[(IRI, Value)] =
+    for {
+      (k, vs) <- annotations.iterator
+      v <- vs
+      (predicate, objct) <- ProbeRecord.asRdfTerms(k, v)
+    } yield (TRDF.termIRI(predicate), TRDF.term(objct))
 }
 
 /**
@@ -64,8 +76,18 @@ case class ProbeRecord(id: String, annotations: Map[String, Iterable[String]]) {
  */
 class PlatformDefFile(file: String) {
 
-  val records: Iterable[ProbeRecord] =
-    Source.fromFile(file).getLines.toVector.flatMap(parseProbe(_))
+  /**
+   * Parse the records in a single pass. Records are produced lazily and
+   * the file is closed when f returns.
+   */
+  def withRecords[T](f: Iterator[ProbeRecord] => T): T = {
+    val source = Source.fromFile(file)
+    try {
+      f(source.getLines.flatMap(parseProbe(_)))
+    } finally {
+      source.close()
+    }
+  }
 
   def parseProbe(data: String): Option[ProbeRecord] = {
     val s = data.split("\t")
@@ -90,21 +112,23 @@ object PlatformDefFile {
     idxDb match {
       case Some(db) =>
         try {
-          for (r <- new PlatformDefFile(args(0)).records) {
-            db.get(r.id) match {
-              case Some(i) =>
-              case None =>
-                db.put(r.id)
-                println("Insert " + r.id)
-            }
-          }
+          new PlatformDefFile(args(0)).withRecords(records =>
+            for (r <- records) {
+              db.get(r.id) match {
+                case Some(i) =>
+                case None =>
+                  db.put(r.id)
+                  println("Insert " + r.id)
+              }
+            })
         } finally {
           db.release
         }
       case None =>
-        for (r <- new PlatformDefFile(args(0)).records) {
-          println(s"tprobe:${r.id} ${r.annotationRDF}.")
-        }
+        new PlatformDefFile(args(0)).withRecords(records =>
+          for (r <- records) {
+            println(s"tprobe:${r.id} ${r.annotationRDF}.")
+          })
     }
   }
 }
@@ -18,8 +18,8 @@
  */
 
 package t.platform.affy
+import scala.collection.mutable.ArrayBuffer
 import scala.io._
-import scala.Vector
 
 /**
  * A tool for converting Affymetrix annotation files to the T
@@ -48,91 +48,132 @@ object Converter {
     convert(input, output)
   }
 
-  def loadColumns(input: String, requestColumns: IndexedSeq[AffyColumn]): Seq[Seq[String]] = {
-    val (columns, rawData) = loadRaw(input)
-    val offsets = requestColumns.map(r => columns.indexOf(r.title))
-    rawData.map(d => offsets.map(d(_)))
-  }
+  /**
+   * Load some columns from the data rows of an annotation file.
+   */
+  def loadColumns(input: String, requestColumns: IndexedSeq[AffyColumn]): Seq[Seq[String]] =
+    withRows(input)((columns, rows) => {
+      val offsets = requestColumns.map(r => columns.indexOf(r.title))
+      rows.map(d => offsets.map(d(_))).toVector
+    })
 
-  def loadRaw(input: String) = {
-     val data =
-      Source.fromFile(input).getLines.toVector.dropWhile(_.startsWith("#")).
-        map(l => rejoin(l.split(",").toList))
-    val columns = data(0).map(procItem).toArray
-    (columns, data.drop(1).map(_.map(procItem).toArray))
+  /**
+   * Read an annotation file in a single pass. Comment lines (starting with #)
+   * before the header are skipped. The rows are produced lazily and are only
+   * valid until f returns, when the file is closed.
+   * @param f function that receives the column titles and an iterator of data rows
+   */
+  def withRows[T](input: String)(f: (IndexedSeq[String], Iterator[Array[String]]) => T): T = {
+    val source = Source.fromFile(input)
+    try {
+      val lines = source.getLines.dropWhile(_.startsWith("#"))
+      if (!lines.hasNext) {
+        throw new Exception(s"No header line found in $input")
+      }
+      val columns = tokenize(lines.next).toVector
+      f(columns, lines.map(tokenize))
+    } finally {
+      source.close()
+    }
   }
 
   def convert(input: String, output: String): Unit = {
-    val (columns, rawData) = loadRaw(input)
-    val idColumnOffset = columns.indexOf(ProbeID.title)
-    if (idColumnOffset == -1) {
-      throw new Exception(s"ID column '${ProbeID.title}' not found in data")
-    }
-
     println(s"Writing output to $output")
-    val ps = new java.io.PrintStream(new java.io.FileOutputStream(output))
-    Console.withOut(ps) {
-      for (pline <- rawData) {
-        procLine(pline, columns, idColumnOffset)
-      }
+    val out = new java.io.PrintWriter(new java.io.BufferedWriter(new java.io.FileWriter(output)))
+    try {
+      withRows(input)((columns, rows) => {
+        val idColumnOffset = columns.indexOf(ProbeID.title)
+        if (idColumnOffset == -1) {
+          throw new Exception(s"ID column '${ProbeID.title}' not found in data")
+        }
+        val annotated = for {
+          (title, i) <- columns.zipWithIndex
+          c <- columnLookup.get(title)
+          if c.annotKey != None
+        } yield (i, c)
+
+        for (row <- rows) {
+          procLine(row, annotated, idColumnOffset, out)
+        }
+      })
+    } finally {
+      out.close()
     }
   }
 
-  def procLine(l: IndexedSeq[String], columns: IndexedSeq[String], idColumn: Int) {
+  /**
+   * Write the platform definition line for a single row.
+   * @param annotated offsets and definitions of the columns that produce annotations
+   */
+  def procLine(l: Array[String], annotated: Seq[(Int, AAffyColumn)], idColumn: Int,
+               out: java.io.PrintWriter) {
     val id = l(idColumn)
     if (id.startsWith(ignorePrefix)) {
       return //don't print this probe
     }
-    var out = Vector[String]()
-    var annotations = Vector[String]()
-    for (
-      i <- 0 until l.size; if columns.size > i; c = columnLookup.get(columns(i));
-      field = l(i)
-    ) {
-      if (idColumn == i) {
-        out :+= s"$field"
-      }
-      c match {
-        case None =>
-        case Some(c) =>
-          if (c.annotKey != None) {
-            c.annotations(field).foreach { annotations :+= _ }
-          }
+    out.print(id)
+    out.print('\t')
+    var first = true
+    for {
+      (i, c) <- annotated
+      if i < l.length
+      a <- c.annotations(l(i))
+    } {
+      if (!first) {
+        out.print(',')
       }
+      out.print(a)
+      first = false
     }
-
-    out :+= annotations.mkString(",")
-    println(out.mkString("\t"))
+    out.println()
   }
 
-  // This is to re-join strings like "asdf, asdf","234, 234" which would incorrectly
-  // have been split into 4 (should be 2)
-  def rejoin(ss: List[String]): List[String] = {
-    ss match {
-      case Nil      => Nil
-      case s :: Nil => List(s)
-      //This case will match as many times as necessary to reconstruct the full string
-      case s :: t :: ts => if (s.startsWith("\"") &&
-        !s.endsWith("\"")) {
-        rejoin((s + "," + t) :: ts)
+  /**
+   * Split a line of comma-separated values into fields.
+   * A field that starts with a double quote may contain commas, and
+   * doubled quotes ("") inside it stand for a single quote.
+   * Fields are trimmed.
+   */
+  def tokenize(line: String): Array[String] = {
+    val fields = new ArrayBuffer[String](64)
+    val sb = new java.lang.StringBuilder
+    var quoted = false
+    var i = 0
+    val n = line.length
+    while (i < n) {
+      val c = line.charAt(i)
+      if (quoted) {
+        if (c != '"') {
+          sb.append(c)
+        } else if (i + 1 < n && line.charAt(i + 1) == '"') {
+          sb.append('"')
+          i += 1
+        } else {
+          quoted = false
+        }
+      } else if (c == ',') {
+        fields += sb.toString.trim
+        sb.setLength(0)
+      } else if (c == '"' && isBlank(sb)) {
+        sb.setLength(0)
+        quoted = true
       } else {
-        s :: rejoin(t :: ts)
+        sb.append(c)
       }
+      i += 1
     }
+    fields += sb.toString.trim
+    fields.toArray
   }
 
-  def procItem(x: String): String = {
-    val n = if (x.startsWith("\"")) {
-      x.substring(1)
-    } else {
-      x
-    }
-
-    val n2 = if (n.endsWith("\"")) {
-      n.substring(0, n.size - 1)
-    } else {
-      n
+  private def isBlank(sb: java.lang.StringBuilder): Boolean = {
+    var i = 0
+    while (i < sb.length) {
+      if (!Character.isWhitespace(sb.charAt(i))) {
+        return false
+      }
+      i += 1
     }
-    n2.trim
+    true
   }
 }
@@ -19,13 +19,12 @@
 
 package t.sparql
 
-import java.io._
 import java.util.Date
 
+import org.eclipse.rdf4j.model.Statement
 import Triplestore.tPrefixes
 import t.TriplestoreConfig
 import t.db._
-import t.util.TempFiles
 
 object BatchStore extends RDFClass {
   val defaultPrefix: String = s"$tRoot/batch"
@@ -33,22 +32,17 @@ object BatchStore extends RDFClass {
   val itemClass: String = "t:batch"
 
   /**
-   * Construct RDF data as a TTL file to represent the given metadata.
+   * RDF statements that define the given samples and their attributes.
    */
-  def metadataToTTL(md: Metadata, tempFiles: TempFiles, samples: Iterable[Sample]): File = {
-    val file = tempFiles.makeNew("metadata", "ttl")
-    val fout = new BufferedWriter(new FileWriter(file))
-    for (s <- samples) {
-      fout.write(s"<${SampleStore.defaultPrefix}/${s.identifier}>\n")
-      fout.write(s"  a <$tRoot/sample>; rdfs:label" + "\"" + s.identifier + "\"; \n")
-      val params = md.sampleAttributes(s).map(
-        p => s"<$tRoot/${p._1.id}> " + "\"" + TRDF.escape(p._2) + "\"")
-      fout.write(params.mkString(";\n  ") + ".")
-      fout.write("\n\n")
-    }
-
-    fout.close()
-    file
+  def metadataStatements(md: Metadata, samples: Iterable[Sample]): Iterator[Statement] = {
+    val sampleClass = TRDF.iri(s"$tRoot/sample")
+    for {
+      s <- samples.iterator
+      sample = TRDF.iri(s"${SampleStore.defaultPrefix}/${s.identifier}")
+      (predicate, obj) <- Iterator((TRDF.rdfType, sampleClass),
+        (TRDF.rdfsLabel, TRDF.literal(s.identifier))) ++
+        md.sampleAttributes(s).iterator.map(p => (TRDF.iri(s"$tRoot/${p._1.id}"), TRDF.literal(p._2)))
+    } yield TRDF.statement(sample, predicate, obj)
   }
 
   def context(title: String) = defaultPrefix + "/" + title
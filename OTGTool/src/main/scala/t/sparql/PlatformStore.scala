@@ -22,7 +22,6 @@ package t.sparql
 import t.{BaseConfig, TriplestoreConfig}
 import t.model.sample.{AttributeSet, OTGAttributeSet}
 import t.platform.{BioParameter, BioParameters, ProbeRecord}
-import t.util.TempFiles
 
 object PlatformStore extends RDFClass {
   def itemClass: String = "t:platform"
@@ -44,7 +43,7 @@ class PlatformStore(val config: TriplestoreConfig) extends ListManager(config) {
   def defaultPrefix = PlatformStore.defaultPrefix
 
   def redefine(name: String, comment: String, biological: Boolean,
-      definitions: Iterable[ProbeRecord]): Unit = {
+      definitions: Iterator[ProbeRecord]): Unit = {
     delete(name) //ensure probes are removed
     addWithTimestamp(name, comment)
 
@@ -52,14 +51,8 @@ class PlatformStore(val config: TriplestoreConfig) extends ListManager(config) {
       triplestore.update(s"$tPrefixes\n insert data { <$defaultPrefix/$name> $platformType $biologicalPlatform. }")
     }
 
-    val tempFiles = new TempFiles()
-    try {
-      for (g <- definitions.par.toList.grouped(1000)) {
-        val ttl = ProbeStore.recordsToTTL(tempFiles, name, g)
-        triplestore.addTTL(ttl, PlatformStore.context(name))
-      }
-    } finally {
-      tempFiles.dropAll
+    for (g <- definitions.grouped(1000)) {
+      triplestore.addStatements(ProbeStore.recordStatements(g), PlatformStore.context(name))
     }
   }
 
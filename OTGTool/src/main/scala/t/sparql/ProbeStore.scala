@@ -19,13 +19,12 @@
 
 package t.sparql
 
-import java.io._
+import org.eclipse.rdf4j.model.Statement
 
 import t.TriplestoreConfig
 import t.db.{DefaultBio, ProbeMap, Store}
 import t.platform._
 import t.sparql.secondary._
-import t.util.TempFiles
 
 object ProbeStore extends RDFClass {
   val defaultPrefix: String = s"$tRoot/probe"
@@ -34,28 +33,17 @@ object ProbeStore extends RDFClass {
 
   def probeAttributePrefix = tRoot
 
-  def recordsToTTL(tempFiles: TempFiles, platformName: String,
-                   records: Iterable[ProbeRecord]): File = {
-    val f = tempFiles.makeNew("probes", "ttl")
-    val fout = new BufferedWriter(new FileWriter(f))
-
-    val platform = s"<${PlatformStore.defaultPrefix}/$platformName>"
-
-    try {
-      fout.write(s"@prefix t:<$tRoot/>. \n")
-      fout.write("@prefix rdfs:<http://www.w3.org/2000/01/rdf-schema#>. \n")
-      for (p <- records) {
-        val probe = s"<$defaultPrefix/${p.id}>"
-        fout.write(s"$probe a $itemClass ; rdfs:label " + "\"" + p.id + "\" \n")
-        if (p.annotations.size > 0) {
-          fout.write("; " + p.annotationRDF)
-        }
-        fout.write(". \n")
-      }
-    } finally {
-      fout.close()
-    }
-    f
+  /**
+   * RDF statements that define the given probes.
+   */
+  def recordStatements(records: Iterable[ProbeRecord]): Iterator[Statement] = {
+    val probeClass = TRDF.termIRI(itemClass)
+    for {
+      p <- records.iterator
+      probe = TRDF.iri(s"$defaultPrefix/${p.id}")
+      (predicate, obj) <- Iterator((TRDF.rdfType, probeClass),
+        (TRDF.rdfsLabel, TRDF.literal(p.id))) ++ p.annotationTerms
+    } yield TRDF.statement(probe, predicate, obj)
   }
 
   /*
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.sparql
+
+import java.util.concurrent.ConcurrentHashMap
+
+import t.TriplestoreConfig
+import t.model.sample.Attribute
+
+object SampleAttributeCache {
+  /**
+   * Maximum number of samples kept in each cache.
+   */
+  val defaultMaxSamples = 200000
+
+  /**
+   * Number of samples fetched in each query.
+   */
+  val fetchSize = 500
+
+  private val caches = new ConcurrentHashMap[TriplestoreConfig, SampleAttributeCache]
+
+  /**
+   * The shared cache for the triplestore that a sample store is connected to.
+   */
+  def apply(sampleStore: SampleStore): SampleAttributeCache =
+    caches.computeIfAbsent(sampleStore.tsCon,
+      _ => new SampleAttributeCache(sampleStore, defaultMaxSamples))
+
+  /**
+   * Discard all cached attributes, e.g. after batch metadata was inserted, changed or deleted.
+   */
+  def invalidateAll(): Unit = {
+    caches.values.forEach(_.invalidate())
+  }
+}
+
+/**
+ * A read-through cache of sample attributes. Attributes are fetched in bulk
+ * for many samples at a time, and at most maxSamples samples are retained
+ * (least recently used samples are evicted first).
+ * All attributes of a sample are cached, independently of the attributes that were requested.
+ */
+class SampleAttributeCache(sampleStore: SampleStore, maxSamples: Int) {
+  import SampleAttributeCache._
+
+  private val data = new java.util.LinkedHashMap[DSampleId, Map[Attribute, String]](
+    16, 0.75f, true) {
+    override def removeEldestEntry(e: java.util.Map.Entry[DSampleId, Map[Attribute, String]]) =
+      size > maxSamples
+  }
+
+  def size: Int = synchronized { data.size }
+
+  def invalidate(): Unit = synchronized {
+    data.clear()
+  }
+
+  def invalidate(samples: Iterable[DSampleId]): Unit = synchronized {
+    for (s <- samples) {
+      data.remove(s)
+    }
+  }
+
+  private def cached(samples: Iterable[DSampleId]): Map[DSampleId, Map[Attribute, String]] =
+    synchronized {
+      Map() ++ samples.flatMap(s => Option(data.get(s)).map(s -> _))
+    }
+
+  /**
+   * Attributes for a sample. If they are not cached, attributes are fetched for the sample
+   * together with uncached samples from prefetch, in a single query.
+   * @param prefetch samples that are likely to be requested soon
+   */
+  def attributes(sample: DSampleId, prefetch: => Iterable[DSampleId]): Map[Attribute, String] = {
+    val hit = synchronized { Option(data.get(sample)) }
+    hit match {
+      case Some(r) => r
+      case None =>
+        val candidates = prefetch
+        val group = synchronized {
+          (Iterator(sample) ++ candidates.iterator.filter(s => s != sample && !data.containsKey(s))).
+            take(fetchSize).toVector
+        }
+        fetch(group).getOrElse(sample, Map())
+    }
+  }
+
+  /**
+   * Attributes for a number of samples. Samples that are not cached are fetched in bulk.
+   */
+  def attributes(samples: Iterable[DSampleId]): Map[DSampleId, Map[Attribute, String]] = {
+    val distinct = samples.toVector.distinct
+    val hits = cached(distinct)
+    val missing = distinct.filter(!hits.contains(_))
+    hits ++ missing.grouped(fetchSize).flatMap(fetch)
+  }
+
+  private def fetch(samples: Seq[DSampleId]): Map[DSampleId, Map[Attribute, String]] = {
+    val found = sampleStore.attributesForSamples(samples)
+    //Samples that were not found are also cached, to avoid querying for them again
+    val r = samples.map(s => s -> found.getOrElse(s, Map[Attribute, String]()))
+    synchronized {
+      for ((s, attribs) <- r) {
+        data.put(s, attribs)
+      }
+    }
+    Map() ++ r
+  }
+}
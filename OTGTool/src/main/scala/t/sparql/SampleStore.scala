@@ -204,6 +204,47 @@ class SampleStore(bc: BaseConfig) extends ListManager(bc.triplestoreConfig)
       multiFilter(s"?$fparam", fvalues.map("\"" + _ + "\"")))()
   }
 
+  /**
+   * Find all samples, treated and control, that belong to any of the given control groups
+   * (identified by their control treatment ID) and match the sample class filter,
+   * in a single query.
+   */
+  def samplesInControlGroups(controlTreatments: Iterable[String], sc: SampleClassFilter,
+                             sf: SampleFilter): Seq[Sample] = {
+    if (controlTreatments.isEmpty) {
+      Seq()
+    } else {
+      val values = controlTreatments.map("\"" + _ + "\"").mkString(" ")
+      sampleQuery(sc, sf).constrain(
+        s"VALUES ?${CoreParameter.ControlTreatment.id} { $values }")()
+    }
+  }
+
+  /**
+   * Find the samples that match a parameter constraint, together with all other samples
+   * (treated and control) in their control groups, in a single query.
+   * Only samples in batches that the sample filter admits are considered, also when
+   * finding the control groups.
+   * If no values are given, the parameter is not constrained.
+   */
+  def samplesWithControlGroups(sc: SampleClassFilter, fparam: String, fvalues: Iterable[String],
+                               sf: SampleFilter): Seq[Sample] = {
+    if (fvalues.isEmpty) {
+      sampleQuery(sc, sf)()
+    } else {
+      val ct = CoreParameter.ControlTreatment.id
+      val values = fvalues.map("\"" + _ + "\"").mkString(" ")
+      sampleQuery(sc, sf).constrain(
+        s"""{ SELECT DISTINCT ?$ct WHERE {
+           |    GRAPH ?batchGraph {
+           |      ?y a $itemClass; t:$fparam ?fvalue; t:$ct ?$ct.
+           |      VALUES ?fvalue { $values }
+           |    }
+           |    ${sf.standardSampleFilters}
+           |} }""".stripMargin)()
+    }
+  }
+
   def sampleClasses(sf: SampleFilter): Seq[Map[Attribute, String]] = {
     val hlPred = hlAttributes.filter(isPredicateAttribute)
 
@@ -319,6 +360,33 @@ class SampleStore(bc: BaseConfig) extends ListManager(bc.triplestoreConfig)
     }
   }
 
+  /**
+   * Get all attribute values for a number of samples in a single query.
+   * Samples that were not found are absent from the result.
+   */
+  def attributesForSamples(samples: Iterable[DSampleId]): Map[DSampleId, Map[Attribute, String]] = {
+    if (samples.isEmpty) {
+      Map()
+    } else {
+      val values = samples.map("\"" + _ + "\"").mkString(" ")
+      val attributePrefix = tRoot + "/"
+      val r = triplestore.multiQuery(s"""$tPrefixes
+                                        |SELECT ?l ?p ?v WHERE {
+                                        |  VALUES ?l { $values }
+                                        |  GRAPH ?batchGraph {
+                                        |    ?x a $itemClass; rdfs:label ?l; ?p ?v.
+                                        |    FILTER(STRSTARTS(STR(?p), "$attributePrefix"))
+                                        |  }
+                                        |}""".stripMargin)
+      val attributes = for {
+        Seq(sample, p, v) <- r
+        attr <- Option(bc.attributes.byId(p.substring(attributePrefix.length)))
+        if isPredicateAttribute(attr)
+      } yield (sample, attr, v)
+      attributes.groupBy(_._1).map(x => x._1 -> (Map() ++ x._2.map(y => y._2 -> y._3)))
+    }
+  }
+
   /**
    * Get all distinct values for an attribute inside specified SampleFilter
    */
@@ -19,6 +19,9 @@
 
 package t.sparql
 
+import org.eclipse.rdf4j.model.{IRI, Statement, Value}
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory
+
 trait RDFClass {
   def itemClass: String
   def defaultPrefix: String
@@ -60,4 +63,41 @@ object TRDF {
     }
     sb.toString
   }
+
+  val factory = SimpleValueFactory.getInstance
+
+  def iri(uri: String): IRI = factory.createIRI(uri)
+
+  def literal(s: String): Value = factory.createLiteral(s)
+
+  def statement(subject: IRI, predicate: IRI, obj: Value): Statement =
+    factory.createStatement(subject, predicate, obj)
+
+  /**
+   * Convert a term in the short form used when generating TTL/SPARQL
+   * (<http://...>, t:name, rdfs:label or "literal") into an RDF value.
+   * Literals are taken as they are, without interpreting escape sequences.
+   */
+  def term(t: String): Value = {
+    if (t.length >= 2 && t.startsWith("\"") && t.endsWith("\"")) {
+      literal(t.substring(1, t.length - 1))
+    } else {
+      termIRI(t)
+    }
+  }
+
+  def termIRI(t: String): IRI = {
+    if (t.startsWith("<") && t.endsWith(">")) {
+      iri(t.substring(1, t.length - 1))
+    } else if (t.startsWith("t:")) {
+      iri(s"$tRoot/${t.substring(2)}")
+    } else if (t.startsWith("rdfs:")) {
+      iri("http://www.w3.org/2000/01/rdf-schema#" + t.substring(5))
+    } else {
+      throw new Exception(s"Unable to convert RDF term: $t")
+    }
+  }
+
+  val rdfType: IRI = iri("http://www.w3.org/1999/02/22-rdf-syntax-ns#type")
+  val rdfsLabel: IRI = termIRI("rdfs:label")
 }
@@ -23,6 +23,7 @@ import java.io.Closeable
 import java.util.concurrent.{Executors, TimeoutException}
 
 import org.eclipse.rdf4j.common.iteration.Iteration
+import org.eclipse.rdf4j.model.Statement
 import org.eclipse.rdf4j.model.impl.SimpleValueFactory
 import org.eclipse.rdf4j.query.QueryLanguage
 import org.eclipse.rdf4j.repository.RepositoryConnection
@@ -37,6 +38,11 @@ object Triplestore {
   val executor = Executors.newCachedThreadPool()
   val executionContext = ExecutionContext.fromExecutor(executor)
 
+  /**
+   * Default number of statements per transaction when inserting statements.
+   */
+  val insertBatchSize = 50000
+
   val tPrefixes: String = """PREFIX purl:<http://purl.org/dc/elements/1.1/>
     |PREFIX rdf:<http://www.w3.org/1999/02/22-rdf-syntax-ns#>
     |PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>
@@ -135,6 +141,36 @@ abstract class Triplestore extends Closeable {
     }
   }
 
+  /**
+   * Insert RDF statements into a context. The statements are consumed lazily and
+   * added in transactions of at most batchSize statements each.
+   * @return the number of statements inserted
+   */
+  def addStatements(statements: Iterator[Statement], context: String,
+                    batchSize: Int = Triplestore.insertBatchSize): Int = {
+    if (isReadonly) {
+      println(s"Triplestore is read-only, ignoring data insertion into $context")
+      0
+    } else {
+      val ctx = TRDF.iri(context)
+      var count = 0
+      for (batch <- statements.grouped(batchSize)) {
+        conn.begin()
+        try {
+          conn.add(batch.asJava, ctx)
+          conn.commit()
+        } catch {
+          case e: Exception =>
+            conn.rollback()
+            throw e
+        }
+        count += batch.size
+      }
+      println(s"Inserted $count statements into $context")
+      count
+    }
+  }
+
   def simpleQueryNonQuiet(query: String): Vector[String] = simpleQuery(query, false)
 
   import scala.language.implicitConversions
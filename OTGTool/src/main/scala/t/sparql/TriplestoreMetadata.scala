@@ -27,9 +27,12 @@ import t.Factory
 import t.model.sample.CoreParameter._
 import t.model.sample.Attribute
 import t.model.sample.AttributeSet
+import t.model.SampleClass
 
 /**
  * Metadata from a triplestore.
+ * Sample attributes are read through the shared SampleAttributeCache, which fetches them
+ * for many samples at a time.
  * @param sampleStore The triplestore to be queried.
  * @param querySet the parameters to be obtained. The default case returns all parameters.
  */
@@ -41,10 +44,21 @@ class TriplestoreMetadata(sampleStore: SampleStore,
 
   override def samples: Iterable[Sample] = sampleStore.samples(SampleClassFilter(), sf)
 
+  protected def attributeCache: SampleAttributeCache = SampleAttributeCache(sampleStore)
+
+  /**
+   * The attributes to return for each sample, in order.
+   */
+  protected lazy val queryAttributes: Seq[Attribute] =
+    (if (querySet.isEmpty) attributeSet.getAll.asScala.toSeq else querySet.toSeq).
+      filter(_ != Batch)
+
+  //Samples whose attributes are fetched together with the first sample requested
+  private lazy val prefetchIds: Vector[DSampleId] = samples.map(_.sampleId).toVector
+
   override def sampleAttributes(s: Sample): Seq[(Attribute, String)] = {
-    sampleStore.parameterQuery(s.identifier, querySet).collect( {
-      case (sp, Some(s)) => (sp, s)
-    })
+    val attribs = attributeCache.attributes(s.sampleId, prefetchIds)
+    queryAttributes.flatMap(a => attribs.get(a).map(a -> _))
   }
 
   override def attributeValues(attribute: Attribute): Seq[String] =
@@ -55,6 +69,8 @@ class TriplestoreMetadata(sampleStore: SampleStore,
 
 /**
  * Caching triplestore metadata that reads all the data once and stores it.
+ * The sample IDs are read with a single query, and the attributes of all samples are
+ * read through the shared SampleAttributeCache.
  */
 class CachingTriplestoreMetadata(os: SampleStore,
                                  attributes: AttributeSet,
@@ -62,19 +78,22 @@ class CachingTriplestoreMetadata(os: SampleStore,
                                  sf: SampleFilter)
     extends TriplestoreMetadata(os, attributes, querySet, sf) {
 
-  val useQuerySet = (querySet.toSeq :+ SampleId).distinct
-
   override lazy val sampleIds: Set[DSampleId] = rawData.keySet
 
-  override lazy val samples: Iterable[Sample] = os.sampleAttributeQuery(useQuerySet, sf)()
+  private lazy val sampleIdList: Seq[DSampleId] =
+    os.sampleAttributeQuery(Seq(SampleId), sf)().map(_.sampleId).distinct
+
+  override lazy val samples: Iterable[Sample] =
+    sampleIdList.map(id => Sample(id, new SampleClass(data(id).asJava)))
 
   lazy val rawData: Map[DSampleId, Sample] =
-    Map.empty ++ samples.iterator.map(r => new DSampleId(r(SampleId)) -> r)
+    Map.empty ++ samples.iterator.map(s => s.sampleId -> s)
 
   lazy val data: Map[DSampleId, Map[Attribute, String]] = {
-    Map.empty ++ rawData.iterator.map(sample => {
-      val attribs = sample._2.sampleClass.getKeys().asScala.toSeq
-      (sample._1 -> attribs.map(a => a -> sample._2.get(a).get).toMap)
+    val cached = attributeCache.attributes(sampleIdList)
+    Map.empty ++ sampleIdList.iterator.map(id => {
+      val attribs = cached.getOrElse(id, Map())
+      (id -> (Map.empty ++ queryAttributes.flatMap(a => attribs.get(a).map(a -> _)) + (SampleId -> id)))
     })
   }
 
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.util
+
+import java.util.concurrent.{Callable, ExecutionException, ExecutorCompletionService, Executors}
+
+import scala.reflect.ClassTag
+
+/**
+ * Parallel loops.
+ * Data-parallel loops over index ranges process indexes in blocks, so that the per-task
+ * overhead of the parallel collections is paid once per block rather than once per index.
+ * computeAndWrite runs independent computations on a pool of workers while a single
+ * thread consumes the results.
+ */
+object Parallel {
+  /**
+   * Run f(i) for i in [0, n), in parallel over blocks of indexes.
+   */
+  def foreachInBlocks(n: Int, blockSize: Int)(f: Int => Unit): Unit =
+    (0 until n by blockSize).par.foreach(start => {
+      val end = Math.min(n, start + blockSize)
+      var i = start
+      while (i < end) {
+        f(i)
+        i += 1
+      }
+    })
+
+  /**
+   * Compute f(i) for i in [0, n), in parallel over blocks of indexes,
+   * preserving order.
+   */
+  def mapInBlocks[T: ClassTag](n: Int, blockSize: Int)(f: Int => T): Array[T] = {
+    val r = new Array[T](n)
+    foreachInBlocks(n, blockSize)(i => r(i) = f(i))
+    r
+  }
+
+  /**
+   * Compute results for items in parallel on a bounded pool of workers, and pass each
+   * result to write on the calling thread as soon as it is ready, in completion order.
+   * At most twice as many results as there are threads are computed ahead of the writer.
+   * Exceptions thrown by compute are rethrown on the calling thread.
+   * @param continue called with the number of results written so far before each write.
+   *  Writing stops when it returns false.
+   * @param progress called with the number of results written so far after each write.
+   * @return the number of results written
+   */
+  def computeAndWrite[G, R](items: Seq[G], threads: Int,
+                            continue: Int => Boolean = _ => true,
+                            progress: Int => Unit = _ => ())
+                           (compute: G => R)(write: R => Unit): Int = {
+    val pool = Executors.newFixedThreadPool(threads)
+    try {
+      val completion = new ExecutorCompletionService[R](pool)
+      val pending = items.iterator
+      val maxInFlight = threads * 2
+      var inFlight = 0
+      def submit(): Unit = {
+        while (inFlight < maxInFlight && pending.hasNext) {
+          val g = pending.next
+          completion.submit(new Callable[R] {
+            def call(): R = compute(g)
+          })
+          inFlight += 1
+        }
+      }
+
+      var written = 0
+      submit()
+      while (inFlight > 0 && continue(written)) {
+        val r = try {
+          completion.take().get
+        } catch {
+          case e: ExecutionException => throw e.getCause
+        }
+        inFlight -= 1
+        submit()
+        write(r)
+        written += 1
+        progress(written)
+      }
+      written
+    } finally {
+      pool.shutdownNow()
+    }
+  }
+
+  /**
+   * A progress function for computeAndWrite that logs the rate and the estimated time
+   * remaining at most once per interval, and when all items are done.
+   * @param label what is being done, e.g. "Copy"
+   * @param unit what the items are, e.g. "samples"
+   */
+  def etaLogger(label: String, unit: String, total: Int, log: String => Unit,
+                intervalMillis: Long = 10000): Int => Unit = {
+    val startTime = System.currentTimeMillis()
+    var lastLog = startTime
+    done => {
+      val now = System.currentTimeMillis()
+      if (now - lastLog > intervalMillis || done == total) {
+        lastLog = now
+        val perSecond = done * 1000.0 / Math.max(now - startTime, 1)
+        val eta = ((total - done) / Math.max(perSecond, 0.001)).toLong
+        log(f"$label: $done/$total $unit, $perSecond%.1f $unit/s, ETA ${eta / 60}%d min ${eta % 60}%d s")
+      }
+    }
+  }
+}
@@ -65,6 +65,26 @@ class MatrixInsertTest extends TTestSuite {
     db.released should be(true)
   }
 
+  test("Skipping samples that were already inserted") {
+    val data = makeTestData(false, (samples take 10))
+    val db = new FakeBasicMatrixDB()
+    val skip = data.samples.take(4).toSet
+    var reported = List[Sample]()
+
+    val ins = new BasicValueInsert(db, data) {
+      def mkValue(v: FoldPExpr) =
+       BasicExprValue(v._1, v._2)
+      override protected def alreadyInserted(sample: Sample) = skip.contains(sample)
+      override protected def inserted(sample: Sample) = reported ::= sample
+    }
+    await(ins.insert("Absolute value data insert"))
+
+    val written = db.records.map(_._1).distinct
+    written should (contain theSameElementsAs (data.samples.toSet -- skip))
+    reported should (contain theSameElementsAs written)
+    db.released should be(true)
+  }
+
   //  test("Folds") {
   //    val data = makeTestData()
   //    val db = new FakeMicroarrayDB()
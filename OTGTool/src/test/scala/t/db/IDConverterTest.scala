@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.db
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import t.TTestSuite
+
+@RunWith(classOf[JUnitRunner])
+class IDConverterTest extends TTestSuite {
+
+  val s1 = Sample("s1")
+  val s2 = Sample("s2")
+
+  val raw = new ColumnExpressionData {
+    val d = Map(
+      s1 -> Map("a" -> (1.0, 'P', 0.1), "b" -> (3.0, 'A', 0.2), "c" -> (5.0, 'M', 0.3),
+        "x" -> (7.0, 'P', 0.4)),
+      s2 -> Map("a" -> (2.0, 'A', 0.5), "c" -> (4.0, 'P', 0.6)))
+    def samples = Array(s1, s2)
+    def probes = Array("a", "b", "c", "x", "y")
+    def data(s: Sample) = d(s)
+  }
+
+  //a maps to two targets; a and b both map to t1; y is speculative; x is unknown
+  val conversion = Map("a" -> Seq("t1", "t2"), "b" -> Seq("t1"), "c" -> Seq("t3"))
+  val speculative = Map("y" -> Seq("t4"))
+  val compiled = new CompiledIDConversion(conversion, speculative)
+
+  test("compiled mapping") {
+    compiled.sourceIndex("x") should equal(-1)
+    val a = compiled.sourceIndex("a")
+    compiled.mapping(a).map(compiled.targets(_)).toSeq should equal(Seq("t1", "t2"))
+    compiled.speculative(a) should be(false)
+    compiled.speculative(compiled.sourceIndex("y")) should be(true)
+    compiled.targets.toSet should equal(Set("t1", "t2", "t3", "t4"))
+  }
+
+  test("first value aggregation") {
+    val conv = new IDConverter(raw, compiled, IDConverter.FirstValue)
+    conv.probes.toSeq should equal(Seq("t1", "t2", "t3", "t4"))
+    conv.data(s1) should equal(Map("t1" -> (1.0, 'P', 0.1), "t2" -> (1.0, 'P', 0.1),
+      "t3" -> (5.0, 'M', 0.3)))
+    conv.data(s2) should equal(Map("t1" -> (2.0, 'A', 0.5), "t2" -> (2.0, 'A', 0.5),
+      "t3" -> (4.0, 'P', 0.6)))
+  }
+
+  test("mean value aggregation") {
+    val conv = new IDConverter(raw, compiled, IDConverter.MeanValue)
+    conv.data(s1)("t1") should equal((2.0, 'P', 0.1))
+    conv.data(s1)("t2") should equal((1.0, 'P', 0.1))
+    //b has no value in s2
+    conv.data(s2)("t1") should equal((2.0, 'A', 0.5))
+  }
+
+  test("samplesAndData is consistent with data") {
+    val conv = new IDConverter(raw, conversion, speculative)
+    for ((s, values) <- conv.samplesAndData) {
+      (Map() ++ values) should equal(conv.data(s))
+    }
+    conv.samplesAndData.map(_._1).toSeq should equal(Seq(s1, s2))
+  }
+}
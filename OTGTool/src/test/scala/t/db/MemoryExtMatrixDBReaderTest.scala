@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.db
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import t.TTestSuite
+import t.db.kyotocabinet.chunk.KCChunkMatrixDB
+import t.db.testing.DBTestData
+
+@RunWith(classOf[JUnitRunner])
+class MemoryExtMatrixDBReaderTest extends TTestSuite {
+  import DBTestData._
+
+  test("same values as the database") {
+    val edb = new KCChunkMatrixDB(memDBHash, true)
+    populate(edb, makeTestData(true))
+    val allProbes = probes.toArray
+
+    val values = Map() ++ samples.map(s =>
+      s.sampleId -> (Map() ++ allProbes.zip(edb.valuesInSample(s, allProbes, true)).
+        filter(!_._2.isPadding)))
+    val mem = new MemoryExtMatrixDBReader(values)
+
+    val xs = edb.sortSamples(samples).take(20)
+    val ps = allProbes.filter(_ % 7 == 0)
+    for (sparse <- Seq(true, false)) {
+      val expected = edb.valuesForSamplesAndProbes(xs, ps, sparse, false)
+      val actual = mem.valuesForSamplesAndProbes(xs, ps, sparse, false)
+      actual.map(_.toSeq).toSeq should equal(expected.map(_.toSeq).toSeq)
+    }
+
+    mem.valuesInSample(Sample("missing"), ps, true).forall(_.isPadding) should be(true)
+    mem.valuesInSample(Sample("missing"), ps, false) should be(empty)
+    edb.release()
+  }
+}
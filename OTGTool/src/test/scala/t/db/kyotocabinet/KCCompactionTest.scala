@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.db.kyotocabinet
+
+import java.io.File
+import java.nio.file.Files
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import t.TTestSuite
+import t.global.KCDBRegistry
+
+@RunWith(classOf[JUnitRunner])
+class KCCompactionTest extends TTestSuite {
+
+  test("Temporary file name") {
+    KCCompaction.tempFile("/data/time_series.kct#bnum=1000") should
+      equal("/data/time_series.compact.kct#bnum=1000")
+    KCCompaction.tempFile("/data.x/expr.kch") should equal("/data.x/expr.compact.kch")
+  }
+
+  test("Compaction") {
+    val dir = Files.createTempDirectory("compaction").toFile
+    val file = s"$dir/test.kct#bnum=1000"
+    try {
+      val w = KCDBRegistry.getWriter(file).get
+      for (i <- 0 until 10000) {
+        w.set(f"k$i%05d".getBytes, Array.fill(100)(i.toByte))
+      }
+      for (i <- 0 until 10000; if i % 4 != 0) {
+        w.remove(f"k$i%05d".getBytes)
+      }
+      KCDBRegistry.releaseWriter(file)
+
+      val (estimate, _) = KCCompaction.estimate(file)
+      estimate.records should equal(2500)
+
+      val (before, after) = KCCompaction.compact(file)
+      before.sameContents(estimate) should be(true)
+      after.sameContents(before) should be(true)
+      after.size should be <= before.size
+      new File(KCCompaction.tempFile(s"$dir/test.kct")).exists should be(false)
+
+      val r = KCDBRegistry.getReader(file).get
+      try {
+        r.count should equal(2500)
+        r.get("k00004".getBytes).toSeq should equal(Array.fill(100)(4.toByte).toSeq)
+        r.get("k00005".getBytes) should be(null)
+      } finally {
+        r.close()
+      }
+    } finally {
+      dir.listFiles.foreach(_.delete)
+      dir.delete
+    }
+  }
+}
@@ -19,6 +19,10 @@
 
 package t.db.kyotocabinet
 
+import java.util.concurrent.ConcurrentLinkedQueue
+
+import scala.collection.JavaConverters._
+
 import t.TTestSuite
 import org.scalatest.junit.JUnitRunner
 import t.db.testing.DBTestData
@@ -53,6 +57,75 @@ class KCIndexDBTest extends TTestSuite {
     kci.release
   }
 
+  test("bulk insert") {
+    val kci = new KCIndexDB(memDBHash, true)
+    val keys = probeMap.tokens.toVector.sorted
+    val (first, rest) = keys.splitAt(keys.size / 2)
+
+    val m1 = kci.putAll(first ++ first.take(10))
+    m1.keySet should equal(first.toSet)
+    m1.values.toSet should equal((0 until first.size).toSet)
+
+    val m2 = kci.putAll(keys)
+    m2.keySet should equal(keys.toSet)
+    for (k <- first) {
+      m2(k) should equal(m1(k))
+    }
+    rest.map(m2).toSet should equal((first.size until keys.size).toSet)
+    kci.fullMap should equal(m2)
+    kci.getAll(first.take(5) :+ "missing") should equal(Map() ++ first.take(5).map(k => k -> m1(k)))
+
+    //The counter must have been advanced
+    kci.put("extra") should equal(keys.size)
+    kci.putAll(Seq()) should equal(Map())
+    an[Exception] should be thrownBy(kci.putAll(Seq("##next")))
+    kci.release
+  }
+
+  test("bulk insert with concurrent readers") {
+    val kci = new KCIndexDB(memDBHash, true)
+    val keys = (0 until 20000).map(i => s"key$i")
+    val initial = kci.putAll(keys.take(1000))
+    val groups = keys.drop(1000).grouped(2500).toVector
+
+    @volatile var writing = true
+    val errors = new ConcurrentLinkedQueue[String]()
+    val readers = (0 until 4).map(r => new Thread {
+      override def run(): Unit = {
+        while (writing) {
+          for (k <- keys.take(1000)) {
+            val v = kci.get(k)
+            if (v != Some(initial(k))) {
+              errors.add(s"$k -> $v, expected ${initial(k)}")
+            }
+          }
+          //Each bulk insert must be seen either completely or not at all
+          for (g <- groups) {
+            val seen = kci.getAll(Seq(g.head, g.last))
+            if (seen.size == 1) {
+              errors.add(s"Partial batch visible: $seen")
+            } else if (seen.size == 2 && seen(g.last) - seen(g.head) != g.size - 1) {
+              errors.add(s"Non-contiguous batch: $seen")
+            }
+          }
+        }
+      }
+    })
+    readers.foreach(_.start)
+
+    var all = initial
+    for (g <- groups) {
+      all ++= kci.putAll(g)
+    }
+    writing = false
+    readers.foreach(_.join)
+
+    errors.asScala.toVector should equal(Vector())
+    kci.fullMap should equal(all)
+    all.values.toSet should equal((0 until keys.size).toSet)
+    kci.release
+  }
+
   test("named enum") {
     //Should add tests here...
   }
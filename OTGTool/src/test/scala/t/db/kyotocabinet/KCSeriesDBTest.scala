@@ -186,6 +186,20 @@ class KCSeriesDBTest extends TTestSuite {
     }
   }
   
+  for (testType <- testTypes) {
+    test("Key scan with removal - " + testType.name) {
+      val w = testType.writer()
+      val removed = w.scanKeys((probe, _) => probe == 100)
+      val expectRemoved = testType.inputSeries.count(_.probe == 100)
+      removed should equal(expectRemoved)
+
+      var key = t.OTGSeries(testType.seriesType, null, null, null, 100, null, null, null)
+      w.read(key) should be(empty)
+      key = t.OTGSeries(testType.seriesType, null, null, null, 13, null, null, null)
+      w.read(key) should contain theSameElementsAs (testType.inputSeries.filter(_.probe == 13))
+    }
+  }
+
   test("Equivalence of time and dose series") {    
     
     //Re-shuffle the time series as dose series to get consistent data
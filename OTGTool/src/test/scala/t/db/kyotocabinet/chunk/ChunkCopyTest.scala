@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.db.kyotocabinet.chunk
+
+import t.TTestSuite
+import t.db.testing.DBTestData
+import t.db.PExprValue
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+
+@RunWith(classOf[JUnitRunner])
+class ChunkCopyTest extends TTestSuite {
+  import DBTestData._
+  import ChunkFormat._
+
+  def withCopy(to: ChunkFormat)(f: (KCChunkMatrixDB, KCChunkMatrixDB, KCChunkIndexDB) => Unit) {
+    val from = new KCChunkMatrixDB(memDBHash, true)
+    populate(from, makeTestData(true))
+    val idx = new KCChunkIndexDB(memDBTree, true)
+    idx.setComplete(true)
+    val dest = new KCChunkMatrixDB(memDBHash, true, Some(idx))
+    dest.setFormat(to)
+    try {
+      f(from, dest, idx)
+    } finally {
+      dest.release
+      from.release
+    }
+  }
+
+  def values(db: KCChunkMatrixDB) = {
+    val ss = db.sortSamples(samples)
+    db.valuesForSamplesAndProbes(ss, probes.toArray).map(_.toSeq).toSeq
+  }
+
+  test("copy in the same format") {
+    withCopy(Legacy) { (from, dest, idx) =>
+      val copier = new ChunkCopy(from, dest, 3)
+      val (nsamples, _) = copier.copy()
+      nsamples should equal(samples.size)
+      values(dest) should equal(values(from))
+      dest.verifyIndex(idx) should be(empty)
+      copier.verify() should be(empty)
+    }
+  }
+
+  test("copy with re-encoding") {
+    val lossless = Compact(Float64, Some(Float64))
+    withCopy(lossless) { (from, dest, idx) =>
+      val copier = new ChunkCopy(from, dest, 3)
+      copier.copy()
+      values(dest) should equal(values(from))
+      for ((s, starts) <- dest.chunkStarts(None); (_, data) <- dest.readChunks(s, starts)) {
+        ChunkFormat.detect(data) should equal(lossless)
+      }
+      dest.verifyIndex(idx) should be(empty)
+      copier.verify() should be(empty)
+    }
+  }
+
+  test("new destination takes on the source format") {
+    val lossless = Compact(Float64, Some(Float64))
+    val from = new KCChunkMatrixDB(memDBHash, true)
+    from.setFormat(lossless)
+    populate(from, makeTestData(true))
+    val dest = new KCChunkMatrixDB(memDBHash, true)
+    try {
+      new ChunkCopy(from, dest, 2).copy()
+      dest.format should equal(lossless)
+      dest.hasStoredFormat should be(true)
+      for ((s, starts) <- dest.chunkStarts(None); (_, data) <- dest.readChunks(s, starts)) {
+        ChunkFormat.detect(data) should equal(lossless)
+      }
+      values(dest) should equal(values(from))
+    } finally {
+      dest.release
+      from.release
+    }
+  }
+
+  test("copy selected samples") {
+    withCopy(Legacy) { (from, dest, idx) =>
+      val selected = samples.take(5).map(_.dbCode).toSet
+      new ChunkCopy(from, dest, 2).copy(Some(selected))
+      dest.allSamples.map(_.dbCode).toSet should equal(selected)
+    }
+  }
+
+  test("verification detects differences") {
+    withCopy(Legacy) { (from, dest, idx) =>
+      val copier = new ChunkCopy(from, dest, 2)
+      copier.copy()
+      val s = samples.head
+      val p = from.valuesInSample(s, probes.toArray, false).head
+      dest.write(s, probeMap.pack(p.probe), PExprValue(p.value + 1, p.p, p.call))
+      copier.verify() should equal(Seq(s.dbCode))
+    }
+  }
+}
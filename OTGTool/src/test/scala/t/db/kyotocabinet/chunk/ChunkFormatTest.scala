@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.db.kyotocabinet.chunk
+
+import java.nio.file.Files
+
+import t.db.kyotocabinet.KCDBTest
+import t.db.testing.DBTestData
+import t.db.PExprValue
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import t.global.KCDBRegistry
+import t.testing.BenchmarkSuite
+
+@RunWith(classOf[JUnitRunner])
+class ChunkFormatTest extends BenchmarkSuite {
+  import KCDBTest._
+  import DBTestData._
+  import ChunkFormat._
+
+  val lossless = Compact(Float64, Some(Float64))
+  val formats = Seq(Legacy, lossless, Compact(Float32, Some(Float32)),
+    Compact(Float32, None), Compact(Float64, None))
+
+  def randomChunk(start: Int, density: Double) = {
+    val xs = (start until start + CHUNKSIZE).filter(_ => Math.random < density).
+      map(p => (p, randomPExpr(probeMap.unpack(p % probes.size)).copy(probe = null)))
+    VectorChunk[PExprValue](1, start, xs.toVector)
+  }
+
+  test("names") {
+    for (f <- formats) {
+      ChunkFormat(f.name) should equal(f)
+    }
+  }
+
+  test("round trip") {
+    for (f <- formats; density <- Seq(0.0, 0.3, 1.0)) {
+      val vc = randomChunk(256, density)
+      val data = f.encode(vc)
+      ChunkFormat.detect(data) should equal(f)
+      val decoded = ChunkFormat.decode(1, 256, data)
+      decoded.probes should equal(vc.probes)
+      for ((x, y) <- decoded.xs.map(_._2) zip vc.xs.map(_._2)) {
+        x.call should equal(y.call)
+        f match {
+          case Compact(Float32, p) =>
+            x.value.toFloat should equal(y.value.toFloat)
+            if (p.isEmpty) x.p.isNaN should be(true) else x.p.toFloat should equal(y.p.toFloat)
+          case Compact(Float64, None) =>
+            x.value should equal(y.value)
+            x.p.isNaN should be(true)
+          case _ =>
+            x should equal(y)
+        }
+      }
+    }
+  }
+
+  test("unusual calls") {
+    val vc = VectorChunk[PExprValue](0, 0, Vector((3, PExprValue(1.0, 0.5, 'X')),
+      (7, PExprValue(2.0, 0.1, 'P'))))
+    ChunkFormat.decode(0, 0, lossless.encode(vc)) should equal(vc)
+  }
+
+  test("compact DB") {
+    val edb = new KCChunkMatrixDB(memDBHash, true)
+    edb.setFormat(lossless)
+    edb.format should equal(lossless)
+    testExtDb(edb, makeTestData(true))
+    edb.release
+  }
+
+  test("conversion") {
+    val db = memDBHash
+    val edb = new KCChunkMatrixDB(db, true)
+    val data = makeTestData(false)
+    populate(edb, data)
+    val ss = edb.sortSamples(data.samples)
+    val ps = probes.toArray
+    val before = edb.valuesForSamplesAndProbes(ss, ps)
+
+    val (oldSize, newSize) = edb.convertFormat(lossless)
+    newSize should be < oldSize
+    edb.allSamples.toSet should equal(data.samples.toSet)
+    edb.valuesForSamplesAndProbes(ss, ps).map(_.toSeq).toSeq should equal(before.map(_.toSeq).toSeq)
+
+    //The format is remembered by the DB
+    new KCChunkMatrixDB(db, false).format should equal(lossless)
+    edb.release
+  }
+
+  test("index for an empty DB with a stored format") {
+    val dir = Files.createTempDirectory("chunkformat").toFile
+    val file = s"$dir/expr.kch"
+    try {
+      val plain = new KCChunkMatrixDB(KCDBRegistry.get(file, true).get, true)
+      plain.setFormat(lossless)
+      plain.isEmpty should be(true)
+      plain.release()
+
+      val edb = KCChunkMatrixDB(file, true)
+      edb.format should equal(lossless)
+      edb.release()
+      val idx = KCChunkIndexDB.forMatrix(file, false, false)
+      idx.foreach(_.release())
+      idx should not equal(None)
+    } finally {
+      dir.listFiles.foreach(_.delete())
+      dir.delete()
+    }
+  }
+
+  test("compact sizes") {
+    val chunks = (0 until 100).map(i => randomChunk(i * CHUNKSIZE, 0.9))
+    val legacySize = chunks.map(Legacy.encode(_).length).sum
+    for (f <- formats; if f != Legacy) {
+      chunks.map(f.encode(_).length).sum should be < legacySize
+    }
+  }
+
+  /**
+   * Reports the encoded size and encoding/decoding throughput of each format.
+   */
+  benchmark("throughput") {
+    val chunks = (0 until 2000).map(i => randomChunk((i % 100) * CHUNKSIZE, 0.9))
+    val values = chunks.map(_.xs.size).sum
+    for (f <- formats) {
+      val start = System.nanoTime()
+      val encoded = chunks.map(f.encode)
+      val mid = System.nanoTime()
+      for ((d, c) <- encoded zip chunks) {
+        ChunkFormat.decode(c.sample, c.start, d)
+      }
+      val end = System.nanoTime()
+      val size = encoded.map(_.length).sum
+      println(f"$f%-20s ${size.toDouble / values}%.2f bytes/value, " +
+        f"encode ${values * 1000.0 / (mid - start)}%.1f M values/s, " +
+        f"decode ${values * 1000.0 / (end - mid)}%.1f M values/s")
+    }
+  }
+}
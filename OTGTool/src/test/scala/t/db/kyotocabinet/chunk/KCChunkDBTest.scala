@@ -19,12 +19,15 @@
 
 package t.db.kyotocabinet.chunk
 
+import java.nio.file.Files
+
 import t.TTestSuite
 import t.db.kyotocabinet.KCDBTest
 import t.db.testing.DBTestData
 import t.db.PExprValue
 import org.junit.runner.RunWith
 import org.scalatest.junit.JUnitRunner
+import t.global.KCDBRegistry
 
 @RunWith(classOf[JUnitRunner])
 class KCChunkMatrixDBTest extends TTestSuite {
@@ -48,6 +51,87 @@ class KCChunkMatrixDBTest extends TTestSuite {
     edb.release
   }
 
+  test("chunk index") {
+    val idx = new KCChunkIndexDB(memDBTree, true)
+    idx.setComplete(true)
+    val edb = new KCChunkMatrixDB(memDBHash, true, Some(idx))
+    val data = makeTestData(true)
+
+    testExtDb(edb, data)
+    edb.verifyIndex(idx) should be(empty)
+    idx.probes.map(probeMap.unpack).toSet should equal(data.probes.toSet)
+
+    val deleted = data.samples.take(10)
+    edb.deleteSamples(deleted, Seq())
+    edb.allSamples.toSet should equal(data.samples.toSet -- deleted)
+    edb.verifyIndex(idx) should be(empty)
+    for (s <- deleted) {
+      idx.chunks(s.dbCode) should be(empty)
+    }
+    edb.release
+  }
+
+  test("chunk index rebuild") {
+    val edb = new KCChunkMatrixDB(memDBHash, true)
+    val data = makeTestData(false)
+    populate(edb, data)
+
+    val idx = new KCChunkIndexDB(memDBTree, true)
+    edb.verifyIndex(idx) should not be(empty)
+    edb.rebuildIndex(idx)
+    idx.isComplete should be(true)
+    edb.verifyIndex(idx) should be(empty)
+    idx.samples.toSet should equal(data.samples.map(_.dbCode).toSet)
+    edb.release
+  }
+
+  test("chunk index rebuild in small batches") {
+    val edb = new KCChunkMatrixDB(memDBHash, true)
+    populate(edb, makeTestData(false))
+
+    val idx = new KCChunkIndexDB(memDBTree, true)
+    edb.rebuildIndex(idx, 7)
+    edb.verifyIndex(idx) should be(empty)
+    edb.release
+  }
+
+  test("chunk index after a crashed writer") {
+    val dir = Files.createTempDirectory("chunkindex").toFile
+    val file = s"$dir/expr.kch"
+    def usableIndex(): Boolean = {
+      val idx = KCChunkIndexDB.forMatrix(file, false, false)
+      idx.foreach(_.release())
+      idx.isDefined
+    }
+
+    try {
+      val data = makeTestData(true)
+      val writer = KCChunkMatrixDB(file, true)
+      populate(writer, data)
+      writer.release()
+      usableIndex() should be(true)
+
+      //Drop the writer without releasing it, as if the process had died mid-write
+      val crashed = KCChunkMatrixDB(file, true)
+      crashed.write(data.samples.head, 0, PExprValue(1.0, 0.01, 'P'))
+      KCDBRegistry.releaseWriter(file)
+      KCDBRegistry.releaseWriter(KCChunkIndexDB.fileFor(file))
+      usableIndex() should be(false)
+      KCChunkIndexDB.forMatrix(file, true, false) should equal(None)
+
+      //A rebuild makes the index usable again
+      val matrix = new KCChunkMatrixDB(KCDBRegistry.get(file, true).get, true)
+      val idx = KCChunkIndexDB(KCChunkIndexDB.fileFor(file), true)
+      matrix.rebuildIndex(idx)
+      idx.release()
+      matrix.release()
+      usableIndex() should be(true)
+    } finally {
+      dir.listFiles.foreach(_.delete())
+      dir.delete()
+    }
+  }
+
   test("Vector Chunk") {
     def mkValues(n: Int) = (0 until n).map(i => randomPExpr(probeMap.unpack(i)))
 
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.db.kyotocabinet.chunk
+
+import t.db.testing.DBTestData
+import t.db.PExprValue
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import t.testing.BenchmarkSuite
+
+@RunWith(classOf[JUnitRunner])
+class ReadPlanTest extends BenchmarkSuite {
+  import DBTestData._
+
+  lazy val edb = {
+    val r = new KCChunkMatrixDB(memDBHash, true)
+    populate(r, makeTestData(true))
+    r
+  }
+
+  lazy val sortedSamples = edb.sortSamples(samples)
+
+  def probeSelection(n: Int): Array[Int] =
+    scala.util.Random.shuffle(probes.toVector).take(n).toArray.sorted
+
+  def asMap(data: Array[Array[PExprValue]]) =
+    Map() ++ data.map(row => row.head.probe -> row.toSeq)
+
+  test("plan") {
+    val ps = Array(0, 1, 2, 130, 131, 400)
+    edb.chunkSize should equal(CHUNKSIZE)
+
+    val single = edb.planRead(1, ps, 8)
+    single.chunks should equal(3)
+    single.sparse should equal(true)
+
+    val many = edb.planRead(100, ps, 8)
+    many.sparse should equal(false)
+    many.sampleScanCost should equal(3.0 * 100 / 8)
+  }
+
+  test("strategies agree") {
+    for (n <- Seq(1, 10, 200)) {
+      val ps = probeSelection(n)
+      val xs = sortedSamples.take(20)
+      val sparse = edb.valuesForSamplesAndProbes(xs, ps, true, false)
+      val dense = edb.valuesForSamplesAndProbes(xs, ps, false, false)
+      val planned = edb.plannedValuesForSamplesAndProbes(xs, ps)
+      asMap(sparse) should equal(asMap(dense))
+      asMap(planned) should equal(asMap(dense))
+    }
+  }
+
+  /**
+   * Times both strategies for a range of sample and probe counts, to show where the
+   * crossover point lies. The strategy that planRead picks must not be much slower than
+   * the faster one.
+   */
+  benchmark("strategy crossover") {
+    val factor = 3
+    //Absolute tolerance in microseconds, for reads that are too fast to time reliably
+    val slack = 200
+    var slowPlans = Vector[String]()
+    for {
+      numSamples <- Seq(1, 4, 32, samples.size)
+      numProbes <- Seq(1, 4, 16, 64, 256, probes.size)
+    } {
+      val xs = sortedSamples.take(numSamples)
+      val ps = probeSelection(numProbes)
+      val probeReads = time()(edb.valuesForSamplesAndProbes(xs, ps, true, false))
+      val sampleScans = time()(edb.valuesForSamplesAndProbes(xs, ps, false, false))
+      val plan = edb.planRead(numSamples, ps)
+      val planned = if (plan.sparse) probeReads else sampleScans
+      val best = Math.min(probeReads, sampleScans)
+      val result = s"$numSamples samples, $numProbes probes: probe reads $probeReads us, " +
+        s"sample scans $sampleScans us, planned: $plan"
+      println(result)
+      if (planned > best * factor + slack) {
+        slowPlans :+= result
+      }
+    }
+    slowPlans should equal(Vector())
+  }
+}
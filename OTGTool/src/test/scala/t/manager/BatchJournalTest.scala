@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.manager
+
+import java.io.File
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import t.TTestSuite
+
+@RunWith(classOf[JUnitRunner])
+class BatchJournalTest extends TTestSuite {
+
+  def withJournalFile(f: File => Unit): Unit = {
+    val file = File.createTempFile("batch", ".journal")
+    file.delete()
+    try {
+      f(file)
+    } finally {
+      file.delete()
+    }
+  }
+
+  test("Entries survive reopening") {
+    withJournalFile(file => {
+      val j = new BatchJournal(file)
+      j.setArgument("metadata", "batch.meta.tsv")
+      j.record(BatchJournal.Step, "check")
+      j.record(BatchJournal.RDFGroup, "0")
+      j.record(BatchJournal.ExprSample, "s1")
+      j.record(BatchJournal.ExprSample, "s2")
+      j.close()
+
+      val reopened = new BatchJournal(file)
+      reopened.argument("metadata") should equal(Some("batch.meta.tsv"))
+      reopened.contains(BatchJournal.Step, "check") should be(true)
+      reopened.contains(BatchJournal.Step, "rdf") should be(false)
+      reopened.keys(BatchJournal.RDFGroup) should equal(Set("0"))
+      reopened.keys(BatchJournal.ExprSample) should equal(Set("s1", "s2"))
+      reopened.close()
+    })
+  }
+
+  test("Arguments are only written with the first entry") {
+    withJournalFile(file => {
+      val j = new BatchJournal(file)
+      j.setArgument("data", "batch.data.csv")
+      file.exists() should be(false)
+      j.record(BatchJournal.Step, "check")
+      file.exists() should be(true)
+      j.close()
+      new BatchJournal(file).argument("data") should equal(Some("batch.data.csv"))
+    })
+  }
+
+  test("Delete") {
+    withJournalFile(file => {
+      val j = new BatchJournal(file)
+      j.record(BatchJournal.Step, "check")
+      j.delete()
+      file.exists() should be(false)
+      j.isEmpty should be(true)
+      new BatchJournal(file).isEmpty should be(true)
+    })
+  }
+}
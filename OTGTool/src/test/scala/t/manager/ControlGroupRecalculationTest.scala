@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.manager
+
+import java.io.File
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import t.{Context, TTestSuite}
+import t.testing.MemoryTriplestore
+
+@RunWith(classOf[JUnitRunner])
+class ControlGroupRecalculationTest extends TTestSuite {
+  import ControlGroupRecalculation._
+
+  def withProgressFile(f: File => Unit): Unit = {
+    val file = File.createTempFile("recalculate", ".progress")
+    file.delete()
+    try {
+      f(file)
+    } finally {
+      file.delete()
+    }
+  }
+
+  test("fingerprint") {
+    val meta = MemoryTriplestore.testMetadata
+    val probes = Seq(3, 1, 2)
+    val fp = fingerprint(meta, probes, false)
+    fingerprint(MemoryTriplestore.testMetadata, probes.reverse, false) should equal(fp)
+    fingerprint(meta, probes :+ 4, false) should not equal(fp)
+    fingerprint(meta, probes, true) should not equal(fp)
+    val fewer = Context.factory.filteredMetadata(meta, meta.samples.drop(1))
+    fingerprint(fewer, probes, false) should not equal(fp)
+  }
+
+  test("resume and delete on completion") {
+    withProgressFile(file => {
+      val p = new RecalculationProgress(file, "abc")
+      p.done should be(empty)
+      file.exists() should be(false)
+      p.record("ct1")
+      p.record("ct2")
+      p.close()
+
+      val resumed = new RecalculationProgress(file, "abc")
+      resumed.done should equal(Set("ct1", "ct2"))
+      resumed.record("ct3")
+      resumed.close()
+      new RecalculationProgress(file, "abc").done should equal(Set("ct1", "ct2", "ct3"))
+
+      resumed.delete()
+      file.exists() should be(false)
+      new RecalculationProgress(file, "abc").done should be(empty)
+    })
+  }
+
+  test("progress for other data is discarded") {
+    withProgressFile(file => {
+      val p = new RecalculationProgress(file, "abc")
+      p.record("ct1")
+      p.close()
+
+      val changed = new RecalculationProgress(file, "def")
+      changed.done should be(empty)
+      file.exists() should be(false)
+      changed.record("ct2")
+      changed.close()
+      new RecalculationProgress(file, "def").done should equal(Set("ct2"))
+    })
+  }
+}
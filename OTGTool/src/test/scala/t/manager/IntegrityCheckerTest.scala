@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.manager
+
+import java.io.File
+import java.nio.file.Files
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import t.TTestSuite
+import t.db.kyotocabinet.chunk.KCChunkMatrixDB
+import t.db.testing.DBTestData
+
+@RunWith(classOf[JUnitRunner])
+class IntegrityCheckerTest extends TTestSuite {
+  import DBTestData._
+  import IntegrityChecker._
+
+  test("orphaned and missing records, and repair") {
+    val db = new KCChunkMatrixDB(memDBHash, true)
+    populate(db, makeTestData(false))
+    val stored = db.sampleCodes
+    stored should equal(codes(samples.iterator.map(_.dbCode)))
+
+    //One sample is missing from RDF, so its data is orphaned,
+    //and one sample in RDF has no data
+    val orphan = samples.head.dbCode
+    val missing = stored.length + 10
+    val rdf = codes(samples.iterator.map(_.dbCode).filter(_ != orphan) ++ Iterator(missing))
+
+    val c = new SampleConsistency(rdf, rdf, stored, stored)
+    bits(c.orphanExpr).toSeq should equal(Seq(orphan))
+    bits(c.missingExpr).toSeq should equal(Seq(missing))
+    c.orphanIDs.isEmpty should be(true)
+
+    removeSamples(db, c.orphanExpr)
+    val repaired = new SampleConsistency(rdf, rdf, db.sampleCodes, db.sampleCodes)
+    repaired.orphanExpr.isEmpty should be(true)
+    bits(repaired.missingExpr).toSeq should equal(Seq(missing))
+    db.sampleCodes should equal(minus(stored, codes(Iterator(orphan))))
+    db.release
+  }
+
+  test("unfinished work") {
+    val dir = Files.createTempDirectory("integrity").toFile
+    def touch(name: String) = {
+      val f = new File(dir, name)
+      f.createNewFile()
+      f
+    }
+    try {
+      touch("expr.kch")
+      unfinishedWork(dir.getPath) should be(empty)
+      val journal = touch("import_b1.journal")
+      val progress = touch("recalculate_b2.progress")
+      unfinishedWork(dir.getPath) should equal(Seq(journal, progress))
+    } finally {
+      dir.listFiles.foreach(_.delete())
+      dir.delete()
+    }
+  }
+}
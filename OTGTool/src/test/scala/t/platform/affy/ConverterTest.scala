@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.platform.affy
+
+import java.io.{File, PrintWriter}
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import t.TTestSuite
+import t.platform.PlatformDefFile
+import t.util.TempFiles
+
+@RunWith(classOf[JUnitRunner])
+class ConverterTest extends TTestSuite {
+
+  test("tokenize") {
+    Converter.tokenize("a,b,,c") should equal(Array("a", "b", "", "c"))
+    Converter.tokenize("\"a, b\",\"c\"") should equal(Array("a, b", "c"))
+    Converter.tokenize(" \"x \"\"y\"\"\" , z ") should equal(Array("x \"y\"", "z"))
+    Converter.tokenize("\"a,b") should equal(Array("a,b"))
+    Converter.tokenize("it's,a\"b") should equal(Array("it's", "a\"b"))
+  }
+
+  def write(f: File, lines: Seq[String]): Unit = {
+    val out = new PrintWriter(f)
+    try {
+      lines.foreach(out.println)
+    } finally {
+      out.close()
+    }
+  }
+
+  test("convert") {
+    val tf = new TempFiles()
+    try {
+      val input = tf.makeNew("affy", "csv")
+      write(input, Seq(
+        "#%comment line",
+        "\"Probe Set ID\",\"Gene Symbol\",\"Entrez Gene\",\"Unknown\",\"Species Scientific Name\"",
+        "\"p1\",\"Abc /// Def\",\"123\",\"x, y\",\"Rattus norvegicus\"",
+        "\"p2\",\"---\",\"456 /// 789\",\"\",\"Rattus norvegicus\"",
+        "\"AFFX-ignored\",\"Xyz\",\"1\",\"\",\"Rattus norvegicus\""))
+      val output = tf.makeNew("platform", "tsv")
+      Converter.convert(input.getAbsolutePath, output.getAbsolutePath)
+
+      val records = new PlatformDefFile(output.getAbsolutePath).withRecords(_.toVector)
+      records.map(_.id) should equal(Seq("p1", "p2"))
+      records(0).annotations("symbol") should contain theSameElementsAs(Seq("Abc", "Def"))
+      records(0).annotations("entrez") should equal(Seq("123"))
+      records(0).annotations("species") should equal(Seq("Rattus norvegicus"))
+      records(1).annotations.get("symbol") should equal(None)
+      records(1).annotations("entrez") should contain theSameElementsAs(Seq("456", "789"))
+
+      val columns = Converter.loadColumns(input.getAbsolutePath, Vector(ProbeID, Entrez))
+      columns should equal(Seq(Seq("p1", "123"), Seq("p2", "456 /// 789"),
+        Seq("AFFX-ignored", "1")))
+    } finally {
+      tf.dropAll()
+    }
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.sparql
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import t.model.sample.Attribute
+import t.model.sample.CoreParameter._
+import t.testing.{MemoryTriplestore, TestConfig}
+import t.TTestSuite
+
+@RunWith(classOf[JUnitRunner])
+class SampleAttributeCacheTest extends TTestSuite {
+  val meta = MemoryTriplestore.testMetadata
+  val ids = meta.samples.map(_.identifier).toVector
+
+  val memoryStore = MemoryTriplestore.withSamples(meta)
+
+  class CountingSampleStore extends SampleStore(TestConfig.config) {
+    override lazy val triplestore = memoryStore
+    var queries = 0
+    override def attributesForSamples(samples: Iterable[DSampleId]): Map[DSampleId, Map[Attribute, String]] = {
+      queries += 1
+      super.attributesForSamples(samples)
+    }
+  }
+
+  def expected(id: String): Map[Attribute, String] = {
+    val s = meta.samples.find(_.identifier == id).get
+    Map() ++ meta.sampleAttributes(s).filter(_._1 != Batch)
+  }
+
+  test("bulk query") {
+    val store = new CountingSampleStore
+    val r = store.attributesForSamples(ids.take(5) :+ "missing")
+    r.keySet should equal(ids.take(5).toSet)
+    for (id <- ids.take(5)) {
+      r(id) should equal(expected(id))
+    }
+  }
+
+  test("read-through") {
+    val store = new CountingSampleStore
+    val cache = new SampleAttributeCache(store, 1000)
+
+    cache.attributes(ids.head, ids) should equal(expected(ids.head))
+    store.queries should equal(1)
+    for (id <- ids) {
+      cache.attributes(id, ids) should equal(expected(id))
+    }
+    store.queries should equal(1)
+
+    cache.attributes(ids :+ "missing")("missing") should equal(Map())
+    store.queries should equal(2)
+    cache.attributes(Seq("missing")) should equal(Map("missing" -> Map()))
+    store.queries should equal(2)
+
+    cache.invalidate(ids.take(1))
+    cache.attributes(ids.take(3))(ids.head) should equal(expected(ids.head))
+    store.queries should equal(3)
+
+    cache.invalidate()
+    cache.size should equal(0)
+  }
+
+  test("bounded") {
+    val store = new CountingSampleStore
+    val cache = new SampleAttributeCache(store, 10)
+    cache.attributes(ids).keySet should equal(ids.toSet)
+    cache.size should equal(10)
+
+    //The most recently fetched samples are retained
+    val queries = store.queries
+    cache.attributes(ids.takeRight(10))
+    store.queries should equal(queries)
+    cache.attributes(ids.take(1))
+    store.queries should equal(queries + 1)
+  }
+}
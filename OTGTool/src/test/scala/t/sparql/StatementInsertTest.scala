@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.sparql
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import t.platform.ProbeRecord
+import t.testing.MemoryTriplestore
+import t.TTestSuite
+
+@RunWith(classOf[JUnitRunner])
+class StatementInsertTest extends TTestSuite {
+  import Triplestore.tPrefixes
+
+  val meta = MemoryTriplestore.testMetadata
+
+  def memoryStore(readonly: Boolean = false) = MemoryTriplestore(readonly)
+
+  test("sample metadata") {
+    val ts = memoryStore()
+    val context = BatchStore.context("test")
+    val count = ts.addStatements(BatchStore.metadataStatements(meta, meta.samples), context, 100)
+    count should equal(ts.conn.size(TRDF.iri(context)))
+
+    val ids = ts.simpleQuery(s"""$tPrefixes
+      |SELECT ?l { GRAPH <$context> { ?x a t:sample; rdfs:label ?l } }""".stripMargin)
+    ids should contain theSameElementsAs(meta.samples.map(_.identifier))
+
+    for (s <- meta.samples.take(3)) {
+      val attribs = ts.multiQuery(s"""$tPrefixes
+        |SELECT ?p ?v { GRAPH <$context> { <${SampleStore.defaultPrefix}/${s.identifier}> ?p ?v.
+        |  FILTER(?p != rdf:type && ?p != rdfs:label) } }""".stripMargin)
+      val expected = meta.sampleAttributes(s).map(a => Vector(s"$tRoot/${a._1.id}", a._2))
+      attribs should contain theSameElementsAs(expected)
+    }
+  }
+
+  test("probe records") {
+    val ts = memoryStore()
+    val context = PlatformStore.context("test")
+    val records = Seq(
+      ProbeRecord("p1", Map("entrez" -> Seq("1234"), "symbol" -> Seq("Abc", "Abc's"))),
+      ProbeRecord("p2", Map("gomf" -> Seq("0050839"))),
+      ProbeRecord("p3", Map()))
+    ts.addStatements(ProbeStore.recordStatements(records), context)
+    ts.conn.size(TRDF.iri(context)) should equal(2 * 3 + 2 + 2 + 1)
+
+    val probes = ts.simpleQuery(s"""$tPrefixes
+      |SELECT ?l { GRAPH <$context> { ?x a t:probe; rdfs:label ?l } }""".stripMargin)
+    probes should contain theSameElementsAs(Seq("p1", "p2", "p3"))
+
+    val p1 = ts.multiQuery(s"""$tPrefixes
+      |SELECT ?p ?v { GRAPH <$context> { <${ProbeStore.defaultPrefix}/p1> ?p ?v.
+      |  FILTER(?p != rdf:type && ?p != rdfs:label) } }""".stripMargin)
+    p1 should contain theSameElementsAs(Seq(
+      Vector(s"$tRoot/entrez", "1234"),
+      Vector("http://bio2rdf.org/kegg_vocabulary:x-ncbigene", "http://bio2rdf.org/ncbigene:1234"),
+      Vector(s"$tRoot/symbol", "Abc"),
+      Vector(s"$tRoot/symbol", "Abc's")))
+
+    val p2 = ts.simpleQuery(s"""$tPrefixes
+      |SELECT ?v { GRAPH <$context> { <${ProbeStore.defaultPrefix}/p2> t:gomf ?v } }""".stripMargin)
+    p2 should equal(Vector("http://purl.obolibrary.org/obo/GO_0050839"))
+  }
+
+  test("read-only") {
+    val ts = memoryStore(true)
+    val context = BatchStore.context("test")
+    ts.addStatements(BatchStore.metadataStatements(meta, meta.samples), context) should equal(0)
+    ts.conn.size(TRDF.iri(context)) should equal(0)
+  }
+}
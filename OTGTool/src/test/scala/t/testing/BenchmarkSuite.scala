@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.testing
+
+import t.TTestSuite
+
+/**
+ * A test suite that can also contain benchmarks. Benchmarks are slow, so they are only run
+ * when the t.benchmark system property is set (e.g. -Dt.benchmark=true), and are reported as
+ * ignored otherwise.
+ */
+trait BenchmarkSuite extends TTestSuite {
+  def benchmarksEnabled: Boolean = System.getProperty("t.benchmark") != null
+
+  def benchmark(name: String)(body: => Unit): Unit = {
+    if (benchmarksEnabled) {
+      test(name)(body)
+    } else {
+      ignore(name)(body)
+    }
+  }
+
+  /**
+   * The mean time of a number of runs in microseconds, after one warm-up run.
+   */
+  def time(runs: Int = 5)(f: => Any): Long = {
+    f
+    val start = System.nanoTime()
+    for (i <- 0 until runs) { f }
+    (System.nanoTime() - start) / (runs * 1000L)
+  }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.testing
+
+import org.eclipse.rdf4j.repository.sail.SailRepository
+import org.eclipse.rdf4j.sail.memory.MemoryStore
+import t.Context
+import t.db.Metadata
+import t.db.file.TSVMetadata
+import t.sparql.{BatchStore, SimpleTriplestore}
+
+/**
+ * In-memory triplestores for tests that should not depend on a triplestore server.
+ */
+object MemoryTriplestore {
+
+  /**
+   * Metadata for the samples in testData/meta.tsv.
+   */
+  def testMetadata: Metadata = TSVMetadata.apply(Context.factory, "testData/meta.tsv",
+    TestConfig.config.attributes, println(_))
+
+  /**
+   * A new, empty in-memory triplestore.
+   */
+  def apply(readonly: Boolean = false): SimpleTriplestore = {
+    val repo = new SailRepository(new MemoryStore())
+    repo.init()
+    new SimpleTriplestore(repo.getConnection, readonly)
+  }
+
+  /**
+   * A new in-memory triplestore containing the sample metadata in a batch.
+   */
+  def withSamples(meta: Metadata, batch: String = "test"): SimpleTriplestore = {
+    val ts = apply()
+    ts.addStatements(BatchStore.metadataStatements(meta, meta.samples), BatchStore.context(batch))
+    ts
+  }
+}
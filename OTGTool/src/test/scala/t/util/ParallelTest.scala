@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.util
+
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import t.TTestSuite
+
+import scala.collection.JavaConverters._
+
+@RunWith(classOf[JUnitRunner])
+class ParallelTest extends TTestSuite {
+  import Parallel._
+
+  test("blocks") {
+    mapInBlocks(103, 10)(i => i * 2).toSeq should equal((0 until 103).map(_ * 2))
+  }
+
+  test("writer loop") {
+    val threads = 4
+    val items = (0 until 50).toVector
+    val started = new AtomicInteger(0)
+    val writerThreads = new ConcurrentLinkedQueue[Thread]()
+    var results = Vector[Int]()
+    var reported = Vector[Int]()
+
+    val written = computeAndWrite(items, threads, progress = n => reported :+= n)(i => {
+      started.incrementAndGet()
+      Thread.sleep(1)
+      i * 2
+    })(r => {
+      writerThreads.add(Thread.currentThread)
+      //The result being written and those in flight
+      started.get should be <= (results.size + 1 + threads * 2)
+      results :+= r
+    })
+
+    written should equal(items.size)
+    results.sorted should equal(items.map(_ * 2))
+    reported should equal(1 to items.size)
+    writerThreads.asScala.toSet should equal(Set(Thread.currentThread))
+  }
+
+  test("writer loop stops and propagates errors") {
+    var results = Vector[Int]()
+    val written = computeAndWrite((0 until 50).toVector, 4, continue = _ < 10)(i => i)(
+      r => results :+= r)
+    written should equal(10)
+    results.size should equal(10)
+
+    intercept[IllegalStateException] {
+      computeAndWrite((0 until 50).toVector, 4)(i =>
+        if (i == 3) throw new IllegalStateException("failed") else i)(r => ())
+    }
+  }
+
+  test("ETA logging") {
+    var logged = Vector[String]()
+    val progress = etaLogger("Copy", "samples", 3, s => logged :+= s, Long.MaxValue)
+    progress(1)
+    progress(2)
+    logged should be(empty)
+    progress(3)
+    logged.size should equal(1)
+    logged.head should startWith("Copy: 3/3 samples")
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.clustering.server
+
+import t.clustering.shared.Algorithm
+
+object Clustering {
+  /**
+   * Backend names accepted by the clusteringBackend configuration parameter.
+   */
+  val rserveBackend = "R"
+  val jvmBackend = "jvm"
+
+  /**
+   * Construct a clustering backend.
+   * @param backend the backend name. Rserve is used if this is null or unrecognised.
+   * @param codeDir the root directory where R/InCHlibUtils.R is available.
+   */
+  def apply(backend: String, codeDir: String): Clustering = {
+    if (backend != null && backend.equalsIgnoreCase(jvmBackend)) {
+      new JVMClustering
+    } else {
+      new RClustering(codeDir)
+    }
+  }
+
+  private[server] def safeData(d: Array[Double]) =
+    d.map(d => if (java.lang.Double.isInfinite(d) || java.lang.Double.isNaN(d)) { 0 } else d)
+}
+
+/**
+ * Performs a hierarchical clustering of rows and columns and renders the result
+ * as InCHlib JSON data.
+ */
+trait Clustering {
+
+  /**
+   * Perform the clustering and return the clusters as JSON data.
+   *
+   * @param data Row-major data (as a single sequence)
+   * @param rowNames Row names (such as affymetrix probes)
+   * @param colNames Column names
+   * @param geneSyms Gene symbols for each row
+   * @param algorithm The clustering algorithm to use
+   * @param featureDecimalDigits the number of digits after the decimal point to retain in features
+   */
+  def clustering(data: Array[Double], rowNames: Array[String],
+      colNames: Array[String], geneSyms: Array[String],
+      algorithm: Algorithm = new Algorithm(),
+      featureDecimalDigits: Int = -1): String
+}
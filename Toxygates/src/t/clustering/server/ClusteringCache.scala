@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.clustering.server
+
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets
+import java.security.MessageDigest
+import java.util.logging.Logger
+
+import t.clustering.shared.Algorithm
+
+object ClusteringCache {
+  val defaultMaxBytes: Long = 64L * 1024 * 1024
+
+  /**
+   * Cache statistics are logged once per this many lookups.
+   */
+  val statsInterval = 100
+
+  private var sharedCache: Option[ClusteringCache] = None
+
+  /**
+   * The process-wide cache, shared by all sessions.
+   * @param maxBytes the size bound, used only when the cache is first created.
+   */
+  def shared(maxBytes: Long): ClusteringCache = synchronized {
+    if (sharedCache == None) {
+      sharedCache = Some(new ClusteringCache(maxBytes))
+    }
+    sharedCache.get
+  }
+
+  /**
+   * Content-addressed key for a clustering request.
+   * Values are rounded to featureDecimalDigits (when non-negative), since this is
+   * the precision that the generated features retain.
+   */
+  def key(backend: String, data: Array[Double], rowNames: Array[String],
+      colNames: Array[String], geneSyms: Array[String],
+      algorithm: Algorithm, featureDecimalDigits: Int): String = {
+    val digest = MessageDigest.getInstance("SHA-256")
+    def addString(s: String) {
+      val bytes = String.valueOf(s).getBytes(StandardCharsets.UTF_8)
+      digest.update(ByteBuffer.allocate(4).putInt(bytes.length).array)
+      digest.update(bytes)
+    }
+    def addStrings(ss: Array[String]) {
+      digest.update(ByteBuffer.allocate(4).putInt(ss.length).array)
+      ss.foreach(addString)
+    }
+
+    addString(backend)
+    addString(algorithm.toString)
+    addString(featureDecimalDigits.toString)
+    addStrings(rowNames)
+    addStrings(colNames)
+    addStrings(geneSyms)
+
+    val scale = if (featureDecimalDigits >= 0) Math.pow(10, featureDecimalDigits) else 0
+    val buf = ByteBuffer.allocate(data.length * 8)
+    for (x <- data) {
+      if (featureDecimalDigits >= 0 && !x.isNaN && !x.isInfinite) {
+        buf.putLong(Math.round(x * scale))
+      } else {
+        buf.putLong(java.lang.Double.doubleToLongBits(x))
+      }
+    }
+    digest.update(buf.array)
+    digest.digest.map("%02x".format(_)).mkString
+  }
+}
+
+/**
+ * A size-bounded, least recently used cache of clustering results (JSON data)
+ * keyed by ClusteringCache.key.
+ * @param maxBytes the approximate maximum total size of cached results.
+ */
+class ClusteringCache(val maxBytes: Long) {
+  private val logger = Logger.getLogger("ClusteringCache")
+
+  //Access-ordered, so that iteration starts from the least recently used entry
+  private val entries = new java.util.LinkedHashMap[String, String](16, 0.75f, true)
+  private var totalBytes = 0L
+  private var hits = 0L
+  private var misses = 0L
+
+  private def sizeOf(json: String): Long = json.length * 2L
+
+  def get(key: String): Option[String] = synchronized {
+    val r = Option(entries.get(key))
+    if (r.isDefined) hits += 1 else misses += 1
+    if ((hits + misses) % ClusteringCache.statsInterval == 0) {
+      logger.info(s"Clustering cache: $stats")
+    }
+    r
+  }
+
+  def put(key: String, json: String): Unit = synchronized {
+    if (sizeOf(json) > maxBytes) {
+      return
+    }
+    val old = entries.put(key, json)
+    if (old != null) {
+      totalBytes -= sizeOf(old)
+    }
+    totalBytes += sizeOf(json)
+
+    val it = entries.entrySet.iterator
+    while (totalBytes > maxBytes && it.hasNext) {
+      val e = it.next
+      totalBytes -= sizeOf(e.getValue)
+      it.remove()
+    }
+  }
+
+  /**
+   * Obtain a cached result, or compute and cache it.
+   * The computation happens outside the cache lock. Empty results (failures) are not cached.
+   */
+  def getOrElseUpdate(key: String)(compute: => String): String = {
+    get(key) match {
+      case Some(json) =>
+        logger.fine("Cache hit")
+        json
+      case None =>
+        val json = compute
+        if (json != null && json != "") {
+          put(key, json)
+        }
+        logger.fine("Cache miss")
+        json
+    }
+  }
+
+  def size: Int = synchronized { entries.size }
+
+  def sizeInBytes: Long = synchronized { totalBytes }
+
+  def hitCount: Long = synchronized { hits }
+
+  def missCount: Long = synchronized { misses }
+
+  def hitRate: Double = synchronized {
+    if (hits + misses == 0) 0.0 else hits.toDouble / (hits + misses)
+  }
+
+  def stats: String = synchronized {
+    f"$size entries, $totalBytes%d/$maxBytes%d bytes, $hits%d hits, $misses%d misses, hit rate ${hitRate * 100}%.1f%%"
+  }
+}
+
+/**
+ * A clustering backend that consults a ClusteringCache before delegating to another backend.
+ * @param backend the name of the underlying backend, which is part of the cache key.
+ */
+class CachingClustering(underlying: Clustering, backend: String, cache: ClusteringCache)
+  extends Clustering {
+
+  def clustering(data: Array[Double], rowNames: Array[String],
+      colNames: Array[String], geneSyms: Array[String],
+      algorithm: Algorithm,
+      featureDecimalDigits: Int): String = {
+    val key = ClusteringCache.key(backend, data, rowNames, colNames, geneSyms,
+      algorithm, featureDecimalDigits)
+    cache.getOrElseUpdate(key) {
+      underlying.clustering(data, rowNames, colNames, geneSyms, algorithm,
+        featureDecimalDigits)
+    }
+  }
+}
@@ -37,7 +37,7 @@ abstract class ClusteringServiceImpl[C, R] extends RemoteServiceServlet with Clu
 
     val data = clusteringData(columns, rows)
 
-    val clust = new RClustering(data.codeDir)
+    val clust = Clustering(clusteringBackend, data.codeDir)
 
     clust.clustering(data.data.flatten, Array() ++ data.rowNames,
         Array() ++ data.colNames,
@@ -46,6 +46,11 @@ abstract class ClusteringServiceImpl[C, R] extends RemoteServiceServlet with Clu
 
   protected def clusteringData(cols: JList[C], rows: JList[R]): ClusteringData
 
+  /**
+   * The clustering backend to use (see Clustering.apply)
+   */
+  protected def clusteringBackend: String = Clustering.rserveBackend
+
   override def doUnexpectedFailure(t: Throwable) {
     t.printStackTrace()
     super.doUnexpectedFailure(t)
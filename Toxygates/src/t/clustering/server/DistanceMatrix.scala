@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.clustering.server
+
+import t.clustering.shared.Distances
+import t.clustering.shared.Distances._
+
+/**
+ * Pairwise distances between the rows of a matrix, following the definitions of
+ * Dist in the amap R package, which InCHlibUtils.R uses.
+ *
+ * Distances are kept in R's condensed "dist" layout: for n items, the pairs
+ * (0, 1), (0, 2), ..., (0, n - 1), (1, 2), ... are stored consecutively.
+ */
+object DistanceMatrix {
+
+  /**
+   * Position of the pair (i, j), where i < j, in a condensed distance array
+   * for n items.
+   */
+  def index(n: Int, i: Int, j: Int): Int =
+    j + i * n - ((i + 1) * (i + 2)) / 2
+
+  /**
+   * Transpose a row-major matrix.
+   */
+  def transpose(data: Array[Double], rows: Int, cols: Int): Array[Double] = {
+    val r = new Array[Double](data.length)
+    var i = 0
+    while (i < rows) {
+      var j = 0
+      while (j < cols) {
+        r(j * rows + i) = data(i * cols + j)
+        j += 1
+      }
+      i += 1
+    }
+    r
+  }
+
+  /**
+   * Compute the condensed distance array between the rows of a row-major matrix.
+   * Rows are processed in parallel.
+   */
+  def apply(data: Array[Double], rows: Int, cols: Int, metric: Distances): Array[Double] = {
+    assert(data.length == rows * cols)
+
+    val rowData = Array.tabulate(rows)(i =>
+      java.util.Arrays.copyOfRange(data, i * cols, (i + 1) * cols))
+    val items = metric match {
+      case SPEARMAN | KENDALL => rowData.map(ranks)
+      case _ => rowData
+    }
+    val distance = distanceFunction(metric)
+
+    val r = new Array[Double](rows * (rows - 1) / 2)
+    (0 until rows - 1).par.foreach(i => {
+      val x = items(i)
+      var j = i + 1
+      var idx = index(rows, i, j)
+      while (j < rows) {
+        r(idx) = distance(x, items(j))
+        j += 1
+        idx += 1
+      }
+    })
+    r
+  }
+
+  /**
+   * Ranks (starting from 1) of the values in x. Ties are ranked by position
+   * rather than averaged, as in amap.
+   */
+  private[server] def ranks(x: Array[Double]): Array[Double] = {
+    val order = (0 until x.length).sortBy(x(_))
+    val r = new Array[Double](x.length)
+    for ((i, rank) <- order.zipWithIndex) {
+      r(i) = rank + 1
+    }
+    r
+  }
+
+  private def distanceFunction(metric: Distances): (Array[Double], Array[Double]) => Double =
+    metric match {
+      case EUCLIDIAN     => euclidean
+      case MAXIMUM       => maximum
+      case MANHATTAN     => manhattan
+      case CANBERRA      => canberra
+      case BINARY        => binary
+      case PEARSON       => pearson(_, _, false)
+      case ABSPEARSON    => pearson(_, _, true)
+      case COERRELATION  => correlation(_, _, false)
+      case ABSORRELATION => correlation(_, _, true)
+      case SPEARMAN      => spearman
+      case KENDALL       => kendall
+    }
+
+  private def euclidean(x: Array[Double], y: Array[Double]): Double = {
+    var sum = 0.0
+    var i = 0
+    while (i < x.length) {
+      val d = x(i) - y(i)
+      sum += d * d
+      i += 1
+    }
+    Math.sqrt(sum)
+  }
+
+  private def maximum(x: Array[Double], y: Array[Double]): Double = {
+    var max = Double.MinValue
+    var i = 0
+    while (i < x.length) {
+      val d = Math.abs(x(i) - y(i))
+      if (d > max) {
+        max = d
+      }
+      i += 1
+    }
+    max
+  }
+
+  private def manhattan(x: Array[Double], y: Array[Double]): Double = {
+    var sum = 0.0
+    var i = 0
+    while (i < x.length) {
+      sum += Math.abs(x(i) - y(i))
+      i += 1
+    }
+    sum
+  }
+
+  private def canberra(x: Array[Double], y: Array[Double]): Double = {
+    var sum = 0.0
+    var count = 0
+    var i = 0
+    while (i < x.length) {
+      val s = Math.abs(x(i) + y(i))
+      val d = Math.abs(x(i) - y(i))
+      //Terms where both values are zero are skipped, and the sum rescaled
+      if (s > java.lang.Double.MIN_NORMAL || d > java.lang.Double.MIN_NORMAL) {
+        sum += d / s
+        count += 1
+      }
+      i += 1
+    }
+    if (count != x.length) {
+      sum /= (count.toDouble / x.length)
+    }
+    sum
+  }
+
+  private def binary(x: Array[Double], y: Array[Double]): Double = {
+    var count = 0
+    var dist = 0
+    var i = 0
+    while (i < x.length) {
+      if (x(i) != 0 || y(i) != 0) {
+        count += 1
+        if (!(x(i) != 0 && y(i) != 0)) {
+          dist += 1
+        }
+      }
+      i += 1
+    }
+    if (count == 0) 0 else dist.toDouble / count
+  }
+
+  /**
+   * Uncentered correlation.
+   */
+  private def pearson(x: Array[Double], y: Array[Double], absolute: Boolean): Double = {
+    var sum = 0.0
+    var normx = 0.0
+    var normy = 0.0
+    var i = 0
+    while (i < x.length) {
+      sum += x(i) * y(i)
+      normx += x(i) * x(i)
+      normy += y(i) * y(i)
+      i += 1
+    }
+    val r = sum / Math.sqrt(normx * normy)
+    if (absolute) 1 - Math.abs(r) else 1 - r
+  }
+
+  /**
+   * Centered (Pearson) correlation.
+   */
+  private def correlation(x: Array[Double], y: Array[Double], absolute: Boolean): Double = {
+    var sum = 0.0
+    var normx = 0.0
+    var normy = 0.0
+    var meanx = 0.0
+    var meany = 0.0
+    var i = 0
+    while (i < x.length) {
+      sum += x(i) * y(i)
+      normx += x(i) * x(i)
+      normy += y(i) * y(i)
+      meanx += x(i)
+      meany += y(i)
+      i += 1
+    }
+    val n = x.length
+    meanx /= n
+    meany /= n
+    val num = sum - n * meanx * meany
+    val den = Math.sqrt((normx - n * meanx * meanx) * (normy - n * meany * meany))
+    val r = num / den
+    if (absolute) 1 - Math.abs(r) else 1 - r
+  }
+
+  /**
+   * Sum of squared rank differences. Expects ranks as input.
+   */
+  private def spearman(x: Array[Double], y: Array[Double]): Double = {
+    var sum = 0.0
+    var i = 0
+    while (i < x.length) {
+      val d = x(i) - y(i)
+      sum += d * d
+      i += 1
+    }
+    sum
+  }
+
+  /**
+   * Number of discordant pairs. Expects ranks as input.
+   */
+  private def kendall(x: Array[Double], y: Array[Double]): Double = {
+    var count = 0
+    var i = 0
+    while (i < x.length) {
+      var j = i + 1
+      while (j < x.length) {
+        if (Math.signum(x(i) - x(j)) != Math.signum(y(i) - y(j))) {
+          count += 1
+        }
+        j += 1
+      }
+      i += 1
+    }
+    count
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.clustering.server
+
+import java.util.logging.Logger
+
+import t.clustering.shared.Algorithm
+import ujson.{Arr, Obj, Value}
+
+/**
+ * Performs the clustering in-process, without Rserve.
+ * The output is the same InCHlib JSON data that InCHlibUtils.R generates,
+ * including its node naming and ordering conventions.
+ */
+class JVMClustering extends Clustering {
+  import Clustering.safeData
+
+  val logger = Logger.getLogger("JVMClustering")
+
+  def clustering(data: Array[Double], rowNames: Array[String],
+      colNames: Array[String], geneSyms: Array[String],
+      algorithm: Algorithm,
+      featureDecimalDigits: Int): String = {
+    assert(data.length == rowNames.length * colNames.length)
+
+    val rows = rowNames.length
+    val cols = colNames.length
+    if (rows < 2 || cols < 2) {
+      logger.warning(s"Unable to cluster a $rows x $cols matrix")
+      return ""
+    }
+
+    val values = safeData(data)
+    val rowDist = DistanceMatrix(values, rows, cols, algorithm.getRowDistance)
+    val colDist = DistanceMatrix(DistanceMatrix.transpose(values, rows, cols),
+      cols, rows, algorithm.getColDistance)
+    if (!rowDist.forall(isFinite) || !colDist.forall(isFinite)) {
+      //hclust in R also rejects these
+      logger.warning("Non-finite distances in clustering data (constant rows or columns?)")
+      return ""
+    }
+
+    val rowTree = Linkage(rowDist, rows, algorithm.getRowMethod)
+    val colTree = Linkage(colDist, cols, algorithm.getColMethod)
+    val json = JVMClustering.inchlib(values, rowNames, colNames, geneSyms,
+      rowTree, colTree, featureDecimalDigits)
+    ujson.write(json)
+  }
+
+  private def isFinite(x: Double) = !x.isNaN && !x.isInfinite
+}
+
+object JVMClustering {
+
+  /**
+   * Build the InCHlib data structure (InCHlib in InCHlibUtils.R).
+   */
+  private[server] def inchlib(values: Array[Double], rowNames: Array[String],
+      colNames: Array[String], geneSyms: Array[String],
+      rowTree: Dendrogram, colTree: Dendrogram, featureDecimalDigits: Int): Value = {
+    val cols = colNames.length
+    //R's data.frame sanitises column names
+    val orderedCols = colTree.order.map(makeNames(colNames))
+
+    var appendixes = Map[String, String]()
+    for ((r, s) <- rowNames zip geneSyms; if !appendixes.contains(r)) {
+      appendixes += r -> s
+    }
+
+    val rowIndex = rowNames.zipWithIndex.reverse.toMap
+    def features(leaf: String): Value = {
+      val row = rowIndex(leaf)
+      val rowValues = colTree.order.map(c => round(values(row * cols + c), featureDecimalDigits))
+      Arr(rowValues.map(v => v: Value): _*)
+    }
+
+    val rowNodes = dendrogramNodes(rowTree, rowNames, appendixes, Some(features _))
+
+    //InCHlibUtils.R names the column leaves by their position in the reordered
+    //columns rather than by their original index. This is mirrored here.
+    val colNodes = dendrogramNodes(colTree, orderedCols, appendixes, None)
+    val sortedColNodes = Obj()
+    for (c <- orderedCols) {
+      sortedColNodes.value(c) = colNodes.value(c)
+    }
+    for ((k, v) <- colNodes.value; if k.contains("nodes@")) {
+      sortedColNodes.value(k) = v
+    }
+
+    Obj(
+      "data" -> Obj(
+        "nodes" -> rowNodes,
+        "feature_names" -> Arr(orderedCols.map(c => c: Value): _*)),
+      "column_dendrogram" -> Obj(
+        "nodes" -> sortedColNodes))
+  }
+
+  /**
+   * Build the nodes of a dendrogram (getDendro in InCHlibUtils.R).
+   */
+  private def dendrogramNodes(tree: Dendrogram, leafNames: Array[String],
+      appendixes: Map[String, String], features: Option[String => Value]): Obj = {
+    def name(id: Int) = if (id < 0) leafNames(-id - 1) else s"nodes@$id"
+
+    val nodes = Obj()
+    for (i <- 0 until tree.merges) {
+      val nodeName = name(i + 1)
+      val node = Obj(
+        "left_child" -> name(tree.left(i)),
+        "right_child" -> name(tree.right(i)),
+        "count" -> tree.counts(i),
+        "distance" -> Math.max(tree.height(i), 0))
+      if (tree.parents(i) != 0) {
+        node.value("parent") = name(tree.parents(i))
+      }
+      nodes.value(nodeName) = node
+
+      for (id <- Seq(tree.left(i), tree.right(i)); if id < 0) {
+        val leaf = name(id)
+        val leafNode = Obj(
+          "count" -> 1,
+          "parent" -> nodeName,
+          "distance" -> 0,
+          "objects" -> Arr(leaf),
+          "appendix" -> appendixes.getOrElse(leaf, ""))
+        for (f <- features) {
+          leafNode.value("features") = f(leaf)
+        }
+        nodes.value(leaf) = leafNode
+      }
+    }
+    nodes
+  }
+
+  private def round(x: Double, digits: Int): Double =
+    if (digits >= 0) {
+      BigDecimal(new java.math.BigDecimal(x)).
+        setScale(digits, BigDecimal.RoundingMode.HALF_EVEN).toDouble
+    } else {
+      x
+    }
+
+  private val reservedWords = Set("if", "else", "repeat", "while", "function",
+    "for", "next", "break", "TRUE", "FALSE", "NULL", "Inf", "NaN", "NA",
+    "NA_integer_", "NA_real_", "NA_character_", "in")
+
+  /**
+   * Make syntactically valid, unique names in the manner of R's make.names.
+   */
+  private[server] def makeNames(names: Array[String]): Array[String] = {
+    def valid(n: String) = {
+      val needsPrefix = n.isEmpty || !(n(0).isLetter ||
+        (n(0) == '.' && !(n.length > 1 && n(1).isDigit)))
+      val prefixed = if (needsPrefix) "X" + n else n
+      val r = prefixed.map(c => if (c.isLetterOrDigit || c == '.' || c == '_') c else '.')
+      if (reservedWords.contains(r)) r + "." else r
+    }
+
+    var seen = Set[String]()
+    for (n <- names.map(valid)) yield {
+      var r = n
+      var i = 1
+      while (seen.contains(r)) {
+        r = s"$n.$i"
+        i += 1
+      }
+      seen += r
+      r
+    }
+  }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.clustering.server
+
+import t.clustering.shared.Methods
+import t.clustering.shared.Methods._
+
+/**
+ * The result of a hierarchical clustering of n items, in the conventions of
+ * R's hclust.
+ *
+ * @param left, right the two clusters joined at each of the n - 1 merge steps.
+ *   Negative values -k denote the single item k (1-based), positive values k
+ *   denote the cluster formed at merge step k (1-based).
+ * @param height the merge height at each step.
+ * @param order the 0-based item indexes in dendrogram order.
+ */
+case class Dendrogram(left: Array[Int], right: Array[Int], height: Array[Double],
+    order: Array[Int]) {
+
+  def merges: Int = left.length
+
+  /**
+   * The number of items in the cluster formed at each step.
+   */
+  lazy val counts: Array[Int] = {
+    val r = new Array[Int](merges)
+    def count(id: Int) = if (id < 0) 1 else r(id - 1)
+    for (i <- 0 until merges) {
+      r(i) = count(left(i)) + count(right(i))
+    }
+    r
+  }
+
+  /**
+   * The (1-based) step that merged the cluster formed at each step,
+   * or 0 for the final step.
+   */
+  lazy val parents: Array[Int] = {
+    val r = new Array[Int](merges)
+    for (i <- 0 until merges; c <- Seq(left(i), right(i)); if c > 0) {
+      r(c - 1) = i + 1
+    }
+    r
+  }
+}
+
+/**
+ * Agglomerative hierarchical clustering using the Lance-Williams update formulas.
+ * This is a port of the nearest-neighbour based Fortran routines (hclust and hcass2)
+ * used by R's hclust, so that ties are resolved and the resulting merge
+ * order is reported in the same way as in R.
+ */
+object Linkage {
+
+  /**
+   * Cluster n items.
+   * @param distances condensed distances between the items (see DistanceMatrix).
+   *  This array is not modified.
+   */
+  def apply(distances: Array[Double], n: Int, method: Methods): Dendrogram = {
+    assert(n >= 2)
+    assert(distances.length == n * (n - 1) / 2)
+
+    val isWard = method == WARD_D || method == WARD_D2
+    val diss = if (method == WARD_D2) distances.map(x => x * x) else distances.clone
+
+    //Indexes below are 1-based, as in the original code
+    def ioffst(i: Int, j: Int) = DistanceMatrix.index(n, i - 1, j - 1)
+
+    val flag = Array.fill(n + 1)(true)
+    val membr = Array.fill(n + 1)(1.0)
+    val nn = new Array[Int](n + 1)
+    val disnn = new Array[Double](n + 1)
+    val ia = new Array[Int](n)
+    val ib = new Array[Int](n)
+    val crit = new Array[Double](n)
+    val inf = Double.MaxValue
+
+    def nearestNeighbour(i: Int): Unit = {
+      var dmin = inf
+      var jm = 0
+      for (j <- i + 1 to n; if flag(j)) {
+        val d = diss(ioffst(i, j))
+        if (d < dmin) {
+          dmin = d
+          jm = j
+        }
+      }
+      nn(i) = jm
+      disnn(i) = dmin
+    }
+
+    for (i <- 1 until n) {
+      nearestNeighbour(i)
+    }
+
+    var ncl = n
+    while (ncl > 1) {
+      var dmin = inf
+      var im = 0
+      var jm = 0
+      for (i <- 1 until n; if flag(i) && disnn(i) < dmin) {
+        dmin = disnn(i)
+        im = i
+        jm = nn(i)
+      }
+      ncl -= 1
+
+      val i2 = Math.min(im, jm)
+      val j2 = Math.max(im, jm)
+      ia(n - ncl) = i2
+      ib(n - ncl) = j2
+      crit(n - ncl) = if (method == WARD_D2) Math.sqrt(dmin) else dmin
+      flag(j2) = false
+
+      dmin = inf
+      var jj = 0
+      val xx = diss(ioffst(i2, j2))
+      for (k <- 1 to n; if flag(k) && k != i2) {
+        val ind1 = if (i2 < k) ioffst(i2, k) else ioffst(k, i2)
+        val ind2 = if (j2 < k) ioffst(j2, k) else ioffst(k, j2)
+        val d1 = diss(ind1)
+        val d2 = diss(ind2)
+        val mi = membr(i2)
+        val mj = membr(j2)
+        val mk = membr(k)
+
+        diss(ind1) = method match {
+          case _ if isWard =>
+            ((mi + mk) * d1 + (mj + mk) * d2 - mk * xx) / (mi + mj + mk)
+          case SINGLE   => Math.min(d1, d2)
+          case COMPLETE => Math.max(d1, d2)
+          case AVERAGE  => (mi * d1 + mj * d2) / (mi + mj)
+          case MCQUITTY => (d1 + d2) / 2
+          case MEDIAN   => ((d1 + d2) - xx / 2) / 2
+          case CENTROID => (mi * d1 + mj * d2 - mi * mj * xx / (mi + mj)) / (mi + mj)
+        }
+
+        if (i2 < k) {
+          if (diss(ind1) < dmin) {
+            dmin = diss(ind1)
+            jj = k
+          }
+        } else if (diss(ind1) < disnn(k)) {
+          //Keeps nearest neighbours correct for non-monotone methods
+          disnn(k) = diss(ind1)
+          nn(k) = i2
+        }
+      }
+      membr(i2) += membr(j2)
+      disnn(i2) = dmin
+      nn(i2) = jj
+
+      for (i <- 1 until n; if flag(i) && (nn(i) == i2 || nn(i) == j2)) {
+        nearestNeighbour(i)
+      }
+    }
+
+    assemble(n, ia, ib, crit)
+  }
+
+  /**
+   * Convert the merge sequence into hclust's merge/order representation (hcass2).
+   */
+  private def assemble(n: Int, ia: Array[Int], ib: Array[Int],
+      crit: Array[Double]): Dendrogram = {
+    val iia = ia.clone
+    val iib = ib.clone
+
+    for (i <- 1 to n - 2) {
+      //Clusters are identified by their smallest item, which is replaced
+      //by the merge step in subsequent steps
+      val k = Math.min(ia(i), ib(i))
+      for (j <- i + 1 to n - 1) {
+        if (ia(j) == k) iia(j) = -i
+        if (ib(j) == k) iib(j) = -i
+      }
+    }
+    for (i <- 1 to n - 1) {
+      iia(i) = -iia(i)
+      iib(i) = -iib(i)
+    }
+    for (i <- 1 to n - 1) {
+      if (iia(i) > 0 && iib(i) < 0) {
+        val k = iia(i)
+        iia(i) = iib(i)
+        iib(i) = k
+      }
+      if (iia(i) > 0 && iib(i) > 0) {
+        val k1 = Math.min(iia(i), iib(i))
+        val k2 = Math.max(iia(i), iib(i))
+        iia(i) = k1
+        iib(i) = k2
+      }
+    }
+
+    var order = Vector(iia(n - 1), iib(n - 1))
+    for (i <- n - 2 to 1 by -1) {
+      val j = order.indexOf(i)
+      if (j != -1) {
+        order = (order.take(j) :+ iia(i) :+ iib(i)) ++ order.drop(j + 1)
+      }
+    }
+
+    Dendrogram(iia.drop(1), iib.drop(1), crit.drop(1),
+      order.map(x => -x - 1).toArray)
+  }
+}
@@ -30,29 +30,18 @@ import t.clustering.shared.Algorithm
  * Connects to Rserve to perform a clustering.
  * @param codeDir the root directory where R/InCHlibUtils.R is available.
  */
-class RClustering(codeDir: String) {
+class RClustering(codeDir: String) extends Clustering {
+  import Clustering.safeData
+
   val logger = Logger.getLogger("RClustering")
 
   //Types are Array rather than Seq for easy interop with Java
 
-  private final def safeData(d: Array[Double]) = 
-    d.map(d => if (java.lang.Double.isInfinite(d) || java.lang.Double.isNaN(d)) { 0 } else d)
-  
-  /**
-   * Perform the clustering and return the clusters as JSON data.
-   *
-   * @param data Column-major data (as a single sequence)
-   * @param rowNames Row names (such as affymetrix probes)
-   * @param colNames Column names
-   * @param geneSyms Gene symbols for each row
-   * @param algorithm The clustering algorithm to use
-   * @param featureDecimalDigits the number of digits after the decimal point to retain in features
-   */
   @throws(classOf[RserveException])
   def clustering(data: Array[Double], rowNames: Array[String],
       colNames: Array[String], geneSyms: Array[String],
-      algorithm: Algorithm = new Algorithm(),
-      featureDecimalDigits: Int = -1): String = {
+      algorithm: Algorithm,
+      featureDecimalDigits: Int): String = {
     assert(data.length == rowNames.length * colNames.length)
 
     val r = new R
@@ -19,15 +19,14 @@
 
 package t.common.server.sample.search
 
+import java.nio.charset.StandardCharsets
+import java.security.MessageDigest
+
 import scala.collection.JavaConverters._
 import scala.collection.Seq
 import t.common.shared.DataSchema
 import t.common.shared.sample.Sample
-import t.common.shared.sample.search.AndMatch
-import t.common.shared.sample.search.AtomicMatch
 import t.common.shared.sample.search.MatchCondition
-import t.common.shared.sample.search.MatchType
-import t.common.shared.sample.search.OrMatch
 import t.model.SampleClass
 import t.model.sample.{Attribute, AttributeSet, CoreParameter, SampleLike, VarianceSet}
 import t.sparql.SampleClassFilter
@@ -65,21 +64,55 @@ trait SearchCompanion[ST <: SampleLike, SS <: AbstractSampleSearch[ST]] {
 
   def apply(samples: Iterable[Sample], condition: MatchCondition,
       unitsHelper: UnitsHelper, attributes: AttributeSet): SS
+
+  /**
+   * Identifies the data that the search index for an attribute is built from: the
+   * samples, their unit-level attributes (which determine the units and control groups,
+   * and hence the normal ranges) and their values for the attribute.
+   * Searches over the same data can then share their attribute indexes
+   * (see SampleSearchIndex).
+   */
+  protected def indexKey(samples: Iterable[Sample], attributes: AttributeSet): Attribute => Any = {
+    val sorted = samples.toSeq.sortBy(_.id)
+    def digest(attribs: Seq[Attribute]): String = {
+      val md = MessageDigest.getInstance("SHA-256")
+      for (s <- sorted; v <- s.id +: attribs.map(s.get)) {
+        md.update(String.valueOf(v).getBytes(StandardCharsets.UTF_8))
+        md.update(0.toByte)
+      }
+      md.digest.map("%02x".format(_)).mkString
+    }
+    val base = digest(attributes.getUnitLevel.asScala.toSeq :+ CoreParameter.ControlGroup)
+    attribute => (getClass.getName, base, attribute, digest(Seq(attribute)))
+  }
 }
 
+/**
+ * @param indexKey identifies the data that the search index is built from, for each
+ *  attribute, so that the index can be shared with other searches (see SearchCompanion)
+ */
 abstract class AbstractSampleSearch[ST <: SampleLike](condition: MatchCondition,
-                                                      varianceSets: Map[String, VarianceSet], samples: Iterable[ST]) {
+                                                      varianceSets: Map[String, VarianceSet], samples: Iterable[ST],
+                                                      indexKey: Option[Attribute => Any] = None) {
 
   protected def zTestSampleSize(s: ST): Int
   protected def sortObject(s: ST): (String, Int, Int)
 
   val MAX_PRINT = 20
 
+  /**
+   * Index over the samples being searched. Duplicates are removed, and the samples are
+   * put in a canonical order so that the index can be shared between searches.
+   */
+  protected lazy val index = new SampleSearchIndex[ST](
+    samples.toVector.distinct.sortBy(_.get(CoreParameter.SampleId)),
+    sampleAttributeValue, upperBound, lowerBound, indexKey)
+
   /**
    * Results of the search.
    */
   lazy val results: Iterable[ST] = {
-    val searchResult = results(condition).toSeq.map(postProcessSample).sortBy(sortObject(_))
+    val searchResult = index.results(condition).map(postProcessSample).sortBy(sortObject(_))
 
     val count = searchResult.size
     val countString = if (count > MAX_PRINT) s"(displaying $MAX_PRINT/$count)"
@@ -97,69 +130,13 @@ abstract class AbstractSampleSearch[ST <: SampleLike](condition: MatchCondition,
   protected def sampleAttributeValue(sample: ST, attribute: Attribute): Option[Double] =
     t.db.Sample.numericalValue(sample, attribute)
 
-  private def paramComparison(sample: ST, attribute: Attribute,
-                              controlGroupValue: ST => Option[Double],
-                              comparator: (Double, Double) => Boolean): Option[Boolean] = {
-    val testValue = sampleAttributeValue(sample, attribute)
-    val reference = controlGroupValue(sample)
-    (testValue, reference) match {
-      case (Some(t), Some(r)) => Some(comparator(t, r))
-      case _                  => None
-    }
-  }
+  private def upperBound(sample: ST, attribute: Attribute): Option[Double] =
+    varianceSets.get(sample.get(CoreParameter.SampleId)).
+      flatMap(x => Option(x.upperBound(attribute, zTestSampleSize(sample))).map(_.doubleValue))
 
-  private def paramIsHigh(sample: ST, attribute: Attribute): Option[Boolean] = {
-    paramComparison(sample, attribute,
-      x => varianceSets.get(x.get(CoreParameter.SampleId)).
-          flatMap(x => Option(x.upperBound(attribute, zTestSampleSize(sample)))),
-      _ > _)
-  }
-
-  private def paramIsLow(sample: ST, attribute: Attribute): Option[Boolean] = {
-    paramComparison(sample, attribute,
-      x => varianceSets.get(x.get(CoreParameter.SampleId)).
-          flatMap(x => Option(x.lowerBound(attribute, zTestSampleSize(sample)))),
-      _ < _)
-  }
-
-  private def results(condition: MatchCondition): Set[ST] =
-    condition match {
-      //Note: could optimise and-evaluation by not evaluating unnecessary conditions
-      case and: AndMatch =>
-        and.subConditions.asScala.map(results _).reduce(_ intersect _)
-      case or: OrMatch =>
-        or.subConditions.asScala.map(results _).reduce(_ union _)
-      case at: AtomicMatch =>
-        results(at)
-    }
-
-  private def doubleOption(d: java.lang.Double): Option[Double] =
-    if (d == null) None else Some(d)
-
-  private def results(condition: AtomicMatch): Set[ST] =
-    samples.filter(matches(_, condition.matchType, condition.parameter,
-        doubleOption(condition.param1))).toSet
-
-  private def matches(s: ST, mt: MatchType, attr: Attribute,
-                      threshold: Option[Double]): Boolean =
-    mt match {
-      case MatchType.High => paramIsHigh(s, attr).getOrElse(false)
-      case MatchType.Low  => paramIsLow(s, attr).getOrElse(false)
-      case MatchType.NormalRange =>
-        !sampleAttributeValue(s, attr).isEmpty &&
-          paramIsHigh(s, attr) == Some(false) &&
-          paramIsLow(s, attr) == Some(false)
-      case _ =>
-        sampleAttributeValue(s, attr) match {
-          case Some(v) =>
-            mt match {
-              case MatchType.AboveLimit => v >= threshold.get
-              case MatchType.BelowLimit => v <= threshold.get
-              case _                    => throw new Exception("Unexpected match type")
-            }
-          case None => false
-        }
-    }
+  private def lowerBound(sample: ST, attribute: Attribute): Option[Double] =
+    varianceSets.get(sample.get(CoreParameter.SampleId)).
+      flatMap(x => Option(x.lowerBound(attribute, zTestSampleSize(sample))).map(_.doubleValue))
 
   protected def doseLevelMap: Map[String, Int] =
     Map() ++ OTGSchema.allDoses.zipWithIndex
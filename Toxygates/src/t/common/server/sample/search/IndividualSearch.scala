@@ -25,7 +25,7 @@ import t.common.shared.sample.Sample
 import t.common.shared.sample.search.MatchCondition
 import t.db.SimpleVarianceSet
 import t.model.SampleClass
-import t.model.sample.{AttributeSet, CoreParameter, VarianceSet}
+import t.model.sample.{Attribute, AttributeSet, CoreParameter, VarianceSet}
 import t.sparql.SampleFilter
 import t.sparql.SampleStore
 import t.viewer.server.UnitsHelper
@@ -51,13 +51,15 @@ object IndividualSearch extends SearchCompanion[Sample, IndividualSearch] {
     val units = unitsAndVarianceSetsById.mapValues(_._1)
     val varianceSets = unitsAndVarianceSetsById.mapValues(_._2)
 
-    new IndividualSearch(condition, varianceSets, units, treatedSamples)
+    new IndividualSearch(condition, varianceSets, units, treatedSamples,
+      Some(indexKey(samples, attributes)))
   }
 }
 
 class IndividualSearch(condition: MatchCondition, varianceSets: Map[String, VarianceSet],
-                       units: Map[String, (Unit, Unit)], samples: Iterable[Sample])
-    extends AbstractSampleSearch[Sample](condition, varianceSets, samples)  {
+                       units: Map[String, (Unit, Unit)], samples: Iterable[Sample],
+                       indexKey: Option[Attribute => Any] = None)
+    extends AbstractSampleSearch[Sample](condition, varianceSets, samples, indexKey)  {
 
   lazy val pairedResults = results.map(sample => (sample,
       units(sample.get(CoreParameter.SampleId))))
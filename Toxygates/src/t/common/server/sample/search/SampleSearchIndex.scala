@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.common.server.sample.search
+
+import java.util.BitSet
+
+import scala.collection.JavaConverters._
+import t.common.shared.sample.search.AndMatch
+import t.common.shared.sample.search.AtomicMatch
+import t.common.shared.sample.search.MatchCondition
+import t.common.shared.sample.search.MatchType
+import t.common.shared.sample.search.OrMatch
+import t.model.sample.Attribute
+import t.util.LRUCache
+
+object SampleSearchIndex {
+  /**
+   * Maximum number of attribute indexes kept in the shared cache.
+   */
+  val maxSharedAttributes = 50
+
+  private val sharedAttributes = new LRUCache[Any, AttributeIndex[_]](maxSharedAttributes)
+
+  private[search] def bits(size: Int)(test: Int => Boolean): BitSet = {
+    val r = new BitSet(size)
+    for (i <- 0 until size; if test(i)) {
+      r.set(i)
+    }
+    r
+  }
+
+  private[search] def and(a: BitSet, b: BitSet): BitSet = {
+    val r = a.clone.asInstanceOf[BitSet]
+    r.and(b)
+    r
+  }
+}
+
+/**
+ * Indexed data for a single attribute of a sequence of samples.
+ * The comparisons against the normal range bounds are only made when a high, low or
+ * normal range match is evaluated.
+ */
+private[search] class AttributeIndex[ST](samples: IndexedSeq[ST], attribute: Attribute,
+                                         value: (ST, Attribute) => Option[Double],
+                                         upperBound: (ST, Attribute) => Option[Double],
+                                         lowerBound: (ST, Attribute) => Option[Double]) {
+  import SampleSearchIndex._
+
+  val size = samples.size
+  private val raw = samples.map(value(_, attribute))
+  val values = raw.map(_.getOrElse(Double.NaN)).toArray
+  val hasValue = bits(size)(raw(_).isDefined)
+
+  /**
+   * Ordinals of samples with a non-NaN value, sorted by value.
+   */
+  val sorted: Array[Int] =
+    (0 until size).filter(i => !values(i).isNaN).sortBy(values(_)).toArray
+  val sortedValues = sorted.map(values(_))
+
+  private def compareBound(bound: (ST, Attribute) => Option[Double],
+                           comparator: (Double, Double) => Boolean) = {
+    val defined = new BitSet(size)
+    val result = new BitSet(size)
+    for (i <- 0 until size; if hasValue.get(i);
+         b <- bound(samples(i), attribute)) {
+      defined.set(i)
+      if (comparator(values(i), b)) {
+        result.set(i)
+      }
+    }
+    (defined, result)
+  }
+
+  //Samples for which the comparison could be made, and samples for which it succeeded
+  private lazy val upper = compareBound(upperBound, _ > _)
+  private lazy val lower = compareBound(lowerBound, _ < _)
+
+  def high: BitSet = upper._2
+  def low: BitSet = lower._2
+
+  def normal: BitSet = {
+    val r = and(upper._1, lower._1)
+    r.andNot(high)
+    r.andNot(low)
+    r
+  }
+
+  /**
+   * Samples with value >= threshold.
+   */
+  def atLeast(threshold: Double): BitSet = {
+    val r = new BitSet(size)
+    if (!threshold.isNaN) {
+      for (i <- lowerIndex(threshold) until sorted.length) {
+        r.set(sorted(i))
+      }
+    }
+    r
+  }
+
+  /**
+   * Samples with value <= threshold.
+   */
+  def atMost(threshold: Double): BitSet = {
+    val r = new BitSet(size)
+    if (!threshold.isNaN) {
+      for (i <- 0 until upperIndex(threshold)) {
+        r.set(sorted(i))
+      }
+    }
+    r
+  }
+
+  //First position with a value >= x
+  private def lowerIndex(x: Double): Int = {
+    var lo = 0
+    var hi = sortedValues.length
+    while (lo < hi) {
+      val mid = (lo + hi) >>> 1
+      if (sortedValues(mid) < x) lo = mid + 1 else hi = mid
+    }
+    lo
+  }
+
+  //First position with a value > x
+  private def upperIndex(x: Double): Int = {
+    var lo = 0
+    var hi = sortedValues.length
+    while (lo < hi) {
+      val mid = (lo + hi) >>> 1
+      if (sortedValues(mid) <= x) lo = mid + 1 else hi = mid
+    }
+    lo
+  }
+}
+
+/**
+ * In-memory search index over a fixed sequence of samples (or units).
+ * Each sample is identified by its ordinal in the sequence, and sets of samples
+ * are represented as bitsets, so that match conditions can be combined with
+ * bitwise operations.
+ *
+ * Per-attribute data (values, sorted values and high/low test results) is computed the
+ * first time an attribute is needed and then kept. If sharedKey is given, the
+ * per-attribute data is also kept in a process-wide cache, so that later indexes over the
+ * same data (e.g. for later searches) can reuse it.
+ *
+ * @param value the numerical value of an attribute for a sample, if available
+ * @param upperBound the upper bound of the normal range of an attribute for a sample,
+ *  if available
+ * @param lowerBound the lower bound of the normal range of an attribute for a sample,
+ *  if available
+ * @param sharedKey identifies the data that the index for an attribute is built from
+ *  (the samples, in order, and everything that their values and bounds depend on).
+ */
+class SampleSearchIndex[ST](val samples: IndexedSeq[ST],
+                            value: (ST, Attribute) => Option[Double],
+                            upperBound: (ST, Attribute) => Option[Double],
+                            lowerBound: (ST, Attribute) => Option[Double],
+                            sharedKey: Option[Attribute => Any] = None) {
+  import SampleSearchIndex._
+
+  val size = samples.size
+
+  private var attributeIndexes = Map[Attribute, AttributeIndex[_]]()
+
+  private def build(attribute: Attribute): AttributeIndex[_] =
+    sharedKey match {
+      case Some(key) =>
+        val k = key(attribute)
+        sharedAttributes.get(k) match {
+          case Some(ai) if ai.size == size => ai
+          case _ =>
+            val ai = new AttributeIndex(samples, attribute, value, upperBound, lowerBound)
+            sharedAttributes.insert(k, ai)
+            ai
+        }
+      case None =>
+        new AttributeIndex(samples, attribute, value, upperBound, lowerBound)
+    }
+
+  private def attributeIndex(attribute: Attribute): AttributeIndex[_] = synchronized {
+    attributeIndexes.get(attribute) match {
+      case Some(ai) => ai
+      case None =>
+        val ai = build(attribute)
+        attributeIndexes += attribute -> ai
+        ai
+    }
+  }
+
+  private def or(a: BitSet, b: BitSet): BitSet = {
+    val r = a.clone.asInstanceOf[BitSet]
+    r.or(b)
+    r
+  }
+
+  /**
+   * The ordinals of the samples that match the condition.
+   */
+  def matching(condition: MatchCondition): BitSet =
+    evaluate(condition).clone.asInstanceOf[BitSet]
+
+  /**
+   * The result may be shared with the index, and should not be modified.
+   */
+  private def evaluate(condition: MatchCondition): BitSet =
+    condition match {
+      case and: AndMatch =>
+        and.subConditions.asScala.map(evaluate _).reduce(SampleSearchIndex.and _)
+      case or: OrMatch =>
+        or.subConditions.asScala.map(evaluate _).reduce(this.or _)
+      case at: AtomicMatch =>
+        evaluate(at)
+    }
+
+  private def evaluate(condition: AtomicMatch): BitSet = {
+    val ai = attributeIndex(condition.parameter)
+    condition.matchType match {
+      case MatchType.High => ai.high
+      case MatchType.Low => ai.low
+      case MatchType.NormalRange => ai.normal
+      case MatchType.AboveLimit => ai.atLeast(condition.param1)
+      case MatchType.BelowLimit => ai.atMost(condition.param1)
+      case _ => throw new Exception("Unexpected match type")
+    }
+  }
+
+  /**
+   * The samples that match the condition, in index order.
+   */
+  def results(condition: MatchCondition): Seq[ST] = {
+    val bs = evaluate(condition)
+    Iterator.iterate(bs.nextSetBit(0))(i => bs.nextSetBit(i + 1)).
+      takeWhile(_ >= 0).map(samples(_)).toVector
+  }
+}
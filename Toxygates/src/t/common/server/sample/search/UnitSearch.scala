@@ -24,7 +24,7 @@ import t.model.sample.OTGAttribute._
 import t.common.shared.sample.Sample
 import t.common.shared.sample.Unit
 import t.common.shared.sample.search.MatchCondition
-import t.model.sample.{AttributeSet, CoreParameter, VarianceSet}
+import t.model.sample.{Attribute, AttributeSet, CoreParameter, VarianceSet}
 import t.viewer.server.UnitsHelper
 
 object UnitSearch extends SearchCompanion[Unit, UnitSearch] {
@@ -45,14 +45,16 @@ object UnitSearch extends SearchCompanion[Unit, UnitSearch] {
     val controlUnits = controlUnitsAndVarianceSetsbyID.mapValues(_._1)
     val varianceSets = controlUnitsAndVarianceSetsbyID.mapValues(_._2)
 
-    new UnitSearch(condition, varianceSets, controlUnits, units, attributes)
+    new UnitSearch(condition, varianceSets, controlUnits, units, attributes,
+      Some(indexKey(samples, attributes)))
   }
 }
 
 class UnitSearch(condition: MatchCondition,
                  varianceSets: Map[String, VarianceSet], controlUnits: Map[String, Unit],
-                 samples: Iterable[Unit], attributes: AttributeSet)
-    extends AbstractSampleSearch[Unit](condition, varianceSets, samples)  {
+                 samples: Iterable[Unit], attributes: AttributeSet,
+                 indexKey: Option[Attribute => Any] = None)
+    extends AbstractSampleSearch[Unit](condition, varianceSets, samples, indexKey)  {
 
   lazy val pairedResults = results.map(unit => (unit,
       controlUnits(unit.get(CoreParameter.SampleId))))
@@ -115,7 +115,8 @@ public class NetworkVisualizationDialog implements LoadNetworkDialog.Delegate {
       messageDialog
           .showIfDesired("Warning: for performance reasons, the network was truncated from "
               + network.trueSize() + " to " + Network.MAX_NODES
-          + " main nodes, using the current sort order. "
+          + " main nodes, using the current sort order, and to at most "
+          + Network.MAX_EDGES + " interactions. "
           + "You may wish to apply filtering.");
     }
   }
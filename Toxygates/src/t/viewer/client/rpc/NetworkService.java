@@ -74,6 +74,15 @@ public interface NetworkService extends RemoteService {
    */
   Network currentView(String mainId);
 
+  /**
+   * Obtain a window of the current network, identified by the id of the main table matrix.
+   * Only the nodes and interactions inside the window are constructed and returned.
+   * @param mainId
+   * @param window the main nodes, interactions and ordering to include.
+   * @return
+   */
+  Network currentView(String mainId, NetworkWindow window);
+
   /**
    * Serialize an interaction network to a downloadable file. 
    * @param network the network to serialize.
@@ -91,6 +100,23 @@ public interface NetworkService extends RemoteService {
    */
   String prepareNetworkDownload(String mainTableId, Format format, 
       String messengerWeightColumn, String microWeightColumn);
+
+  /**
+   * Start serializing the current network of a main table to a downloadable file.
+   * The file is written in the background, and networkDownloadStatus should be polled
+   * to obtain the URL once it is ready.
+   * @param mainTableId the ID of the main table that contains the network.
+   * @param format the format to use for serialization.
+   * @param compress whether to gzip-compress the file.
+   */
+  void startNetworkDownload(String mainTableId, Format format,
+      String messengerWeightColumn, String microWeightColumn, boolean compress);
+
+  /**
+   * Obtain the status of the most recent download started by startNetworkDownload.
+   * @return the status, or null if no download has been started.
+   */
+  NetworkDownloadStatus networkDownloadStatus();
   
   
 }
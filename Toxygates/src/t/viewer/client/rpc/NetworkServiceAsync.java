@@ -41,7 +41,14 @@ public interface NetworkServiceAsync {
 
   void currentView(String mainId, AsyncCallback<Network> callback);
 
+  void currentView(String mainId, NetworkWindow window, AsyncCallback<Network> callback);
+
   void prepareNetworkDownload(String mainTableId, Format format, String messengerWeightColumn,
       String microWeightColumn, AsyncCallback<String> callback);
 
+  void startNetworkDownload(String mainTableId, Format format, String messengerWeightColumn,
+      String microWeightColumn, boolean compress, AsyncCallback<Void> callback);
+
+  void networkDownloadStatus(AsyncCallback<NetworkDownloadStatus> callback);
+
 }
@@ -20,6 +20,9 @@
 package t.viewer.client.table;
 
 import com.google.gwt.event.dom.client.ClickHandler;
+import com.google.gwt.user.client.Timer;
+import com.google.gwt.user.client.Window;
+import com.google.gwt.user.client.rpc.AsyncCallback;
 import com.google.gwt.user.client.ui.Button;
 import com.google.gwt.user.client.ui.MenuItem;
 import com.google.gwt.user.client.ui.SplitLayoutPanel;
@@ -43,7 +46,9 @@ import t.viewer.shared.ColumnFilter;
 import t.viewer.shared.mirna.MirnaSource;
 import t.viewer.shared.network.Format;
 import t.viewer.shared.network.Network;
+import t.viewer.shared.network.NetworkDownloadStatus;
 import t.viewer.shared.network.NetworkInfo;
+import t.viewer.shared.network.NetworkWindow;
 
 import java.util.ArrayList;
 import java.util.HashSet;
@@ -349,8 +354,8 @@ public class DualTableView extends TableView implements NetworkMenu.Delegate, Ne
   // NetworkMenu.Delegate methods
   @Override
   public void visualizeNetwork() {
-    networkService.currentView(mainMatrix, new PendingAsyncCallback<Network>(screen.manager(),
-        "Unable to load network view") {
+    networkService.currentView(mainMatrix, NetworkWindow.visualizationWindow(),
+        new PendingAsyncCallback<Network>(screen.manager(), "Unable to load network view") {
       @Override
       public void handleSuccess(Network result) {
         result.changeTitle(networkStorage().suggestName(result.title()));
@@ -367,12 +372,45 @@ public class DualTableView extends TableView implements NetworkMenu.Delegate, Ne
         : sideExpressionTable.matrix().info().columnName(0);
     String microFirstColumn = (mode == DualMode.Reverse) ? expressionTable.matrix().info().columnName(0)
         : sideExpressionTable.matrix().info().columnName(0);
-    networkService.prepareNetworkDownload(mainMatrix, format, 
-      messengerFirstColumn, microFirstColumn,
-        new PendingAsyncCallback<String>(screen.manager()) {
+    networkService.startNetworkDownload(mainMatrix, format,
+      messengerFirstColumn, microFirstColumn, false,
+        new PendingAsyncCallback<Void>(screen.manager()) {
       @Override
-      public void handleSuccess(String url) {
-        Utils.displayURL("Your download is ready.", "Download", url);
+      public void handleSuccess(Void result) {
+        pollNetworkDownload();
+      }
+    });
+  }
+
+  private static final int DOWNLOAD_POLL_INTERVAL = 1000; // ms
+
+  /**
+   * Poll the server until the network download that is being prepared is ready.
+   */
+  private void pollNetworkDownload() {
+    networkService.networkDownloadStatus(new AsyncCallback<NetworkDownloadStatus>() {
+      @Override
+      public void onSuccess(NetworkDownloadStatus status) {
+        if (status == null) {
+          Window.alert("No network download is being prepared.");
+        } else if (!status.finished()) {
+          logger.info("Preparing network download (" + status.percentage() + "%)");
+          new Timer() {
+            @Override
+            public void run() {
+              pollNetworkDownload();
+            }
+          }.schedule(DOWNLOAD_POLL_INTERVAL);
+        } else if (status.url() != null) {
+          Utils.displayURL("Your download is ready.", "Download", status.url());
+        } else {
+          Window.alert("Unable to prepare network download: " + status.error());
+        }
+      }
+
+      @Override
+      public void onFailure(Throwable caught) {
+        Window.alert("Unable to obtain network download status: " + caught);
       }
     });
   }
@@ -451,7 +489,7 @@ public class DualTableView extends TableView implements NetworkMenu.Delegate, Ne
       sideExpressionTable.refetchRows(MAX_SECONDARY_ROWS);
     } else if (table == sideExpressionTable) {
       if (netvizDialog != null) {
-        networkService.currentView(mainMatrix,
+        networkService.currentView(mainMatrix, NetworkWindow.visualizationWindow(),
             new PendingAsyncCallback<Network>(screen.manager(), "Unable to load network view") {
               @Override
               public void handleSuccess(Network result) {
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.viewer.server
+
+import t.common.shared.AType
+import t.db.BioObject
+import t.platform.Probe
+import t.sparql._
+
+import scala.collection.{Set => CSet}
+
+object AssociationCache {
+  /**
+   * Default maximum number of cached (type, context, probe) entries.
+   */
+  val defaultMaxEntries = 500000
+}
+
+/**
+ * Cache of resolved associations, keyed by association type, a context (such as the
+ * sample class and filter that the associations depend on) and probe identifier.
+ * Only the probes that are missing from the cache are looked up, in a single batch per type.
+ *
+ * At most maxEntries entries are kept, and the least recently used ones are evicted first.
+ * The cache is discarded whenever the data generation (see DataGeneration) changes.
+ */
+class AssociationCache(generation: DataGeneration,
+                       maxEntries: Int = AssociationCache.defaultMaxEntries) {
+  private type Key = (AType, Any, String)
+  private type Entry = Option[CSet[_ <: BioObject]]
+
+  /**
+   * Cached associations. None means that the probe had no entry in the lookup result.
+   */
+  private val entries = new java.util.LinkedHashMap[Key, Entry](16, 0.75f, true) {
+    override def removeEldestEntry(e: java.util.Map.Entry[Key, Entry]) =
+      size > maxEntries
+  }
+
+  /**
+   * Discard all cached associations.
+   */
+  def clear(): Unit = synchronized { entries.clear() }
+
+  def size: Int = synchronized { entries.size }
+
+  /**
+   * Obtain associations for the given probes, looking up only the probes that have not
+   * been cached for this type and context.
+   * @param context Additional key that the associations depend on.
+   * @param lookup Performs a batched lookup for the missing probes.
+   */
+  def get(at: AType, context: Any, probes: Iterable[Probe])
+         (lookup: Iterable[Probe] => BBMap): BBMap = {
+    if (generation.changed()) {
+      clear()
+    }
+
+    val byId = Map() ++ probes.map(p => (p.identifier -> p))
+    val cached = synchronized {
+      byId.keys.toSeq.map(id => (id, entries.get((at, context, id))))
+    }
+    val missing = cached.filter(_._2 == null).map(_._1)
+
+    val found: Map[String, CSet[_ <: BioObject]] = if (missing.isEmpty) {
+      Map()
+    } else {
+      val r = Map() ++ lookup(missing.map(byId)).map(x => (x._1.identifier -> x._2))
+      synchronized {
+        for (id <- missing) {
+          entries.put((at, context, id), r.get(id))
+        }
+      }
+      r
+    }
+
+    Map() ++ (for {
+      (id, entry) <- cached
+      assocs <- (if (entry == null) found.get(id) else entry)
+    } yield (Probe(id) -> assocs))
+  }
+}
@@ -24,6 +24,7 @@ import t.common.shared.AType._
 import t.db.DefaultBio
 import t.model.SampleClass
 import t.platform.Probe
+import t.platform.Species.Species
 import t.platform.mirna.TargetTable
 import t.sparql.secondary._
 import t.sparql.{toBioMap, _}
@@ -53,6 +54,27 @@ class DrugTargetResolver(sampleStore: SampleStore, chembl: ChEMBL,
   }
 }
 
+object MirnaResolver {
+  /**
+   * Species-filtered views of target tables, created once per table and species.
+   * Tables that are no longer referenced (e.g. replaced in a user session) are released.
+   */
+  private val speciesTables =
+    new java.util.WeakHashMap[TargetTable, Map[Species, TargetTable]]
+
+  def speciesTable(table: TargetTable, species: Species): TargetTable =
+    speciesTables.synchronized {
+      val forTable = Option(speciesTables.get(table)).getOrElse(Map())
+      forTable.get(species) match {
+        case Some(t) => t
+        case None =>
+          val t = table.speciesFilter(species)
+          speciesTables.put(table, forTable + (species -> t))
+          t
+      }
+    }
+}
+
 class MirnaResolver(probeStore: ProbeStore, platforms: t.viewer.server.PlatformRegistry, mirnaTable: TargetTable,
                     mainPlatform: Option[String], sidePlatform: Option[String]) {
 
@@ -71,8 +93,7 @@ class MirnaResolver(probeStore: ProbeStore, platforms: t.viewer.server.PlatformR
     if (mirnaTable.isEmpty) {
       Console.err.println("Target table is empty; no mRNA-miRNA associations will be found")
     }
-    //Note: we might perform this filtering once and store it in the matrix state
-    val filtTable = species.map(mirnaTable.speciesFilter(_)).getOrElse(mirnaTable)
+    val filtTable = species.map(MirnaResolver.speciesTable(mirnaTable, _)).getOrElse(mirnaTable)
     println(s"Lookup from miRNA table of size ${filtTable.size}, species: $species")
 
     //Note: we might unify this resolution with the "aprobes" mechanism
@@ -103,13 +124,33 @@ class MirnaResolver(probeStore: ProbeStore, platforms: t.viewer.server.PlatformR
   }
 }
 
+object AssociationResolver {
+  /**
+   * Types whose associations depend on per-session state (the miRNA target table
+   * and network platforms), and which are therefore never cached.
+   */
+  val uncachedTypes: Set[AType] = Set(MiRNA, MRNA)
+
+  /**
+   * The context that associations of a given type depend on, apart from the probes
+   * themselves.
+   */
+  def cacheContext(at: AType, sc: SampleClass, sf: SampleFilter): Any = at match {
+    case Drugbank | Chembl => (sc.copy, sf)
+    case _ => ()
+  }
+}
+
 /**
  * The association resolver looks up probe associations based on the AType enum.
  * Subresolvers provide partial functions that perform the resolution.
+ * If a cache is supplied, only uncached probes are looked up for each type.
  */
 class AssociationResolver(probeStore: ProbeStore,
                           sampleStore: SampleStore,
-                          b2rKegg: B2RKegg) {
+                          b2rKegg: B2RKegg,
+                          cache: Option[AssociationCache] = None) {
+  import AssociationResolver._
 
   val mainResolver: AssociationLookup = {
     case (GOMF, _, _, probes)       => probeStore.mfGoTerms(probes)
@@ -138,9 +179,16 @@ class AssociationResolver(probeStore: ProbeStore,
                         probes: Iterable[Probe], extraResolvers: Iterable[AssociationLookup]): BBMap = {
     val resolvers = (Seq(mainResolver) ++ extraResolvers).reduce(_ orElse _)
 
-    resolvers.lift(at, sc, sf, probes) match {
-      case Some(r) => r
-      case None =>  throw new Exception("Unexpected annotation type")
+    def lookup(probes: Iterable[Probe]): BBMap =
+      resolvers.lift(at, sc, sf, probes) match {
+        case Some(r) => r
+        case None =>  throw new Exception("Unexpected annotation type")
+      }
+
+    cache match {
+      case Some(c) if !uncachedTypes.contains(at) =>
+        c.get(at, cacheContext(at, sc, sf), probes)(lookup)
+      case _ => lookup(probes)
     }
   }
 
@@ -188,7 +236,9 @@ class AssociationMasterLookup(probeStore: ProbeStore, sampleStore: SampleStore,
   val triplestore = sampleStore.triplestore
   lazy val drugTargetResolver = new DrugTargetResolver(sampleStore, chembl, drugBank).lookup
   lazy val b2rKegg: B2RKegg = new B2RKegg(triplestore.conn)
-  lazy val associationResolver =  new AssociationResolver(probeStore, sampleStore, b2rKegg)
+  lazy val associationCache = new AssociationCache(DataGeneration(triplestore))
+  lazy val associationResolver =  new AssociationResolver(probeStore, sampleStore, b2rKegg,
+    Some(associationCache))
   lazy val platformsCache = new PlatformRegistry(probeStore)
 
   /**
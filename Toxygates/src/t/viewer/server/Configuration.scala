@@ -21,6 +21,7 @@ package t.viewer.server
 
 import javax.servlet.{ServletConfig, ServletContext}
 import t.Context
+import t.clustering.server.ClusteringCache
 import t.Factory
 import t.TriplestoreConfig
 import t.sparql.InstanceStore
@@ -67,7 +68,9 @@ object Configuration {
       p("matrixDbOptions"),
       p("feedbackReceivers"),
       p("feedbackFromAddress"),
-      readIntermineInstances)
+      readIntermineInstances,
+      p("clusteringBackend"),
+      p("clusteringCacheMB"))
   }
 }
 
@@ -87,7 +90,9 @@ class Configuration(val repositoryName: String,
     val matrixDbOptions: String = null,
     val feedbackReceivers: String = null,
     val feedbackFromAddress: String = null,
-    val intermineInstances: Iterable[IntermineInstance] = Seq()) {
+    val intermineInstances: Iterable[IntermineInstance] = Seq(),
+    val clusteringBackend: String = null,
+    val clusteringCacheMB: String = null) {
 
   println(s"Created configuration with ${intermineInstances.size} intermine instances")
 
@@ -105,6 +110,13 @@ class Configuration(val repositoryName: String,
 
   def context(f: Factory): Context = f.context(tsConfig, dataConfig(f))
 
+  /**
+   * Size bound for the shared cache of heatmap clustering results.
+   */
+  def clusteringCacheBytes: Long =
+    Option(clusteringCacheMB).map(_.toLong * 1024 * 1024).
+      getOrElse(ClusteringCache.defaultMaxBytes)
+
   def instanceURI: Option[String] =
     if (instanceName == null || instanceName == "") {
       None
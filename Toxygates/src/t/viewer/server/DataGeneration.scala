@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.viewer.server
+
+import t.sparql.{BatchStore, PlatformStore, Triplestore}
+import t.sparql.Triplestore.tPrefixes
+
+object DataGeneration {
+  /**
+   * A token that changes whenever batches or platforms are inserted, replaced or deleted.
+   */
+  def query(triplestore: Triplestore): Any =
+    triplestore.mapQuery(s"""$tPrefixes
+      |SELECT ?l ?ts WHERE {
+      |  VALUES ?cls { ${BatchStore.itemClass} ${PlatformStore.itemClass} }
+      |  ?item a ?cls; rdfs:label ?l.
+      |  OPTIONAL { ?item t:timestamp ?ts }
+      |}""".stripMargin).map(x => (x("l"), x.get("ts"))).toSet
+
+  def apply(triplestore: Triplestore): DataGeneration =
+    new DataGeneration(() => query(triplestore))
+}
+
+/**
+ * Tracks a generation token for data that caches depend on.
+ * The token is computed at most once every checkInterval milliseconds.
+ * @param generation computes the current generation token
+ */
+class DataGeneration(generation: () => Any, checkInterval: Long = 60 * 1000) {
+  @volatile private var current: Any = null
+  @volatile private var lastCheck = 0L
+
+  /**
+   * Check the generation token, if a check is due.
+   * @return true if the token has changed since the previous check.
+   */
+  def changed(): Boolean = {
+    val now = System.currentTimeMillis()
+    if (now - lastCheck >= checkInterval) synchronized {
+      if (now - lastCheck >= checkInterval) {
+        val gen = generation()
+        lastCheck = now
+        if (gen != current) {
+          current = gen
+          return true
+        }
+      }
+    }
+    false
+  }
+}
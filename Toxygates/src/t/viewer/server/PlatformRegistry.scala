@@ -21,6 +21,7 @@ package t.viewer.server
 
 import t.platform.Probe
 import t.sparql.{PlatformLoader, ProbeStore}
+import t.sparql.secondary.Gene
 import t.platform.Species.Species
 
 /**
@@ -34,48 +35,189 @@ class MemoryPlatforms(platforms: Map[String, Iterable[Probe]]) extends PlatformL
   def allPlatforms: Map[String, Iterable[Probe]] = platforms
 }
 
-class PlatformRegistry(loader: PlatformLoader) {
-  //map platform to probe sets
-  private lazy val platformSets = loader.allPlatforms.mapValues(_.map(_.identifier).toSet)
+object PlatformRegistry {
+  /**
+   * A probe in a platform. Probes with the same identifier in other platforms
+   * are chained through next.
+   */
+  private final class Entry(val platform: Int, val probe: Probe, val next: Entry)
+
+  /**
+   * An immutable view of the loaded platforms, with a lookup map from
+   * probe identifier to (platform ordinal, probe).
+   */
+  private class Snapshot(val platforms: Vector[String],
+                         val platformProbes: Vector[Seq[Probe]],
+                         val complete: Boolean) {
+    val ordinals: Map[String, Int] = Map() ++ platforms.zipWithIndex
+
+    val lookup: java.util.HashMap[String, Entry] = {
+      val r = new java.util.HashMap[String, Entry]
+      //Add in reverse so that the first platform appears first in each chain
+      for {
+        (probes, pf) <- platformProbes.zipWithIndex.reverse
+        p <- probes
+      } {
+        r.put(p.identifier, new Entry(pf, p, r.get(p.identifier)))
+      }
+      r
+    }
+
+    lazy val platformIdentifiers: Vector[Set[String]] =
+      platformProbes.map(_.iterator.map(_.identifier).toSet)
+
+    lazy val geneLookup: Map[Gene, Seq[Probe]] = {
+      val raw = (for (
+        probes <- platformProbes;
+        pr <- probes;
+        gene <- pr.genes
+        ) yield (gene, pr))
+      Map() ++ raw.groupBy(_._1).mapValues(_.map(_._2))
+    }
+
+    def first(id: String): Option[Entry] = Option(lookup.get(id))
+
+    def inPlatform(id: String, platform: Int): Option[Probe] = {
+      var e = lookup.get(id)
+      while (e != null && e.platform != platform) {
+        e = e.next
+      }
+      if (e == null) None else Some(e.probe)
+    }
+
+    def inAnyPlatform(id: String, platforms: Set[Int]): Boolean = {
+      var e = lookup.get(id)
+      while (e != null && !platforms.contains(e.platform)) {
+        e = e.next
+      }
+      e != null
+    }
+
+    def withPlatforms(loaded: Seq[(String, Seq[Probe])], complete: Boolean): Snapshot =
+      new Snapshot(platforms ++ loaded.map(_._1),
+        platformProbes ++ loaded.map(_._2), complete)
+  }
+
+  private val emptySnapshot = new Snapshot(Vector(), Vector(), false)
+
+  /**
+   * A registry that discards its loaded platforms when platforms are inserted, replaced
+   * or deleted in the triplestore (see DataGeneration). Suitable for long-lived registries.
+   */
+  def apply(probeStore: ProbeStore): PlatformRegistry =
+    new PlatformRegistry(probeStore, Some(DataGeneration(probeStore.triplestore)))
+}
+
+/**
+ * Registry of platforms and their probes.
+ * Platforms are loaded on demand (or all at once when an operation needs every platform)
+ * into an immutable lookup map from probe identifier to (platform, probe), which is
+ * replaced as a whole when platforms are added or reloaded. Readers never observe a
+ * partially built map, and lookups are O(1) per identifier.
+ * Unknown platforms behave as platforms without probes.
+ *
+ * @param generation if given, the registry is reloaded when the generation changes.
+ */
+class PlatformRegistry(loader: PlatformLoader, generation: Option[DataGeneration] = None) {
+  import PlatformRegistry._
+
+  @volatile private var snapshot: Snapshot = emptySnapshot
+
+  /**
+   * A snapshot that contains at least the given platforms.
+   */
+  private def loaded(platforms: Iterable[String]): Snapshot = {
+    checkGeneration()
+    val s = snapshot
+    if (s.complete || platforms.forall(s.ordinals.contains)) {
+      s
+    } else synchronized {
+      val current = snapshot
+      val missing = platforms.toSeq.distinct.filter(!current.ordinals.contains(_))
+      snapshot = current.withPlatforms(
+        missing.map(pf => (pf, loader.probesForPlatform(pf).toSeq)), current.complete)
+      snapshot
+    }
+  }
+
+  /**
+   * A snapshot that contains all platforms. Expensive the first time.
+   */
+  private def complete: Snapshot = {
+    checkGeneration()
+    val s = snapshot
+    if (s.complete) {
+      s
+    } else synchronized {
+      if (!snapshot.complete) {
+        snapshot = loadAll()
+      }
+      snapshot
+    }
+  }
+
+  private def loadAll(): Snapshot =
+    emptySnapshot.withPlatforms(loader.allPlatforms.toSeq.map(x => (x._1, x._2.toSeq)), true)
 
-  //map ID to probe
-  private lazy val identifierLookup =
-    Map() ++ loader.allPlatforms.toSeq.flatMap(_._2.toSeq).map(x => x.identifier -> x)
+  /**
+   * Discard and reload all currently loaded platforms, for example after platforms
+   * have been changed in the database. Readers continue to use the previous
+   * data until the new data has been fully loaded.
+   */
+  def reload(): Unit = synchronized {
+    val current = snapshot
+    snapshot = if (current.complete) {
+      loadAll()
+    } else {
+      emptySnapshot.withPlatforms(
+        current.platforms.map(pf => (pf, loader.probesForPlatform(pf).toSeq)), false)
+    }
+  }
 
-  private var platformIdentifierLookup = Map.empty[String, Map[String, Probe]]
-  private def ensurePlatformLoaded(platform: String): Unit = {
-    if (!platformIdentifierLookup.contains(platform)) {
-      platformIdentifierLookup += (platform ->
-        loader.probesForPlatform(platform).iterator.map(p => p.identifier -> p).toMap)
+  private def checkGeneration(): Unit = {
+    if (generation.exists(_.changed())) {
+      reload()
     }
   }
 
-  lazy val allProbes: Iterable[Probe] = loader.allPlatforms.values.toSeq.flatten
+  def allProbes: Iterable[Probe] = complete.platformProbes.flatten
+
   def getProbe(platform: String, id: String): Option[Probe] = {
-    ensurePlatformLoaded(platform)
-    platformIdentifierLookup(platform).get(id)
+    val s = loaded(Seq(platform))
+    s.ordinals.get(platform).flatMap(s.inPlatform(id, _))
   }
 
-  def probeIdentifiers(platform: String): Set[String] =
-    loader.probesForPlatform(platform).map(_.identifier).toSet
-  def platformProbes(platform: String): Iterable[Probe] =
-    loader.probesForPlatform(platform)
-
-  lazy val geneLookup = {
-    val raw = (for (
-      (pf, probes) <- loader.allPlatforms.toSeq;
-      pr <- probes;
-      gene <- pr.genes
-      ) yield (gene, pr))
-    Map() ++ raw.groupBy(_._1).mapValues(_.map(_._2))
+  /**
+   * Batch version of getProbe. The result is aligned with the requested identifiers.
+   */
+  def getProbes(platform: String, ids: Seq[String]): IndexedSeq[Option[Probe]] = {
+    val s = loaded(Seq(platform))
+    s.ordinals.get(platform) match {
+      case Some(pf) => ids.map(s.inPlatform(_, pf)).toIndexedSeq
+      case None => ids.map(_ => None).toIndexedSeq
+    }
+  }
+
+  def probeIdentifiers(platform: String): Set[String] = {
+    val s = loaded(Seq(platform))
+    s.ordinals.get(platform).map(s.platformIdentifiers(_)).getOrElse(Set())
+  }
+
+  def platformProbes(platform: String): Iterable[Probe] = {
+    val s = loaded(Seq(platform))
+    s.ordinals.get(platform).map(s.platformProbes(_)).getOrElse(Seq())
   }
 
+  def geneLookup: Map[Gene, Seq[Probe]] = complete.geneLookup
+
   /**
-   * Probe resolution by going through all known platforms. Slow, forces
+   * Probe resolution by going through all known platforms. Forces
    * loading of all platforms (the first time the method is called).
    */
-  def resolve(identifiers: Seq[String]): Seq[Probe] =
-    identifiers.flatMap(identifierLookup.get(_))
+  def resolve(identifiers: Seq[String]): Seq[Probe] = {
+    val s = complete
+    identifiers.flatMap(s.first(_).map(_.probe))
+  }
 
   def resolve(platform: Option[String], identifiers: Seq[String]): Seq[Probe] =
     platform match {
@@ -87,9 +229,11 @@ class PlatformRegistry(loader: PlatformLoader) {
    * Probe resolution by going through a single known platform.
    */
   def resolve(platform: String, identifiers: Seq[String]): Seq[Probe] = {
-    ensurePlatformLoaded(platform)
-    val registry = platformIdentifierLookup(platform)
-    identifiers.flatMap(registry.get(_))
+    val s = loaded(Seq(platform))
+    s.ordinals.get(platform) match {
+      case Some(pf) => identifiers.flatMap(s.inPlatform(_, pf))
+      case None => Seq()
+    }
   }
 
   /**
@@ -98,40 +242,35 @@ class PlatformRegistry(loader: PlatformLoader) {
   def filterProbes(probes: Iterable[String],
       platforms: Iterable[String],
       species: Option[Species] = None): Iterable[String] = {
-    var rem = Set() ++ probes
-    var r = Set[String]()
-    for (p <- platforms; valid = filterProbes(rem, p, species)) {
-      rem --= valid
-      r ++= valid
+    if (probes.isEmpty) {
+      platforms.toSeq.flatMap(allProbes(_, species)).distinct
+    } else {
+      val s = loaded(platforms)
+      val pfs = platforms.flatMap(s.ordinals.get).toSet
+      probes.toSeq.distinct.filter(s.inAnyPlatform(_, pfs))
     }
-    r.toSeq
   }
 
   /**
    * Filter probes for all platforms.
    */
-  def filterProbesAllPlatforms(probes: Seq[String]): Seq[String] =
-    probes.filter(identifierLookup.keySet.contains)
+  def filterProbesAllPlatforms(probes: Seq[String]): Seq[String] = {
+    val s = complete
+    probes.filter(s.lookup.containsKey)
+  }
 
-  def platformForProbe(p: String): Option[String] =
-    platformSets.find(_._2.contains(p)).map(_._1)
+  def platformForProbe(p: String): Option[String] = {
+    val s = complete
+    s.first(p).map(e => s.platforms(e.platform))
+  }
 
   /**
    * Filter probes for one platform. Returns all probes in the platform if the input
    * set is empty.
    */
   def filterProbes(probes: Iterable[String], platform: String,
-      species: Option[Species]): Iterable[String] = {
-    if (probes.size == 0) {
-      allProbes(platform, species)
-    } else {
-      val pset = probes.toSet
-      println(s"Filter (${pset.size}) ${pset take 20} ...")
-      val r = pset.intersect(probeIdentifiers(platform))
-      println(s"Result (${r.size}) ${r take 20} ...")
-      r.toSeq
-    }
-  }
+      species: Option[Species]): Iterable[String] =
+    filterProbes(probes, Seq(platform), species)
 
   private def allProbes(platform: String, species: Option[Species]) = {
     val all = probeIdentifiers(platform)
@@ -34,6 +34,8 @@ import t.sparql.SampleStore
 import t.viewer.server.Conversions._
 import t.viewer.shared.TimeoutException
 
+import scala.collection.JavaConverters._
+
 object UnitStore {
   def asUnit(ss: Iterable[Sample], schema: DataSchema) = new Unit(
     SampleClassUtils.asUnit(ss.head.sampleClass, schema), ss.toArray)
@@ -42,10 +44,60 @@ object UnitStore {
     s.get(ControlTreatment) == s.get(Treatment)
 }
 
-class UnitStore(schema: DataSchema, sampleStore: SampleStore) extends
+/**
+ * Constructs treated and control units from the samples in the triplestore.
+ * Control group membership (all treated and control samples sharing a control treatment)
+ * is cached, so that units can normally be built with a single query.
+ * The cache is discarded when the data generation changes.
+ */
+class UnitStore(schema: DataSchema, sampleStore: SampleStore,
+                generation: DataGeneration) extends
   UnitsHelper(schema) {
   import UnitStore._
 
+  def this(schema: DataSchema, sampleStore: SampleStore) =
+    this(schema, sampleStore, DataGeneration(sampleStore.triplestore))
+
+  /**
+   * Control group members by sample filter, sample class constraint and control treatment.
+   */
+  private val controlGroups =
+    new java.util.concurrent.ConcurrentHashMap[(SampleFilter, SampleClassFilter, String),
+      Seq[t.db.Sample]]
+
+  private def checkGeneration(): scala.Unit = {
+    if (generation.changed()) {
+      controlGroups.clear()
+    }
+  }
+
+  private def cacheGroups(samples: Iterable[t.db.Sample], sc: SampleClassFilter,
+                          sf: SampleFilter): scala.Unit = {
+    for ((ct, members) <- samples.groupBy(_(ControlTreatment))) {
+      controlGroups.put((sf, sc, ct), members.toSeq)
+    }
+  }
+
+  /**
+   * Obtain all samples (treated and control) in each of the given control groups.
+   * Control groups that are not cached are fetched using a single query.
+   * @param controlTreatments control treatment IDs identifying the control groups
+   * @param sc constraints that the members must satisfy
+   */
+  def controlGroupMembers(controlTreatments: Iterable[String], sc: SampleClassFilter,
+                          sf: SampleFilter): Map[String, Seq[t.db.Sample]] = {
+    checkGeneration()
+    val distinct = controlTreatments.toSeq.distinct
+    val cached = distinct.map(ct => (ct, Option(controlGroups.get((sf, sc, ct)))))
+    val missing = cached.filter(_._2.isEmpty).map(_._1)
+    val fetched = sampleStore.samplesInControlGroups(missing, sc, sf).groupBy(_(ControlTreatment))
+    for (ct <- missing) {
+      controlGroups.put((sf, sc, ct), fetched.getOrElse(ct, Seq()))
+    }
+
+    Map() ++ cached.map(x => (x._1 -> x._2.getOrElse(fetched.getOrElse(x._1, Seq()))))
+  }
+
   /**
    * For a user-specified sample filter, searches for samples and
    * generates units containing treated samples and their associated control samples.
@@ -53,12 +105,18 @@ class UnitStore(schema: DataSchema, sampleStore: SampleStore) extends
   @throws[TimeoutException]
   def units(sc: SampleClass, param: String, paramValues: Array[String],
             sf: SampleFilter) : Array[Pair[Unit, Unit]] = {
+    checkGeneration()
 
-    //This will filter by the chosen parameter - usually compound name
-    //The result need not contain the corresponding control samples, so these must be fetched
-    //using a separate query.
-    val rs = sampleStore.samples(SampleClassFilter(sc), param,
+    //This will filter by the chosen parameter - usually compound name.
+    //The complete control groups of the matching samples are fetched by the same query
+    //and cached, so that no separate query for control samples is needed.
+    val all = sampleStore.samplesWithControlGroups(SampleClassFilter(sc), param,
       paramValues.toSeq, sf)
+    cacheGroups(all, SampleClassFilter(sc), sf)
+
+    val valueSet = paramValues.toSet
+    val rs = if (valueSet.isEmpty) all else
+      all.filter(_.sampleClass.getMap.asScala.exists(x => x._1.id == param && valueSet.contains(x._2)))
     units(sc, rs, sf).map(x => new Pair(x._1, x._2.getOrElse(null))).toArray
   }
 
@@ -69,8 +127,9 @@ class UnitStore(schema: DataSchema, sampleStore: SampleStore) extends
 
     val controlTreatments = groupedSamples.keys.toSeq.map(_._2).distinct
     //Look for samples where Treatment is in the set of expected ControlTreatment values
-    val potentialControls = sampleStore.samples(SampleClassFilter(sc),
-      Treatment.id, controlTreatments, sf).map(asJavaSample)
+    val potentialControls = controlGroupMembers(controlTreatments, SampleClassFilter(sc), sf).
+      values.flatten.
+      filter(isControl).map(asJavaSample)
 
     var r = List[(Unit, Option[Unit])]()
     for {
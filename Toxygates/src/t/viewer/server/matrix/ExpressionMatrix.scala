@@ -19,8 +19,6 @@
 
 package t.viewer.server.matrix
 
-import org.apache.commons.math3.stat.inference.MannWhitneyUTest
-import org.apache.commons.math3.stat.inference.TTest
 import friedrich.data.immutable._
 import t.db.BasicExprValue
 import t.db.ExprValue
@@ -28,9 +26,6 @@ import t.db.ExprValue
 import scala.collection.mutable.WrappedArray
 
 object ExpressionMatrix {
-  val ttest = new TTest()
-  val utest = new MannWhitneyUTest()
-
   /**
    * Rebuild any Seq into the vector type expected by this
    * matrix.
@@ -138,42 +133,37 @@ class ExpressionMatrix(rowData: IndexedSeq[IndexedSeq[BasicExprValue]], rows: In
    * sourceData must have the same number of rows as this matrix.
    */
   def appendTwoColTest(sourceData: ExpressionMatrix, group1: Seq[String], group2: Seq[String],
-                       test: (Seq[Double], Seq[Double]) => Double, minValues: Int, colName: String): ExpressionMatrix = {
-    val sourceCols1 = sourceData.selectNamedColumns(group1)
-    val sourceCols2 = sourceData.selectNamedColumns(group2)
-
-    val ps = sourceCols1.toRowVectors.zip(sourceCols2.toRowVectors).zipWithIndex
-    val pvals = ps.map(r => {
-      val probe = sourceData.rowKeys(r._2)
-      val vs1 = r._1._1.filter(_.present).map(_.value)
-      val vs2 = r._1._2.filter(_.present).map(_.value)
-
-      if (vs1.size >= minValues && vs2.size >= minValues) {
-        new BasicExprValue(test(vs1, vs2), 'P')
-      } else {
-        new BasicExprValue(Double.NaN, 'A')
-      }
-    })
-    appendColumn(pvals, colName)
-  }
+                       test: TwoGroupTests.Test, colName: String): ExpressionMatrix =
+    appendTwoColTest(sourceData, (0 until rows).toArray, group1, group2, test, colName)
 
-  private def equals0(x: Double) = java.lang.Double.compare(x, 0d) == 0
+  /**
+   * Append a two column test, which is based on the data in "sourceData".
+   * @param sourceRows for each row in this matrix, the corresponding row index in sourceData.
+   */
+  def appendTwoColTest(sourceData: ExpressionMatrix, sourceRows: Array[Int],
+                       group1: Seq[String], group2: Seq[String],
+                       test: TwoGroupTests.Test, colName: String): ExpressionMatrix =
+    appendResultColumn(TwoGroupTests.compute(sourceData, sourceRows, group1, group2, test),
+      colName)
 
   def appendTTest(sourceData: ExpressionMatrix, group1: Seq[String], group2: Seq[String],
                   colName: String): ExpressionMatrix =
-    appendTwoColTest(sourceData, group1, group2,
-        (x,y) => ttest.tTest(x.toArray, y.toArray), 2, colName)
+    appendTwoColTest(sourceData, group1, group2, TwoGroupTests.TTest, colName)
 
   def appendUTest(sourceData: ExpressionMatrix, group1: Seq[String], group2: Seq[String],
                   colName: String): ExpressionMatrix =
-    appendTwoColTest(sourceData, group1, group2,
-        (x,y) => utest.mannWhitneyUTest(x.toArray, y.toArray), 2, colName)
+    appendTwoColTest(sourceData, group1, group2, TwoGroupTests.UTest, colName)
 
   def appendDiffTest(sourceData: ExpressionMatrix, group1: Seq[String], group2: Seq[String],
-                     colName: String): ExpressionMatrix = {
-    def diffTest(a1: Seq[Double], a2: Seq[Double]): Double = safeMean(a1.toList) - safeMean(a2.toList)
+                     colName: String): ExpressionMatrix =
+    appendTwoColTest(sourceData, group1, group2, TwoGroupTests.MeanDifference, colName)
 
-    appendTwoColTest(sourceData, group1, group2, diffTest, 1, colName)
+  /**
+   * Append a column in a single copy step, keeping row keys and annotations.
+   */
+  def appendResultColumn(col: Array[BasicExprValue], name: String): ExpressionMatrix = {
+    val nrows = (0 until rows).map(i => rowData(i) :+ col(i))
+    new ExpressionMatrix(nrows, rows, columns + 1, rowKeys, columnKeys :+ name, annotations)
   }
 
   def appendStatic(data: Seq[Double], name: String): ExpressionMatrix = {
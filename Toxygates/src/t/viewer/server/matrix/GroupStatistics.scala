@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.viewer.server.matrix
+
+import org.apache.commons.math3.stat.descriptive.StatisticalSummaryValues
+import org.apache.commons.math3.stat.StatUtils
+
+object GroupStatistics {
+  /**
+   * Number of rows processed by each parallel task.
+   */
+  val blockSize = 256
+
+  /**
+   * Compute statistics for the present values of each data column's base columns,
+   * for all rows of the ungrouped matrix, in a single parallel sweep.
+   * @param baseColumns for each grouped data column, the ungrouped columns that it
+   *  was built from.
+   */
+  def apply(ungrouped: ExpressionMatrix, baseColumns: Map[Int, Seq[Int]],
+            numDataColumns: Int): GroupStatistics = {
+    val rows = ungrouped.rows
+    val bases = (0 until numDataColumns).map(c =>
+      baseColumns.getOrElse(c, Seq()).toArray).toArray
+    val columns = bases.map(b => new GroupStatistics.Column(b, rows))
+
+    (0 until rows by blockSize).par.foreach(start => {
+      val end = Math.min(rows, start + blockSize)
+      val buf = new Array[Double](if (bases.isEmpty) 0 else bases.map(_.length).max)
+      var r = start
+      while (r < end) {
+        val row = ungrouped.row(r)
+        var c = 0
+        while (c < columns.length) {
+          val col = columns(c)
+          var n = 0
+          var i = 0
+          while (i < col.baseColumns.length) {
+            val v = row(col.baseColumns(i))
+            if (v.present) {
+              buf(n) = v.value
+              n += 1
+            }
+            i += 1
+          }
+          col.set(r, buf, n)
+          c += 1
+        }
+        r += 1
+      }
+    })
+    new GroupStatistics(ungrouped.rowKeys, columns)
+  }
+
+  /**
+   * Statistics for a single grouped column. Each array is indexed by row.
+   * Means and variances are computed in the same way as commons-math's StatUtils,
+   * so that they can be used in tests without changing the results.
+   */
+  class Column(val baseColumns: Array[Int], rows: Int) {
+    val present = new Array[Int](rows)
+    val mean = new Array[Double](rows)
+    val variance = new Array[Double](rows)
+    val min = new Array[Double](rows)
+    val max = new Array[Double](rows)
+
+    private[GroupStatistics] def set(row: Int, values: Array[Double], n: Int): Unit = {
+      present(row) = n
+      mean(row) = StatUtils.mean(values, 0, n)
+      variance(row) = StatUtils.variance(values, 0, n)
+      min(row) = StatUtils.min(values, 0, n)
+      max(row) = StatUtils.max(values, 0, n)
+    }
+
+    def summary(row: Int): StatisticalSummaryValues =
+      new StatisticalSummaryValues(mean(row), variance(row), present(row),
+        max(row), min(row), mean(row) * present(row))
+  }
+}
+
+/**
+ * Summary statistics (present count, mean, variance, min and max) of the present
+ * ungrouped values behind each (probe, grouped data column).
+ * Kept alongside a matrix and reused by tooltips and two-group tests.
+ */
+class GroupStatistics(val rowKeys: Array[String], val columns: Array[GroupStatistics.Column]) {
+  lazy val rowMap: Map[String, Int] = Map() ++ rowKeys.iterator.zipWithIndex
+
+  /**
+   * Find the grouped column whose base columns are exactly the given ungrouped
+   * columns, in the same order.
+   */
+  def columnFor(baseColumns: Seq[Int]): Option[GroupStatistics.Column] =
+    columns.find(_.baseColumns.sameElements(baseColumns))
+
+  def summary(probe: String, column: Int): Option[StatisticalSummaryValues] =
+    for {
+      r <- rowMap.get(probe)
+      if column < columns.length
+    } yield columns(column).summary(r)
+}
+
+/**
+ * Holds the group statistics computed for some ungrouped data, so that they can be
+ * shared by copies of the LoadParams that they belong to. The statistics are recomputed
+ * only if they are requested for different data.
+ */
+class GroupStatisticsCache {
+  private var cached: Option[(ExpressionMatrix, Map[Int, Seq[Int]], Int, GroupStatistics)] = None
+
+  def get(ungrouped: ExpressionMatrix, baseColumns: Map[Int, Seq[Int]],
+          numDataColumns: Int): GroupStatistics = synchronized {
+    cached match {
+      case Some((u, b, n, stats)) if (u eq ungrouped) && b == baseColumns && n == numDataColumns =>
+        stats
+      case _ =>
+        val stats = GroupStatistics(ungrouped, baseColumns, numDataColumns)
+        cached = Some((ungrouped, baseColumns, numDataColumns, stats))
+        stats
+    }
+  }
+}
@@ -27,6 +27,7 @@ import t.viewer.shared.ColumnFilter
 import t.viewer.shared.ManagedMatrixInfo
 import t.viewer.shared.Synthetic
 import t.common.shared.GroupUtils
+import org.apache.commons.math3.stat.descriptive.StatisticalSummary
 
 object ManagedMatrix {
  type RowData = Seq[BasicExprValue]
@@ -37,6 +38,18 @@ object ManagedMatrix {
       sortWith(ExprValue.isBefore).map(_.toString).mkString(" ")
   }
 
+  /**
+   * Tooltip with the values and, if there are several present values, their
+   * standard deviation.
+   */
+  def makeTooltip[E <: ExprValue](data: Iterable[E],
+                                  summary: Option[StatisticalSummary]): String =
+    summary match {
+      case Some(s) if s.getN > 1 =>
+        s"${makeTooltip(data)} (sd ${ExprValue.nf.format(s.getStandardDeviation)})"
+      case _ => makeTooltip(data)
+    }
+
   val pValueColumnShortName = "P-value"
   val log2FoldColumnShortName = "Log2-fold"
   val controlColumnShortName = "Control"
@@ -51,12 +64,23 @@ object ManagedMatrix {
  *
  * @param rawGrouped unfiltered matrix.
  *  The final view is obtained by filtering this (if requested).
+ *
+ * @param statisticsCache holds the group statistics, which copies of these
+ *  parameters share.
  */
 case class LoadParams(val initProbes: Seq[String],
                       val currentInfo: ManagedMatrixInfo,
                       val rawUngrouped: ExpressionMatrix,
                       var rawGrouped: ExpressionMatrix,
-                      val baseColumnMap: Map[Int, Seq[Int]]) {
+                      val baseColumnMap: Map[Int, Seq[Int]],
+                      val statisticsCache: GroupStatisticsCache = new GroupStatisticsCache) {
+
+  /**
+   * Summary statistics of the ungrouped values behind each data column.
+   * These are shared with copies of these parameters.
+   */
+  def groupStatistics: GroupStatistics =
+    statisticsCache.get(rawUngrouped, baseColumnMap, currentInfo.numDataColumns())
 
   def platform = GroupUtils.groupPlatform(currentInfo.columnGroup(0))
   def typ = GroupUtils.groupType(currentInfo.columnGroup(0))
@@ -159,25 +183,11 @@ class CoreMatrix(val params: LoadParams) {
   }
 
   protected def filterAndSort(): Unit = {
-    def f(r: RowData): Boolean = {
-      for (
-        col <- 0 until currentInfo.numColumns();
-        filt = currentInfo.columnFilter(col);
-        if (filt != null && filt.active())
-      ) {
-        //Note, comparisons with NaN are always false
-        val pass = filt.test(r(col).value)
-        if (!pass || !r(col).present) {
-          return false
-        }
-      }
-      true
-    }
-
     println(s"Filter: ${currentInfo.numDataColumns} data ${currentInfo.numSynthetics} synthetic")
 
     println(s"Select ${requestProbes.size} probes out of ${current.rows} from current")
-    current = current.selectNamedRows(requestProbes).filterRows(f)
+    val selected = current.selectNamedRows(requestProbes)
+    current = selected.selectRows(passingRows(selected))
     _sortColumn match {
       case Some(sc) => sort(sc, _sortAscending)
       case _ => //not sorting
@@ -186,37 +196,73 @@ class CoreMatrix(val params: LoadParams) {
   }
 
   /**
-   * Returns true if v1 should be prior to v2 in the ordering.
+   * The rows of the matrix that pass all active column filters.
+   * Filters are applied one column at a time, only to rows that passed the previous ones.
    */
-  private final def sortRows(col: Int, ascending: Boolean)(v1: RowData, v2: RowData): Boolean = {
+  private def passingRows(mat: ExpressionMatrix): Seq[Int] = {
+    val pass = Array.fill(mat.rows)(true)
+    for {
+      col <- 0 until currentInfo.numColumns();
+      filt = currentInfo.columnFilter(col);
+      if (filt != null && filt.active())
+    } {
+      var r = 0
+      while (r < pass.length) {
+        if (pass(r)) {
+          //Note, comparisons with NaN are always false
+          val v = mat(r, col)
+          pass(r) = v.present && filt.test(v.value)
+        }
+        r += 1
+      }
+    }
+    (0 until pass.length).filter(pass(_))
+  }
+
+  /**
+   * Row order for sorting the matrix by a column. Absent and NaN values are placed last.
+   * The sort is stable.
+   */
+  private def sortedOrder(mat: ExpressionMatrix, col: Int, ascending: Boolean): Seq[Int] = {
     import java.lang.{Double => JDouble}
 
-    val ev1 = v1(col)
-    val ev2 = v2(col)
-
-    def lowPriority(x: ExprValue) =
-      !x.present || JDouble.isNaN(x.value)
-
-    if (lowPriority(ev1) && !lowPriority(ev2)) {
-      false
-    } else if (!lowPriority(ev1) && lowPriority(ev2)) {
-      true
-    } else {
-      if (ascending) {
-        JDouble.compare(ev1.value, ev2.value) < 0
-      } else {
-        JDouble.compare(ev1.value, ev2.value) > 0
-      }
+    val values = new Array[Double](mat.rows)
+    val lowPriority = new Array[Boolean](mat.rows)
+    for (r <- 0 until mat.rows) {
+      val v = mat(r, col)
+      values(r) = v.value
+      lowPriority(r) = !v.present || JDouble.isNaN(v.value)
     }
+
+    val order = Array.tabulate[Integer](mat.rows)(Integer.valueOf)
+    java.util.Arrays.sort(order, new java.util.Comparator[Integer] {
+      def compare(a: Integer, b: Integer): Int = {
+        if (lowPriority(a) != lowPriority(b)) {
+          if (lowPriority(a)) 1 else -1
+        } else if (ascending) {
+          JDouble.compare(values(a), values(b))
+        } else {
+          JDouble.compare(values(b), values(a))
+        }
+      }
+    })
+    order.map(_.intValue)
   }
 
   def sort(col: Int, ascending: Boolean): Unit = {
     _sortColumn = Some(col)
     _sortAscending = ascending
-    current = current.sortRows(sortRows(col, ascending))
+    current = current.selectRows(sortedOrder(current, col, ascending))
     currentRowsChanged()
   }
 
+  /**
+   * The row keys of the current view, in the order that sort(col, ascending) would
+   * produce. The current view itself is not changed.
+   */
+  def sortedRowKeys(col: Int, ascending: Boolean): Seq[String] =
+    sortedOrder(current, col, ascending).map(current.rowKeys(_))
+
   /**
    * Reset modifications such as filtering, sorting and probe selection.
    */
@@ -250,6 +296,15 @@ trait Synthetics extends CoreMatrix {
 
   protected var _synthetics: Vector[Synthetic] = Vector()
 
+  /**
+   * Two-group test results by test definition. These are retained when synthetics are
+   * removed, so that re-adding a test does not require recomputation.
+   */
+  protected var syntheticResults = scala.collection.mutable.Map[TwoGroupTests.Key, TwoGroupResults]()
+
+  private def treatedSampleIds(g: t.common.shared.sample.Group): Seq[String] =
+    g.getTreatedSamples.map(_.id).toSeq
+
    def removeSynthetics(): Unit = {
     _synthetics = Vector()
     val dataColumns = 0 until currentInfo.numDataColumns()
@@ -287,24 +342,47 @@ trait Synthetics extends CoreMatrix {
   protected def addSyntheticInner(s: Synthetic): Unit = {
     s match {
       case test: Synthetic.TwoGroupSynthetic =>
-
-        val g1s = test.getGroup1.getTreatedSamples.map(_.id)
-        val g2s = test.getGroup2.getTreatedSamples.map(_.id)
-
-        val currentRows = (0 until current.rows).map(i => current.rowKeys(i))
-        //Need this to take into account sorting and filtering of currentMat
-        val rawData = rawUngrouped.selectNamedRows(currentRows)
-
-        current = test match {
-          case ut: Synthetic.UTest =>
-            current.appendUTest(rawData, g1s, g2s, ut.getShortTitle)
-          case tt: Synthetic.TTest =>
-            current.appendTTest(rawData, g1s, g2s, tt.getShortTitle)
-          case md: Synthetic.MeanDifference =>
-            current.appendDiffTest(current, Seq(test.getGroup1.getName),
-                Seq(test.getGroup2.getName), md.getShortTitle)
+        val key = test match {
+          case _: Synthetic.UTest =>
+            TwoGroupTests.Key(TwoGroupTests.UTest, treatedSampleIds(test.getGroup1),
+              treatedSampleIds(test.getGroup2))
+          case _: Synthetic.TTest =>
+            TwoGroupTests.Key(TwoGroupTests.TTest, treatedSampleIds(test.getGroup1),
+              treatedSampleIds(test.getGroup2))
+          case _: Synthetic.MeanDifference =>
+            TwoGroupTests.Key(TwoGroupTests.MeanDifference, Seq(test.getGroup1.getName),
+              Seq(test.getGroup2.getName))
           case _ => throw new Exception("Unexpected test type!")
         }
+        //Mean differences are computed from the grouped values, the other tests
+        //from the individual samples
+        val source = key.test match {
+          case TwoGroupTests.MeanDifference => rawGrouped
+          case _ => rawUngrouped
+        }
+
+        //Only compute results for probes that have not been seen before. Results
+        //are then arranged to take into account sorting and filtering of currentMat
+        val results = syntheticResults.synchronized {
+          syntheticResults.getOrElseUpdate(key, new TwoGroupResults)
+        }
+        val missing = results.missing(current.rowKeys)
+        if (missing.nonEmpty) {
+          val sourceRows = missing.map(source.rowMap.getOrElse(_, -1))
+          val stats = params.groupStatistics
+          def statsColumn(samples: Seq[String]) =
+            stats.columnFor(samples.flatMap(rawUngrouped.columnMap.get))
+          val computed = (key.test, statsColumn(key.group1), statsColumn(key.group2)) match {
+            //The precomputed variance terms can be reused if the groups match data columns
+            case (TwoGroupTests.TTest, Some(c1), Some(c2)) =>
+              TwoGroupTests.tTest(c1, c2, missing.map(stats.rowMap.getOrElse(_, -1)))
+            case _ =>
+              TwoGroupTests.compute(source, sourceRows, key.group1, key.group2, key.test)
+          }
+          results.put(missing, computed)
+        }
+        current = current.appendResultColumn(results.column(current.rowKeys),
+          test.getShortTitle)
         val name = test.getName
         if (!currentInfo.hasColumn(name)) {
           currentInfo.addColumn(true, name, name, test.getTooltip,
@@ -349,6 +427,7 @@ class ManagedMatrix(params: LoadParams) extends CoreMatrix(params) with Syntheti
     val r = new ManagedMatrix(params.copy())
     r._sortColumn = _sortColumn
     r._sortAscending = _sortAscending
+    r.syntheticResults = syntheticResults
     r.selectProbes(probes)
     r
   }
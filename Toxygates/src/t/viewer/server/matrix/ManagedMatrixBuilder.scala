@@ -34,8 +34,8 @@ import scala.reflect.ClassTag
 abstract class ManagedMatrixBuilder[E <: ExprValue : ClassTag](reader: MatrixDBReader[E], val probes: Seq[String]) {
   import ManagedMatrix._
 
-  def build(requestColumns: Seq[Group], sparseRead: Boolean)(implicit context: MatrixContext): ManagedMatrix = {
-    loadRawData(requestColumns, reader, sparseRead)
+  def build(requestColumns: Seq[Group])(implicit context: MatrixContext): ManagedMatrix = {
+    loadRawData(requestColumns, reader)
   }
 
   /**
@@ -93,14 +93,14 @@ abstract class ManagedMatrixBuilder[E <: ExprValue : ClassTag](reader: MatrixDBR
   }
 
   def loadRawData(requestColumns: Seq[Group],
-    reader: MatrixDBReader[E], sparseRead: Boolean)(implicit context: MatrixContext): ManagedMatrix = {
+    reader: MatrixDBReader[E])(implicit context: MatrixContext): ManagedMatrix = {
     val packedProbes = probes.map(context.probeMap.pack).toArray
 
     val samples = requestColumns.flatMap(g => g.getSamples).distinct
 
     val sortedSamples = reader.sortSamples(samples.map(b => Sample(b.id)))
-    val data = reader.valuesForSamplesAndProbes(sortedSamples,
-        packedProbes, sparseRead, false).map(_.toSeq).
+    val data = reader.plannedValuesForSamplesAndProbes(sortedSamples,
+        packedProbes).map(_.toSeq).
         filter(row => row.exists(_.isPadding == false))
 
     val sortedProbes = data.map(row => row(0).probe)
@@ -128,12 +128,13 @@ abstract class ManagedMatrixBuilder[E <: ExprValue : ClassTag](reader: MatrixDBR
       (i -> sampleIdxs)
     })
 
-    new ManagedMatrix(
-      LoadParams(sortedProbes, info,
+    val params = LoadParams(sortedProbes, info,
         ungrouped.copyWithAnnotations(annotations),
         grouped.copyWithAnnotations(annotations),
         baseColumns)
-      )
+    //Computed up front, as tooltips and two-group tests will need it
+    params.groupStatistics
+    new ManagedMatrix(params)
   }
 
   final protected def selectIdx[E <: ExprValue](data: Seq[E], is: List[Int]): List[E] = is.map(data(_))
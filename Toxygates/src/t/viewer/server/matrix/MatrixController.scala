@@ -119,9 +119,7 @@ abstract class MatrixController(context: Context,
         case _ => throw new Exception("Unexpected DB reader type")
       }
 
-      //Note: clarify the best code location of this heuristic
-      val sparseRead = probes.size <= 10
-      b.build(groups, sparseRead)(matrixContext)
+      b.build(groups)(matrixContext)
     } finally {
       reader.release()
     }
@@ -56,7 +56,8 @@ class PageDecorator(context: Context, control: MatrixController) {
       } else {
         val basis = mm.baseColumns(i)
         val rawRowCols = basis.map(i => rawRow(i))
-        ManagedMatrix.makeTooltip(rawRowCols)
+        ManagedMatrix.makeTooltip(rawRowCols,
+          mm.params.groupStatistics.summary(groupRow.getProbe, i))
       }
       groupValue.setTooltip(tooltip)
     }
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.viewer.server.matrix
+
+import org.apache.commons.math3.stat.inference.MannWhitneyUTest
+import org.apache.commons.math3.stat.inference.{TTest => StudentTTest}
+import t.db.BasicExprValue
+import t.util.{Parallel, SafeMath}
+
+/**
+ * Computes two-group tests (synthetic columns) for many rows at once.
+ * The present values of both groups are first extracted into primitive arrays for
+ * all rows, and the tests are then run in parallel over blocks of rows.
+ * Each thread uses its own test instance.
+ */
+object TwoGroupTests {
+
+  /**
+   * Number of rows processed by each parallel task.
+   */
+  val blockSize = 256
+
+  type TestFunction = (Array[Double], Array[Double]) => Double
+
+  sealed trait Test {
+    /**
+     * The minimum number of present values in each group for the test to be performed.
+     */
+    def minValues: Int
+
+    /**
+     * Create a test function. The function need not be thread safe.
+     */
+    def newInstance(): TestFunction
+  }
+
+  object TTest extends Test {
+    val minValues = 2
+    def newInstance(): TestFunction = {
+      val t = new StudentTTest()
+      t.tTest(_, _)
+    }
+  }
+
+  object UTest extends Test {
+    val minValues = 2
+    def newInstance(): TestFunction = {
+      val u = new MannWhitneyUTest()
+      u.mannWhitneyUTest(_, _)
+    }
+  }
+
+  object MeanDifference extends Test {
+    val minValues = 1
+    def newInstance(): TestFunction =
+      (x, y) => SafeMath.safeMean(x) - SafeMath.safeMean(y)
+  }
+
+  /**
+   * Identifies a two-group test definition: the test and the columns of the two groups.
+   */
+  case class Key(test: Test, group1: Seq[String], group2: Seq[String])
+
+  /**
+   * For each requested row, extract the present values of the given columns
+   * (in column order) into a primitive array.
+   * @param rows row indexes in the source data. Negative indexes produce empty arrays.
+   */
+  def presentValues(source: ExpressionMatrix, rows: Array[Int],
+                    columns: Seq[String]): Array[Array[Double]] = {
+    val cols = columns.flatMap(source.columnMap.get).toArray
+    val r = new Array[Array[Double]](rows.length)
+    Parallel.foreachInBlocks(rows.length, blockSize)(i => {
+      r(i) = if (rows(i) < 0) {
+        Array()
+      } else {
+        val row = source.row(rows(i))
+        val buf = new Array[Double](cols.length)
+        var n = 0
+        var c = 0
+        while (c < cols.length) {
+          val v = row(cols(c))
+          if (v.present) {
+            buf(n) = v.value
+            n += 1
+          }
+          c += 1
+        }
+        if (n == buf.length) buf else java.util.Arrays.copyOf(buf, n)
+      }
+    })
+    r
+  }
+
+  /**
+   * Perform a two-group test for each requested row.
+   * Rows where either group has too few present values get an absent NaN result.
+   * @param rows row indexes in the source data, in the order of the result.
+   */
+  def compute(source: ExpressionMatrix, rows: Array[Int],
+              group1: Seq[String], group2: Seq[String], test: Test): Array[BasicExprValue] = {
+    val values1 = presentValues(source, rows, group1)
+    val values2 = presentValues(source, rows, group2)
+    val local = new ThreadLocal[TestFunction] {
+      override def initialValue() = test.newInstance()
+    }
+    val min = test.minValues
+
+    val r = new Array[BasicExprValue](rows.length)
+    Parallel.foreachInBlocks(rows.length, blockSize)(i => {
+      r(i) = if (values1(i).length >= min && values2(i).length >= min) {
+        new BasicExprValue(local.get()(values1(i), values2(i)), 'P')
+      } else {
+        new BasicExprValue(Double.NaN, 'A')
+      }
+    })
+    r
+  }
+
+  /**
+   * Perform t-tests from precomputed group statistics. The results are the same as
+   * compute(..., TTest) on the values that the statistics were computed from.
+   * @param rows row indexes in the statistics. Negative indexes produce absent values.
+   */
+  def tTest(group1: GroupStatistics.Column, group2: GroupStatistics.Column,
+            rows: Array[Int]): Array[BasicExprValue] = {
+    val local = new ThreadLocal[StudentTTest] {
+      override def initialValue() = new StudentTTest()
+    }
+    val min = TTest.minValues
+
+    val r = new Array[BasicExprValue](rows.length)
+    Parallel.foreachInBlocks(rows.length, blockSize)(i => {
+      val row = rows(i)
+      r(i) = if (row >= 0 && group1.present(row) >= min && group2.present(row) >= min) {
+        new BasicExprValue(local.get().tTest(group1.summary(row), group2.summary(row)), 'P')
+      } else {
+        new BasicExprValue(Double.NaN, 'A')
+      }
+    })
+    r
+  }
+}
+
+/**
+ * Probe-keyed results of a single two-group test definition.
+ * A test result depends only on the probe and the definition of the test, so these
+ * can be reused across sorting, filtering and probe selection.
+ * Thread safe.
+ */
+class TwoGroupResults {
+  private val index = new java.util.HashMap[String, Integer]
+  private var values = new Array[Double](1024)
+  private var present = new Array[Boolean](1024)
+  private var size = 0
+
+  /**
+   * The probes that do not yet have a result, in the order given.
+   */
+  def missing(probes: Seq[String]): Array[String] = synchronized {
+    probes.iterator.filter(!index.containsKey(_)).toArray.distinct
+  }
+
+  def put(probes: Array[String], results: Array[BasicExprValue]): Unit = synchronized {
+    if (size + probes.length > values.length) {
+      val n = Math.max(values.length * 2, size + probes.length)
+      values = java.util.Arrays.copyOf(values, n)
+      present = java.util.Arrays.copyOf(present, n)
+    }
+    var i = 0
+    while (i < probes.length) {
+      val existing = index.get(probes(i))
+      val pos = if (existing != null) existing.intValue else {
+        index.put(probes(i), size)
+        size += 1
+        size - 1
+      }
+      values(pos) = results(i).value
+      present(pos) = results(i).present
+      i += 1
+    }
+  }
+
+  /**
+   * Results for the given probes, in the order given.
+   * Probes without a result produce absent values.
+   */
+  def column(probes: Seq[String]): Array[BasicExprValue] = synchronized {
+    probes.iterator.map(p => {
+      val pos = index.get(p)
+      if (pos == null) {
+        new BasicExprValue(Double.NaN, 'A')
+      } else if (present(pos)) {
+        new BasicExprValue(values(pos), 'P')
+      } else {
+        new BasicExprValue(values(pos), 'A')
+      }
+    }).toArray
+  }
+
+  def numProbes: Int = synchronized { size }
+}
@@ -22,17 +22,24 @@ package t.viewer.server.network
 import t.common.server.GWTUtils._
 import t.platform.Probe
 import t.platform.mirna._
+import t.util.Parallel
 import t.viewer.server.PlatformRegistry
 import t.viewer.server.matrix.{ExpressionMatrix, ManagedMatrix, PageDecorator}
 import t.viewer.shared.network.Interaction
 import t.viewer.shared.network.Network
+import t.viewer.shared.network.NetworkWindow
 import t.viewer.shared.network.Node
 
-import scala.collection.mutable.{Set => MSet}
 import t.viewer.shared.ManagedMatrixInfo
 import t.common.shared.GWTTypes
 
 object NetworkBuilder {
+  /**
+   * Number of rows or interactions processed by each parallel task during
+   * network construction.
+   */
+  val blockSize = 512
+
   /**
    * Uses the current target table to compute side table probes.
    * @param mainOffset defines the start of the current page in the main matrix.
@@ -77,14 +84,14 @@ class NetworkBuilder(targets: TargetTable,
    */
   def getNodes(mat: ExpressionMatrix, info: ManagedMatrixInfo, mtype: String, maxSize: Option[Int]): Seq[Node] = {
     val allRows = PageDecorator.asGWT(mat.asRows)
-    val useRows = maxSize match {
+    val useRows = (maxSize match {
       case Some(n) => allRows take n
       case None    => allRows
-    }
-    useRows.map(r => {
-      val probe = r.getProbe
-      val symbols = platforms.getProbe(main.params.platform, probe).toList.flatMap(_.symbols).asGWT
-      Node.fromRow(r, symbols, mtype, info)
+    }).toIndexedSeq
+    val probes = platforms.getProbes(main.params.platform, useRows.map(_.getProbe))
+    Parallel.mapInBlocks(useRows.size, NetworkBuilder.blockSize)(i => {
+      val symbols = probes(i).toList.flatMap(_.symbols).asGWT
+      Node.fromRow(useRows(i), symbols, mtype, info)
     })
   }
 
@@ -109,91 +116,131 @@ class NetworkBuilder(targets: TargetTable,
    * Construct a network from the given main and side sub-matrices
    */
   def networkFromSelection(mainSel: ExpressionMatrix, sideSel: ExpressionMatrix,
-                           targets: Iterable[(MiRNA, Probe, Double, String)]) = {
+                           targets: Iterable[(MiRNA, Probe, Double, String)],
+                           edgesTruncated: Boolean = false) = {
 
     val mainNodes = getNodes(mainSel, mainInfo, mainType, None)
     val sideNodes = getNodes(sideSel, sideInfo, sideType, None)
 
-    val nodes = mainNodes ++ sideNodes
+    val nodes = (mainNodes ++ sideNodes).toIndexedSeq
 
-    val nodeLookup = Map() ++ nodes.map(n => n.id -> n)
-    def lookup(p: Probe) = nodeLookup.get(p.identifier)
-    def lookupMicro(m: MiRNA) = nodeLookup.get(m.id)
+    //Node ID to position in nodes
+    val nodeIndex = Map() ++ nodes.iterator.zipWithIndex.map(x => x._1.id -> x._2)
 
-    val ints = (for {
-        iact <- targets
-        (mirna, probe, score, label) = iact
-        miLookup <- lookupMicro(mirna); pLookup <- lookup(probe)
-        int = new Interaction(miLookup, pLookup, label, score)
-      } yield int)
+    val allTargets = targets.toIndexedSeq
+    val ints = Parallel.mapInBlocks(allTargets.size, NetworkBuilder.blockSize)(i => {
+      val (mirna, probe, score, label) = allTargets(i)
+      val from = nodeIndex.getOrElse(mirna.id, -1)
+      val to = nodeIndex.getOrElse(probe.identifier, -1)
+      if (from != -1 && to != -1) {
+        new Interaction(nodes(from), nodes(to), label, score)
+      } else {
+        null
+      }
+    }).filter(_ != null)
 
-    val truncated = (mainSel.rows < main.current.rows)
+    val truncated = (mainSel.rows < main.current.rows) || edgesTruncated
     val trueSize = main.current.rows
 
-    //In case there are too many interactions,
-    //we might prioritise by weight here and limit the number.
-    //Currently edges/interactions are not limited.
-    //val interactions = r.flatMap(_._2) //.toSeq.sortBy(_.weight()) take Network.MAX_EDGES
-    new Network("Network", nodes.asGWT, ints.asGWT,
+    new Network("Network", nodes.asGWT, ints.toSeq.asGWT,
       truncated, trueSize)
   }
 
   /**
-   * Pick the top rows that have interactions from the given matrix,
-   * padding with non-interacting rows if needed
+   * Identify the probes in the main matrix that have interactions with
+   * some probe in the side platform. Works directly on the target table's arrays,
+   * without constructing the interactions.
+   * @param minScore only interactions with at least this score are considered.
    */
-  def topProbesWithInteractions(targets: Iterable[(MiRNA, Probe)]) = {
-
-    var haveInteractions = MSet[String]()
-    //Track which probes (on both sides) have interactions
-    for ((mirna, mrna) <- targets) {
-      haveInteractions += mirna.id
-      haveInteractions += mrna.identifier
-    }
-    var count = 0
-    val max = Network.MAX_NODES
-
-    //Preserve the sort order while taking at most MAX_NODES nodes with interactions
-    var keepMainNodes = Set[String]()
-    for {
-      n <- main.current.rowKeys
-      if (count < max)
-      if (haveInteractions.contains(n))
-    } {
-      count += 1
-      keepMainNodes += n
+  def mainProbesWithInteractions(sidePlatformProbes: Iterable[Probe],
+                                 minScore: Double = Double.NegativeInfinity): String => Boolean =
+    mainType match {
+      case Network.mrnaType =>
+        val transcripts = Set.newBuilder[String]
+        var i = 0
+        while (i < targets.length) {
+          if (targets.scores(i) >= minScore) {
+            transcripts += targets.targets(i)
+          }
+          i += 1
+        }
+        val transcriptSet = transcripts.result
+        val mainPlatform = main.params.platform
+        id => platforms.getProbe(mainPlatform, id).exists(_.transcripts.exists(
+          tr => transcriptSet.contains(tr.id)))
+      case Network.mirnaType =>
+        val sideTranscripts = sidePlatformProbes.iterator.flatMap(_.transcripts.map(_.id)).toSet
+        val origins = Set.newBuilder[String]
+        var i = 0
+        while (i < targets.length) {
+          if (targets.scores(i) >= minScore && sideTranscripts.contains(targets.targets(i))) {
+            origins += targets.origins(i)
+          }
+          i += 1
+        }
+        origins.result
     }
 
-    //Extend the main node set if too few nodes had interactions
-    if (keepMainNodes.size < max) {
-      val need = max - keepMainNodes.size
-      keepMainNodes ++= main.current.rowKeys.filter(!keepMainNodes.contains(_)).take(need)
+  /**
+   * Pick a window of rows from the main matrix, ranking rows that have interactions
+   * before rows that don't (which are used as padding if too few rows have interactions).
+   * The returned rows are in the ranking order of the window (by default, the current
+   * sort order of the matrix), and the scan stops as soon as enough rows have been found.
+   */
+  def topProbesWithInteractions(hasInteractions: String => Boolean,
+                                window: NetworkWindow = NetworkWindow.defaultWindow): Seq[String] = {
+    val rowKeys: Seq[String] = Option(window.sortColumn) match {
+      case Some(col) => main.sortedRowKeys(col, window.sortAscending)
+      case None      => main.current.rowKeys
     }
-    keepMainNodes.toSeq
+
+    val ranked = rowKeys.iterator.filter(hasInteractions) ++
+      rowKeys.iterator.filter(!hasInteractions(_))
+    val keep = ranked.drop(window.offset).take(window.count).toSet
+    rowKeys.filter(keep.contains)
   }
 
-  def build: Network = {
+  /**
+   * Limit interactions to the given number, keeping those with the highest scores.
+   */
+  def limitInteractions(targets: Seq[(MiRNA, Probe, Double, String)],
+                        max: Int): Seq[(MiRNA, Probe, Double, String)] =
+    if (targets.size <= max) {
+      targets
+    } else {
+      targets.sortBy(-_._3) take max
+    }
+
+  def build: Network = build(NetworkWindow.defaultWindow)
+
+  /**
+   * Build the subgraph of the network described by the window.
+   * Only the main rows, interactions and side rows that fall inside the window
+   * are materialised.
+   */
+  def build(window: NetworkWindow): Network = {
     if (main.info.numColumns() == 0) {
       return new Network("Network", mkList(), mkList(), false, 0)
     }
 
     val mainPlatform = main.params.platform
-    val probes = platforms.resolve(mainPlatform, main.current.rowKeys)
     val sidePlatform = side.params.platform
     val sidePlatformProbes = platforms.platformProbes(sidePlatform).toSeq
-    val allTargets = probeTargets(probes, sidePlatformProbes)
 
-    val keepNodes = topProbesWithInteractions(allTargets.map(x => (x._1, x._2)))
+    val keepNodes = topProbesWithInteractions(
+      mainProbesWithInteractions(sidePlatformProbes, window.minScore), window)
     val mainSel = main.current.selectNamedRows(keepNodes)
-    val mainTargets = probeTargets(platforms.resolve(mainPlatform, mainSel.rowKeys), sidePlatformProbes)
     val sideTableProbeSet = side.rawGrouped.rowKeys.toSet
-    val sideProbes = mainTargets.map(targetSideProbe).toSeq.distinct.
-      filter(sideTableProbeSet.contains)
+    val allTargets = probeTargets(platforms.resolve(mainPlatform, mainSel.rowKeys), sidePlatformProbes).
+      filter(t => t._3 >= window.minScore && sideTableProbeSet.contains(targetSideProbe(t))).toSeq
+    val mainTargets = limitInteractions(allTargets, window.maxEdges)
+    val sideProbes = mainTargets.map(targetSideProbe).distinct
 
     //Select as a new copy, in order to avoid affecting the current view being
     //displayed
-    val sideSel = side.selectProbesAsCopy(sideProbes.toSeq)
+    val sideSel = side.selectProbesAsCopy(sideProbes)
 
-    networkFromSelection(mainSel, sideSel.current, mainTargets)
+    networkFromSelection(mainSel, sideSel.current, mainTargets,
+      mainTargets.size < allTargets.size)
   }
 }
@@ -28,7 +28,7 @@ import t.viewer.server.matrix.ManagedMatrix
 import t.platform.mirna.TargetTable
 import t.viewer.server.PlatformRegistry
 import t.viewer.server.matrix.ControllerParams
-import t.viewer.shared.network.{Network, NetworkInfo}
+import t.viewer.shared.network.{Network, NetworkInfo, NetworkWindow}
 
 /**
  * A MatrixController that turns the main matrix into a ManagedNetwork
@@ -54,8 +54,13 @@ class NetworkController(context: Context, platforms: PlatformRegistry,
   /**
    * Produce a network object that reflects the current view.
    */
-  def makeNetwork: Network =
-    new NetworkBuilder(managedMatrix.targets, platforms, managedMatrix, sideMatrix).build
+  def makeNetwork: Network = makeNetwork(NetworkWindow.defaultWindow)
+
+  /**
+   * Produce a network object that reflects a window of the current view.
+   */
+  def makeNetwork(window: NetworkWindow): Network =
+    new NetworkBuilder(managedMatrix.targets, platforms, managedMatrix, sideMatrix).build(window)
 
   def makeNetworkWithInfo = new NetworkInfo(managedMatrix.info, sideMatrix.info, makeNetwork)
 }
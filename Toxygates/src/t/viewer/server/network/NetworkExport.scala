@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.viewer.server.network
+
+import java.util.concurrent.{ExecutorService, Executors, ThreadFactory}
+import java.util.logging.{Level, Logger}
+
+import scala.concurrent.{ExecutionContext, Future}
+import scala.util.{Failure, Success}
+
+import t.viewer.shared.network.{Format, NetworkDownloadStatus}
+
+object NetworkExport {
+  private val logger = Logger.getLogger("NetworkExport")
+
+  //A small pool shared by all sessions, so that exports do not hold RPC threads
+  private var executor: Option[ExecutorService] = None
+
+  private val threadFactory = new ThreadFactory {
+    def newThread(r: Runnable): Thread = {
+      val t = Executors.defaultThreadFactory.newThread(r)
+      t.setName(s"network-export-${t.getId}")
+      t.setDaemon(true)
+      t
+    }
+  }
+
+  def executionContext: ExecutionContext = synchronized {
+    if (executor == None) {
+      executor = Some(Executors.newFixedThreadPool(2, threadFactory))
+    }
+    ExecutionContext.fromExecutor(executor.get)
+  }
+
+  /**
+   * Stop the export threads. Should be called when the servlet is destroyed.
+   * Exports in progress are interrupted.
+   */
+  def shutdown(): Unit = synchronized {
+    executor.foreach(_.shutdownNow())
+    executor = None
+  }
+}
+
+/**
+ * A network serialization that runs in the background, started on construction.
+ * @param file the file to write.
+ * @param url the URL where the file can be downloaded once written.
+ */
+class NetworkExport(serializer: Serializer, file: String, url: String,
+    format: Format, gzip: Boolean) {
+  import NetworkExport._
+
+  @volatile private var written = 0
+  @volatile private var total = 0
+  @volatile private var finished = false
+  @volatile private var error: Option[Throwable] = None
+
+  private implicit val ec = executionContext
+
+  Future {
+    serializer.writeTo(file, format, gzip, true, (w, t) => {
+      written = w
+      total = t
+    })
+  }.onComplete(r => {
+    r match {
+      case Success(_) =>
+      case Failure(e) =>
+        logger.log(Level.SEVERE, s"Network export to $file failed", e)
+        error = Some(e)
+    }
+    finished = true
+  })
+
+  def percentComplete: Int =
+    if (finished || total == 0) 100 else (written * 100L / total).toInt
+
+  def status: NetworkDownloadStatus = {
+    val isFinished = finished
+    new NetworkDownloadStatus(percentComplete, isFinished,
+      if (isFinished && error == None) url else null,
+      error.map(_.getMessage).orNull)
+  }
+}
@@ -20,7 +20,10 @@
 package t.viewer.server.network
 
 import t.viewer.shared.network._
-import java.io.PrintWriter
+import java.io._
+import java.nio.charset.StandardCharsets
+import java.nio.file.{Files, StandardCopyOption}
+import java.util.zip.GZIPOutputStream
 import scala.collection.JavaConverters._
 import t.util.SafeMath
 
@@ -29,16 +32,69 @@ case object IDOnly extends NetworkStyle
 case object SymbolOnly extends NetworkStyle
 case object IDAndSymbol extends NetworkStyle
 
+object Serializer {
+  /**
+   * Receives the number of items (nodes and edges) written so far, and the total number.
+   */
+  type ProgressListener = (Int, Int) => Unit
+
+  val noProgress: ProgressListener = (_, _) => {}
+
+  val bufferSize = 64 * 1024
+
+  /**
+   * How often (in items) progress is reported.
+   */
+  val progressInterval = 1000
+}
+
 /**
  * Serializes interaction networks and writes them to files.
+ * Nodes and edges are streamed directly to a buffered output, so that no
+ * intermediate representation of the whole file is built.
  */
 class Serializer(network: Network, messengerWeightColumn: String, microWeightColumn: String,
     style: NetworkStyle = IDAndSymbol) {
-  def writeTo(file: String, format: Format) {
+  import Serializer._
+
+  private def nodes = network.nodes.asScala
+  private def interactions = network.interactions.asScala
+  private def totalItems = nodes.size + interactions.size
+
+  /**
+   * Write the network to a file. The data is written to a temporary file first,
+   * which replaces the target file only when complete.
+   * @param gzip whether to gzip-compress the output.
+   * @param distinct whether to write only one edge for each pair of nodes.
+   */
+  def writeTo(file: String, format: Format, gzip: Boolean = false,
+      distinct: Boolean = false, progress: ProgressListener = noProgress) {
+    val target = new File(file)
+    val temp = new File(file + ".part")
+    val out = new BufferedOutputStream(new FileOutputStream(temp), bufferSize)
+    val w = new BufferedWriter(new OutputStreamWriter(
+      if (gzip) new GZIPOutputStream(out, bufferSize) else out, StandardCharsets.UTF_8),
+      bufferSize)
+    var complete = false
+    try {
+      write(w, format, distinct, progress)
+      complete = true
+    } finally {
+      w.close()
+      if (!complete) {
+        temp.delete()
+      }
+    }
+    Files.move(temp.toPath, target.toPath, StandardCopyOption.REPLACE_EXISTING,
+      StandardCopyOption.ATOMIC_MOVE)
+  }
+
+  def write(w: Writer, format: Format, distinct: Boolean = false,
+      progress: ProgressListener = noProgress) {
     format match {
-      case Format.DOT => writeDOT(file)
-      case Format.Custom => writeCustom(file)
-      case Format.SIF => writeSIF(file)
+      case Format.DOT => writeDOT(w, distinct, progress)
+      case Format.Custom => writeCustom(w, distinct, progress)
+      case Format.SIF => writeSIF(w, distinct, progress)
       case _ => throw new Exception("Unsupported format")
     }
   }
@@ -52,64 +108,84 @@ class Serializer(network: Network, messengerWeightColumn: String, microWeightCol
   }
 
   /**
-   * Homebrew format used by us.
+   * Write all edges in a single pass, optionally skipping repeated (from, to) pairs.
+   * Items written are counted from the given offset for progress reporting.
    */
-  def writeCustom(file: String) {
-    val w = new PrintWriter(file)
-    try {
-      w.println("[nodes]")
-      for (n <- network.nodes.asScala) {
-        w.println(s""" ${n.id} ${n.`type`} ${nodeWeight(n)} """)
+  private def writeEdges(distinct: Boolean, progress: ProgressListener, offset: Int)
+      (writeEdge: Interaction => Unit) {
+    val total = totalItems
+    val seen = new java.util.HashSet[(String, String)]
+    var count = offset
+    for (i <- interactions) {
+      if (!distinct || seen.add((i.from.id, i.to.id))) {
+        writeEdge(i)
+      }
+      count += 1
+      if (count % progressInterval == 0) {
+        progress(count, total)
       }
+    }
+    progress(total, total)
+  }
 
-      w.println("[edges]")
-      for (i <- network.interactions.asScala) {
-        w.println(s""" ${i.from.id} ${i.to.id} ${i.label()} ${i.weight()} """)
+  private def writeNodes(progress: ProgressListener)(writeNode: Node => Unit): Int = {
+    val total = totalItems
+    var count = 0
+    for (n <- nodes) {
+      writeNode(n)
+      count += 1
+      if (count % progressInterval == 0) {
+        progress(count, total)
       }
-    } finally {
-      w.close()
     }
+    count
+  }
+
+  /**
+   * Homebrew format used by us.
+   */
+  def writeCustom(w: Writer, distinct: Boolean, progress: ProgressListener) {
+    w.write("[nodes]\n")
+    val written = writeNodes(progress)(n =>
+      w.write(s""" ${n.id} ${n.`type`} ${nodeWeight(n)} \n"""))
+
+    w.write("[edges]\n")
+    writeEdges(distinct, progress, written)(i =>
+      w.write(s""" ${i.from.id} ${i.to.id} ${i.label()} ${i.weight()} \n"""))
   }
 
   /**
    * SIF format used by e.g. Cytoscape.
    * Reference: http://manual.cytoscape.org/en/stable/Supported_Network_File_Formats.html#sif-format
    */
-  def writeSIF(file: String) {
-    val w = new PrintWriter(file)
-    try {
-      for (i <- network.interactions.asScala) {
-        w.println(s"""${nodeLabel(i.from)}\tpp\t${nodeLabel(i.to)}""")
-      }
-    } finally{
-      w.close
-    }
+  def writeSIF(w: Writer, distinct: Boolean, progress: ProgressListener) {
+    //Labels are computed once for each node rather than for each edge
+    val labels = new java.util.HashMap[String, String]
+    val written = writeNodes(progress)(n => labels.put(n.id, nodeLabel(n)))
+    def label(n: Node) = Option(labels.get(n.id)).getOrElse(nodeLabel(n))
+
+    writeEdges(distinct, progress, written)(i =>
+      w.write(s"""${label(i.from)}\tpp\t${label(i.to)}\n"""))
   }
 
   /**
    * Dot format used by GraphViz.
    * Reference: http://www.graphviz.org/pdf/dotguide.pdf
    */
-  def writeDOT(file: String) {
-    val w = new PrintWriter(file)
-    try {
-      w.println(s"""|digraph "${network.title}" {
-        |  layout=twopi;
-        |  nodesep=2;
-        |  ranksep=1;""".stripMargin)
+  def writeDOT(w: Writer, distinct: Boolean, progress: ProgressListener) {
+    w.write(s"""|digraph "${network.title}" {
+      |  layout=twopi;
+      |  nodesep=2;
+      |  ranksep=1;
+      |""".stripMargin)
 
-      for (n <- network.nodes.asScala) {
-        w.println(s"""  "${n.id}" [label="${nodeLabel(n)}", ${DOTattributes(n)}]; """)
-      }
+    val written = writeNodes(progress)(n =>
+      w.write(s"""  "${n.id}" [label="${nodeLabel(n)}", ${DOTattributes(n)}]; \n"""))
 
-      for (i <- network.interactions.asScala) {
-        w.println(s"""  "${i.from.id}" -> "${i.to.id}"; """)
-      }
+    writeEdges(distinct, progress, written)(i =>
+      w.write(s"""  "${i.from.id}" -> "${i.to.id}"; \n"""))
 
-      w.println("}")
-    } finally {
-      w.close()
-    }
+    w.write("}\n")
   }
 
   def nodeLabel(n: Node) = style match {
@@ -123,8 +199,9 @@ class Serializer(network: Network, messengerWeightColumn: String, microWeightCol
         n.id
   }
 
-  val maxWeight = SafeMath.safeMax(network.nodes.asScala.map(nodeWeight(_)).toList)
-  val minWeight = SafeMath.safeMin(network.nodes.asScala.map(nodeWeight(_)).toList)
+  private lazy val weights = nodes.map(nodeWeight(_)).toList
+  lazy val maxWeight = SafeMath.safeMax(weights)
+  lazy val minWeight = SafeMath.safeMin(weights)
 
   def DOTcolor(n: Node) = {
     if (java.lang.Double.isNaN(nodeWeight(n)) ||
@@ -24,7 +24,7 @@ import java.util.{List => JList}
 
 import javax.annotation.Nullable
 import t.Context
-import t.clustering.server.RClustering
+import t.clustering.server.{CachingClustering, Clustering, ClusteringCache}
 import t.clustering.shared.Algorithm
 import t.common.shared.ValueType
 import t.common.shared.sample.{ExpressionRow, Group}
@@ -270,7 +270,9 @@ class MatrixServiceImpl extends StatefulServlet[MatrixState] with MatrixService
 
     // R can't deal with backslashes in a file path so we need to replace them
     // with slashes
-    val clust = new RClustering(codeDir.replace("\\", "/"))
+    val backend = Option(config.clusteringBackend).getOrElse(Clustering.rserveBackend)
+    val clust = new CachingClustering(Clustering(backend, codeDir.replace("\\", "/")),
+      backend, ClusteringCache.shared(config.clusteringCacheBytes))
     clust.clustering(data.data.flatten, rowNamesForHeatmap(data.rowNames),
         data.colNames, data.geneSymbols, algorithm, featureDecimalDigits)
   }
@@ -35,13 +35,16 @@ import t.viewer.server.Conversions._
 import t.viewer.server.matrix.ControllerParams
 import t.viewer.server.matrix.MatrixController
 import t.viewer.server.network.NetworkController
+import t.viewer.server.network.NetworkExport
 import t.viewer.server.network.Serializer
 import t.viewer.shared.Synthetic
 import t.viewer.shared.TimeoutException
 import t.viewer.shared.mirna.MirnaSource
 import t.viewer.shared.network.Format
 import t.viewer.shared.network.Network
+import t.viewer.shared.network.NetworkDownloadStatus
 import t.viewer.shared.network.NetworkInfo
+import t.viewer.shared.network.NetworkWindow
 
 object NetworkState {
   val stateKey = "network"
@@ -73,6 +76,11 @@ class NetworkState extends MatrixState {
    * Networks will be stored here and also in the MatrixState's controllers.
    */
   var networks = Map[String, NetworkController]()
+
+  /**
+   * The most recently started network download.
+   */
+  var download: Option[NetworkExport] = None
 }
 
 class NetworkServiceImpl extends StatefulServlet[NetworkState] with NetworkService {
@@ -84,13 +92,18 @@ class NetworkServiceImpl extends StatefulServlet[NetworkState] with NetworkServi
   lazy val netLoader = new NetworkLoader(context, platforms, mirnaDir)
 
   private def probeStore: ProbeStore = context.probeStore
-  lazy val platforms = new PlatformRegistry(probeStore)
+  lazy val platforms = PlatformRegistry(probeStore)
 
   override def localInit(c: Configuration) {
     super.localInit(c)
     config = c
   }
 
+  override def destroy() {
+    NetworkExport.shutdown()
+    super.destroy()
+  }
+
   @throws[TimeoutException]
   def setMirnaSources(sources: Array[MirnaSource]): scala.Unit = {
     var r = new TargetTableBuilder
@@ -127,17 +140,15 @@ class NetworkServiceImpl extends StatefulServlet[NetworkState] with NetworkServi
   def currentView(mainTableId: String): Network =
     getState.networks(mainTableId).makeNetwork
 
-  def distinctInteractions(net: Network): Network = {
-    val all = net.interactions().asScala.groupBy(i => (i.from, i.to))
-    val distinct = all.values.map(_.head)
-    new Network(net.title(), net.nodes(),
-      distinct.toList.asJava, net.wasTruncated(), net.trueSize())
-  }
+  def currentView(mainTableId: String, window: NetworkWindow): Network =
+    getState.networks(mainTableId).makeNetwork(window)
 
   def prepareNetworkDownload(mainTableId: String, format: Format,
                              messengerWeightColumn: String, microWeightColumn: String): String = {
-    prepareNetworkDownload(distinctInteractions(currentView(mainTableId)),
-      format, messengerWeightColumn, microWeightColumn)
+    val s = new Serializer(currentView(mainTableId), messengerWeightColumn, microWeightColumn)
+    val file = CSVHelper.filename("toxygates", format.suffix)
+    s.writeTo(s"${config.csvDirectory}/$file", format, distinct = true)
+    s"${config.csvUrlBase}/$file"
   }
 
   def prepareNetworkDownload(network: Network, format: Format, messengerWeightColumn: String,
@@ -147,6 +158,21 @@ class NetworkServiceImpl extends StatefulServlet[NetworkState] with NetworkServi
     s.writeTo(s"${config.csvDirectory}/$file", format)
     s"${config.csvUrlBase}/$file"
   }
+
+  def startNetworkDownload(mainTableId: String, format: Format,
+                           messengerWeightColumn: String, microWeightColumn: String,
+                           compress: Boolean): scala.Unit = {
+    //The network is built here, since the matrices belong to the session,
+    //but serialized in the background
+    val s = new Serializer(currentView(mainTableId), messengerWeightColumn, microWeightColumn)
+    val suffix = if (compress) s"${format.suffix}.gz" else format.suffix
+    val file = CSVHelper.filename("toxygates", suffix)
+    getState.download = Some(new NetworkExport(s, s"${config.csvDirectory}/$file",
+      s"${config.csvUrlBase}/$file", format, compress))
+  }
+
+  def networkDownloadStatus(): NetworkDownloadStatus =
+    getState.download.map(_.status).orNull
 }
 
 class NetworkLoader(context: Context, platforms: PlatformRegistry, mirnaDir: String) {
@@ -62,6 +62,7 @@ class SampleServiceImpl extends StatefulServlet[SampleState] with SampleService
   private def probeStore: ProbeStore = context.probeStore
 
   lazy val annotationStore = new AnnotationStore(schema, baseConfig)
+  private lazy val unitStore = new UnitStore(schema, sampleStore)
 
   override def localInit(conf: Configuration) {
     super.localInit(conf)
@@ -154,7 +155,7 @@ class SampleServiceImpl extends StatefulServlet[SampleState] with SampleService
   @throws[TimeoutException]
   def units(sampleClass: SampleClass,
             param: String, paramValues: Array[String]): Array[Pair[Unit, Unit]] =
-      new UnitStore(schema, sampleStore).units(sampleClass, param, paramValues,
+      unitStore.units(sampleClass, param, paramValues,
         getState.sampleFilter)
 
   def units(sampleClasses: Array[SampleClass], param: String,
@@ -11,7 +11,7 @@ import t.sparql.{Batch, BatchStore, Dataset, DatasetStore, PlatformStore, Sample
 import t.viewer.server.Conversions.asJavaSample
 import t.viewer.server.matrix.{ControllerParams, ExpressionRow, MatrixController, PageDecorator}
 import t.viewer.server.rpc.NetworkLoader
-import t.viewer.server.{AssociationMasterLookup, Configuration, PlatformRegistry}
+import t.viewer.server.{AssociationMasterLookup, Configuration, PlatformRegistry, UnitStore}
 import t.viewer.shared.mirna.MirnaSource
 import t.viewer.shared.network.Interaction
 import t.viewer.shared._
@@ -122,7 +122,8 @@ class ScalatraJSONServlet(scontext: ServletContext) extends ScalatraServlet with
   lazy val sampleStore = context.sampleStore
   lazy val probeStore =  context.probeStore
 
-  lazy val platformRegistry = new PlatformRegistry(probeStore)
+  lazy val platformRegistry = PlatformRegistry(probeStore)
+  lazy val unitStore = new UnitStore(schema, sampleStore)
   lazy val netLoader = new NetworkLoader(context, platformRegistry, baseConfig.data.mirnaDir)
 
   error {
@@ -415,7 +416,16 @@ class ScalatraJSONServlet(scontext: ServletContext) extends ScalatraServlet with
       val fullSamples = Map.empty ++
         context.sampleStore.withRequiredAttributes(SampleClassFilter(), sampleFilter, sampleIds)().map(
           s => (s.sampleId -> s))
-      matParams.groups.map(g => fillGroup(g.name, g.sampleIds.map(s => fullSamples(s))))
+      val groups = matParams.groups.map(g => (g.name, g.sampleIds.map(s => fullSamples(s))))
+
+      //Look up the control groups of all groups together, one query per batch,
+      //so that fillGroup can be served from the cache
+      for {
+        (sf, gs) <- groups.filter(_._2.nonEmpty).groupBy(g => groupFilter(g._2))
+      } unitStore.controlGroupMembers(gs.flatMap(_._2.map(_(ControlTreatment))),
+        SampleClassFilter(), sf)
+
+      groups.map(g => fillGroup(g._1, g._2))
     }
 
     def loadMatrix(matParams: json.MatrixParams, valueType: ValueType): MatrixController = {
@@ -439,14 +449,11 @@ class ScalatraJSONServlet(scontext: ServletContext) extends ScalatraServlet with
     }
 
     import t.common.shared.sample.{Unit => TUnit}
-    def unitForTreatment(sf: SampleFilter, treatment: String): Option[TUnit] = {
-      val samples = sampleStore.sampleQuery(SampleClassFilter(Map(Treatment -> treatment)), sf)()
-      if (samples.nonEmpty) {
-        Some(new TUnit(samples.head.sampleClass, samples.map(asJavaSample).toArray))
-      } else {
-        None
-      }
-    }
+    private def asTUnit(samples: Seq[Sample]): TUnit =
+      new TUnit(samples.head.sampleClass, samples.map(asJavaSample).toArray)
+
+    private def groupFilter(group: Seq[Sample]): SampleFilter =
+      SampleFilter(tconfig.instanceURI, Some(group.head.apply(CoreParameter.Batch)))
 
     /**
      * By using the sample treatment ID, ensure that the group contains
@@ -458,16 +465,17 @@ class ScalatraJSONServlet(scontext: ServletContext) extends ScalatraServlet with
       if (group.isEmpty) {
         return new Group(name, Array[TUnit](), Array[TUnit]())
       }
-      val batchURI = group.head.apply(CoreParameter.Batch)
-      val sf = SampleFilter(tconfig.instanceURI, Some(batchURI))
+      val sf = groupFilter(group)
 
       val treatedTreatments = group.map(s => s.sampleClass(Treatment)).distinct
       val controlTreatments = group.map(s => s.sampleClass(ControlTreatment)).distinct
 
-      //Note: querying treated/control separately leads to one extra sparql query - can
-      //probably be optimised away
-      val treatedUnits = treatedTreatments.flatMap(t => unitForTreatment(sf, t))
-      val controlUnits = controlTreatments.flatMap(t => unitForTreatment(sf, t))
+      //All samples for these treatments, treated and control, belong to the control groups
+      //of the group's samples, so a single (cached) membership lookup suffices.
+      val byTreatment = unitStore.controlGroupMembers(controlTreatments, SampleClassFilter(), sf).
+        values.flatten.toSeq.groupBy(_(Treatment))
+      val treatedUnits = treatedTreatments.flatMap(byTreatment.get).map(asTUnit)
+      val controlUnits = controlTreatments.flatMap(byTreatment.get).map(asTUnit)
 
       new Group(name, treatedUnits.toArray, controlUnits.toArray)
     }
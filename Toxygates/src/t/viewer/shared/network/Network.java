@@ -31,8 +31,7 @@ import java.util.stream.Collectors;
 @SuppressWarnings("serial")
 public class Network implements Serializable {
   /**
-   * In a network with two node types, the maximum number of nodes of either of the two types.
-   * (Currently this constant is not being used)
+   * Max number of interactions in a network prepared for visualization.
    */
   public static final int MAX_EDGES = 1000;
 
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.viewer.shared.network;
+
+import java.io.Serializable;
+import javax.annotation.Nullable;
+
+/**
+ * Status of a network download that is being prepared in the background.
+ */
+@SuppressWarnings("serial")
+public class NetworkDownloadStatus implements Serializable {
+  //GWT constructor
+  NetworkDownloadStatus() {}
+
+  private int percentage;
+  private boolean finished;
+  private @Nullable String url;
+  private @Nullable String error;
+
+  /**
+   * @param percentage Percentage of the network written so far
+   * @param finished Whether the download is finished (successfully or not)
+   * @param url The downloadable URL, if finished successfully
+   * @param error A description of the error, if the download failed
+   */
+  public NetworkDownloadStatus(int percentage, boolean finished, @Nullable String url,
+      @Nullable String error) {
+    this.percentage = percentage;
+    this.finished = finished;
+    this.url = url;
+    this.error = error;
+  }
+
+  public int percentage() { return percentage; }
+  public boolean finished() { return finished; }
+  public @Nullable String url() { return url; }
+  public @Nullable String error() { return error; }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.viewer.shared.network;
+
+import java.io.Serializable;
+import javax.annotation.Nullable;
+
+/**
+ * A window onto the network of a main table, used to request a bounded subgraph
+ * from the server. Main nodes are ranked by the sort order (nodes with interactions
+ * first), and the window selects a range of them. Only interactions with at least
+ * the minimum score are included, and at most maxEdges of them, highest scores first.
+ */
+@SuppressWarnings("serial")
+public class NetworkWindow implements Serializable {
+  //GWT constructor
+  NetworkWindow() {}
+
+  private int offset;
+  private int count;
+  private double minScore;
+  private int maxEdges;
+  private @Nullable Integer sortColumn;
+  private boolean sortAscending;
+
+  /**
+   * @param offset Offset of the first main node in the ranking
+   * @param count Max number of main nodes
+   * @param minScore Minimum score of interactions to include
+   * @param maxEdges Max number of interactions
+   * @param sortColumn Main table column to rank nodes by, or null to use the main table's
+   *  current sort order. The main table itself is not re-sorted.
+   * @param sortAscending Sort direction, if sortColumn is given
+   */
+  public NetworkWindow(int offset, int count, double minScore, int maxEdges,
+      @Nullable Integer sortColumn, boolean sortAscending) {
+    this.offset = offset;
+    this.count = count;
+    this.minScore = minScore;
+    this.maxEdges = maxEdges;
+    this.sortColumn = sortColumn;
+    this.sortAscending = sortAscending;
+  }
+
+  /**
+   * The first Network.MAX_NODES main nodes in the current sort order, with all their
+   * interactions.
+   */
+  public static NetworkWindow defaultWindow() {
+    return new NetworkWindow(0, Network.MAX_NODES, Double.NEGATIVE_INFINITY,
+        Integer.MAX_VALUE, null, false);
+  }
+
+  /**
+   * As the default window, but with at most Network.MAX_EDGES interactions, for display.
+   */
+  public static NetworkWindow visualizationWindow() {
+    return new NetworkWindow(0, Network.MAX_NODES, Double.NEGATIVE_INFINITY,
+        Network.MAX_EDGES, null, false);
+  }
+
+  public int offset() { return offset; }
+  public int count() { return count; }
+  public double minScore() { return minScore; }
+  public int maxEdges() { return maxEdges; }
+  public @Nullable Integer sortColumn() { return sortColumn; }
+  public boolean sortAscending() { return sortAscending; }
+}
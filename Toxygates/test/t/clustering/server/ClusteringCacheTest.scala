@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.clustering.server
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+
+import t.TTestSuite
+import t.clustering.shared._
+
+@RunWith(classOf[JUnitRunner])
+class ClusteringCacheTest extends TTestSuite {
+
+  val rows = Array("a", "b")
+  val cols = Array("x", "y")
+  val syms = Array("A", "B")
+  val algorithm = new Algorithm()
+
+  def key(data: Array[Double], digits: Int = 2, alg: Algorithm = algorithm) =
+    ClusteringCache.key("jvm", data, rows, cols, syms, alg, digits)
+
+  test("key") {
+    val k = key(Array(1.0, 2.0, 3.0, 4.0))
+    key(Array(1.0, 2.0, 3.0, 4.0)) should equal(k)
+    key(Array(1.001, 2.0, 3.0, 4.0)) should equal(k)
+    key(Array(1.001, 2.0, 3.0, 4.0), -1) should not equal(k)
+    key(Array(1.1, 2.0, 3.0, 4.0)) should not equal(k)
+    key(Array(1.0, 2.0, 3.0, 4.0), 2,
+      new Algorithm(Methods.SINGLE, Distances.EUCLIDIAN, Methods.WARD_D,
+        Distances.COERRELATION)) should not equal(k)
+  }
+
+  test("hits and eviction") {
+    //Room for two 10-character entries
+    val cache = new ClusteringCache(40)
+    var computed = 0
+    def compute(json: String) = { computed += 1; json }
+
+    cache.getOrElseUpdate("a")(compute("aaaaaaaaaa")) should equal("aaaaaaaaaa")
+    cache.getOrElseUpdate("a")(compute("aaaaaaaaaa")) should equal("aaaaaaaaaa")
+    computed should equal(1)
+    cache.hitCount should equal(1)
+    cache.missCount should equal(1)
+
+    cache.getOrElseUpdate("b")(compute("bbbbbbbbbb"))
+    //make "a" the most recently used entry
+    cache.get("a") should equal(Some("aaaaaaaaaa"))
+    cache.getOrElseUpdate("c")(compute("cccccccccc"))
+    cache.size should equal(2)
+    cache.get("b") should equal(None)
+    cache.get("a") should equal(Some("aaaaaaaaaa"))
+    cache.sizeInBytes should equal(40)
+  }
+
+  test("failures are not cached") {
+    val cache = new ClusteringCache(1000)
+    cache.getOrElseUpdate("a")("")
+    cache.size should equal(0)
+  }
+
+  test("caching backend") {
+    val cache = new ClusteringCache(ClusteringCache.defaultMaxBytes)
+    val clust = new CachingClustering(new JVMClustering, "jvm", cache)
+    val data = Array(1.0, 2.0, 4.0, 3.0, 8.0, 1.0)
+    val r1 = clust.clustering(data, Array("a", "b", "c"), cols, Array("A", "B", "C"))
+    val r2 = clust.clustering(data, Array("a", "b", "c"), cols, Array("A", "B", "C"))
+    r2 should equal(r1)
+    cache.hitCount should equal(1)
+  }
+}
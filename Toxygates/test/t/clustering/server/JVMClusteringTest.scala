@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.clustering.server
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+
+import t.TTestSuite
+import t.clustering.shared._
+
+/**
+ * Expected dendrograms below are those of R's hclust (and amap's Dist) for the
+ * same inputs.
+ */
+@RunWith(classOf[JUnitRunner])
+class JVMClusteringTest extends TTestSuite {
+
+  //1, 2, 4, 8, 16 as a column vector
+  val points = Array(1.0, 2, 4, 8, 16)
+  val n = points.length
+  val pointDist = DistanceMatrix(points, n, 1, Distances.EUCLIDIAN)
+
+  def merges(d: Dendrogram) = d.left zip d.right
+
+  test("distances") {
+    val data = Array(1.0, 2, 3,
+                     2, 4, 7,
+                     3, 2, 1)
+    def dist(m: Distances) = DistanceMatrix(data, 3, 3, m)
+
+    dist(Distances.EUCLIDIAN) should equal(Array(Math.sqrt(21), Math.sqrt(8), Math.sqrt(41)))
+    dist(Distances.MANHATTAN) should equal(Array(7.0, 4, 9))
+    dist(Distances.MAXIMUM) should equal(Array(4.0, 2, 6))
+    dist(Distances.BINARY) should equal(Array(0.0, 0, 0))
+
+    val corr = dist(Distances.COERRELATION)
+    corr(1) should equal(2.0 +- 1e-10)
+    dist(Distances.ABSORRELATION)(1) should equal(0.0 +- 1e-10)
+
+    dist(Distances.SPEARMAN) should equal(Array(0.0, 8, 8))
+    dist(Distances.KENDALL) should equal(Array(0.0, 3, 3))
+
+    pointDist should equal(Array(1.0, 3, 7, 15, 2, 6, 14, 4, 12, 8))
+  }
+
+  test("single") {
+    val d = Linkage(pointDist, n, Methods.SINGLE)
+    merges(d) should equal(Array((-1, -2), (-3, 1), (-4, 2), (-5, 3)))
+    d.height should equal(Array(1.0, 2, 4, 8))
+    d.order should equal(Array(4, 3, 2, 0, 1))
+    d.counts should equal(Array(2, 3, 4, 5))
+    d.parents should equal(Array(2, 3, 4, 0))
+  }
+
+  test("complete and average") {
+    val c = Linkage(pointDist, n, Methods.COMPLETE)
+    merges(c) should equal(Array((-1, -2), (-3, 1), (-4, 2), (-5, 3)))
+    c.height should equal(Array(1.0, 3, 7, 15))
+
+    val a = Linkage(pointDist, n, Methods.AVERAGE)
+    merges(a) should equal(Array((-1, -2), (-3, 1), (-4, 2), (-5, 3)))
+    a.height(2) should equal(17.0 / 3 +- 1e-10)
+    a.height(3) should equal(12.25 +- 1e-10)
+  }
+
+  test("ward") {
+    val w = Linkage(pointDist, n, Methods.WARD_D)
+    merges(w) should equal(Array((-1, -2), (-3, 1), (-4, 2), (-5, 3)))
+    w.height(1) should equal(3.0 +- 1e-10)
+    w.height(2) should equal(7.5 +- 1e-10)
+    w.height(3) should equal(17.3 +- 1e-10)
+
+    val w2 = Linkage(pointDist, n, Methods.WARD_D2)
+    w2.height(1) should equal(2.886751 +- 1e-6)
+    w2.height(3) should equal(15.495161 +- 1e-6)
+  }
+
+  test("merge order") {
+    val shuffled = Array(16.0, 1, 8, 2, 4)
+    val d = Linkage(DistanceMatrix(shuffled, n, 1, Distances.EUCLIDIAN), n, Methods.SINGLE)
+    merges(d) should equal(Array((-2, -4), (-5, 1), (-3, 2), (-1, 3)))
+    d.order should equal(Array(0, 2, 4, 1, 3))
+  }
+
+  test("InCHlib JSON") {
+    val rows = Array("a", "b", "c", "d", "e")
+    val cols = Array("Group 1", "Group 2")
+    val syms = rows.map(_.toUpperCase)
+    val data = points.flatMap(x => Array(x, 0.0))
+    val algorithm = new Algorithm(Methods.SINGLE, Distances.EUCLIDIAN,
+      Methods.SINGLE, Distances.EUCLIDIAN)
+
+    val json = ujson.read(new JVMClustering().clustering(data, rows, cols, syms, algorithm))
+
+    val nodes = json("data")("nodes").obj
+    nodes.keys.toSeq should equal(Seq("nodes@1", "a", "b", "nodes@2", "c",
+      "nodes@3", "d", "nodes@4", "e"))
+    nodes("nodes@1")("left_child").str should equal("a")
+    nodes("nodes@1")("right_child").str should equal("b")
+    nodes("nodes@1")("parent").str should equal("nodes@2")
+    nodes("nodes@4").obj.contains("parent") should equal(false)
+    nodes("nodes@4")("count").num should equal(5)
+    nodes("nodes@3")("distance").num should equal(4)
+    nodes("e")("parent").str should equal("nodes@4")
+    nodes("e")("appendix").str should equal("E")
+    nodes("e")("objects").arr.map(_.str) should equal(Seq("e"))
+    nodes("e")("features").arr.map(_.num) should equal(Seq(16.0, 0.0))
+
+    json("data")("feature_names").arr.map(_.str) should equal(Seq("Group.1", "Group.2"))
+    val colNodes = json("column_dendrogram")("nodes").obj
+    colNodes.keys.toSeq should equal(Seq("Group.1", "Group.2", "nodes@1"))
+    colNodes("nodes@1")("distance").num should equal(Math.sqrt(341) +- 1e-10)
+  }
+
+  test("feature rounding") {
+    val data = Array(0.123456, 1.0, 2.0, 3.987654)
+    val json = ujson.read(new JVMClustering().clustering(data, Array("a", "b"),
+      Array("x", "y"), Array("", ""), new Algorithm(), 2))
+    json("data")("nodes")("a")("features").arr.map(_.num) should equal(Seq(0.12, 1.0))
+  }
+
+  test("too few rows") {
+    new JVMClustering().clustering(Array(1.0, 2.0), Array("a"),
+      Array("x", "y"), Array(""), new Algorithm()) should equal("")
+  }
+}
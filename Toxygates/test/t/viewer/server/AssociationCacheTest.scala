@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.viewer.server
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import t.TTestSuite
+import t.common.shared.AType
+import t.db.{BioObject, DefaultBio}
+import t.platform.Probe
+import t.sparql._
+
+import scala.collection.{Set => CSet}
+
+@RunWith(classOf[JUnitRunner])
+class AssociationCacheTest extends TTestSuite {
+
+  var generation = 0
+  var requested = List[Set[String]]()
+
+  def lookup(probes: Iterable[Probe]): BBMap = {
+    requested ::= probes.map(_.identifier).toSet
+    //p3 has no associations
+    Map() ++ probes.filter(_.identifier != "p3").map(p =>
+      (p -> CSet[BioObject](DefaultBio(p.identifier + "-a", p.identifier))))
+  }
+
+  def ids(m: BBMap) = m.map(x => (x._1.identifier, x._2.map(_.identifier)))
+
+  test("only missing probes are looked up") {
+    requested = Nil
+    val cache = new AssociationCache(new DataGeneration(() => generation, 0))
+    val r1 = cache.get(AType.GOBP, (), Seq("p1", "p3").map(Probe(_)))(lookup)
+    ids(r1) should equal(Map("p1" -> Set("p1-a")))
+
+    val r2 = cache.get(AType.GOBP, (), Seq("p1", "p2", "p3").map(Probe(_)))(lookup)
+    ids(r2) should equal(Map("p1" -> Set("p1-a"), "p2" -> Set("p2-a")))
+    requested should equal(List(Set("p2"), Set("p1", "p3")))
+
+    //Different types and contexts are cached separately
+    cache.get(AType.GOCC, (), Seq(Probe("p1")))(lookup)
+    cache.get(AType.GOBP, "x", Seq(Probe("p1")))(lookup)
+    requested.size should equal(4)
+  }
+
+  test("generation change clears the cache") {
+    requested = Nil
+    val cache = new AssociationCache(new DataGeneration(() => generation, 0))
+    cache.get(AType.GOBP, (), Seq(Probe("p1")))(lookup)
+    cache.get(AType.GOBP, (), Seq(Probe("p1")))(lookup)
+    requested.size should equal(1)
+    generation += 1
+    cache.get(AType.GOBP, (), Seq(Probe("p1")))(lookup)
+    requested.size should equal(2)
+  }
+
+  test("size bound") {
+    requested = Nil
+    val cache = new AssociationCache(new DataGeneration(() => generation, 0), 2)
+    cache.get(AType.GOBP, (), Seq("p1", "p2").map(Probe(_)))(lookup)
+    cache.get(AType.GOBP, (), Seq(Probe("p1")))(lookup)
+    cache.get(AType.GOBP, (), Seq(Probe("p4")))(lookup)
+    cache.size should equal(2)
+    requested.size should equal(2)
+
+    //p2 was the least recently used entry
+    cache.get(AType.GOBP, (), Seq(Probe("p1")))(lookup)
+    requested.size should equal(2)
+    cache.get(AType.GOBP, (), Seq(Probe("p2")))(lookup)
+    requested.size should equal(3)
+  }
+}
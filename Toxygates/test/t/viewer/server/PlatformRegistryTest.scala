@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.viewer.server
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import t.TTestSuite
+import t.platform.Probe
+
+@RunWith(classOf[JUnitRunner])
+class PlatformRegistryTest extends TTestSuite {
+
+  class CountingPlatforms(var platforms: Map[String, Iterable[Probe]])
+    extends MemoryPlatforms(platforms) {
+    var loads = 0
+    override def probesForPlatform(platform: String) = {
+      loads += 1
+      platforms.getOrElse(platform, Seq())
+    }
+    override def allPlatforms = platforms
+  }
+
+  def probes(pf: String, ids: String*) = ids.map(Probe(_, platform = pf))
+
+  val loader = new CountingPlatforms(Map(
+    "a" -> probes("a", "p1", "p2", "shared"),
+    "b" -> probes("b", "p3", "shared")))
+
+  test("lookup") {
+    val reg = new PlatformRegistry(loader)
+    reg.getProbe("a", "p1").map(_.identifier) should equal(Some("p1"))
+    reg.getProbe("a", "p3") should equal(None)
+    reg.getProbe("b", "shared").map(_.platform) should equal(Some("b"))
+    reg.getProbes("b", Seq("p3", "p1", "shared")).map(_.map(_.identifier)) should equal(
+      Vector(Some("p3"), None, Some("shared")))
+    reg.resolve("a", Seq("p2", "p3", "p1")).map(_.identifier) should equal(Seq("p2", "p1"))
+
+    reg.platformForProbe("p3") should equal(Some("b"))
+    reg.platformForProbe("x") should equal(None)
+    reg.resolve(Seq("p3", "x", "p1")).map(_.identifier) should equal(Seq("p3", "p1"))
+    reg.filterProbesAllPlatforms(Seq("x", "p2", "shared")) should equal(Seq("p2", "shared"))
+  }
+
+  test("filter") {
+    val reg = new PlatformRegistry(loader)
+    reg.filterProbes(Seq("p1", "p3", "p1", "x"), "a", None).toSeq should equal(Seq("p1"))
+    reg.filterProbes(Seq("p1", "p3", "shared"), Seq("a", "b")).toSet should equal(
+      Set("p1", "p3", "shared"))
+    reg.filterProbes(Seq(), "b", None).toSet should equal(Set("p3", "shared"))
+  }
+
+  test("platforms are loaded once and reloaded on request") {
+    loader.loads = 0
+    val reg = new PlatformRegistry(loader)
+    reg.getProbe("a", "p1")
+    reg.resolve("a", Seq("p1", "p2"))
+    reg.probeIdentifiers("a")
+    loader.loads should equal(1)
+
+    loader.platforms += "a" -> probes("a", "p4")
+    reg.getProbe("a", "p4") should equal(None)
+    reg.reload()
+    reg.getProbe("a", "p4").map(_.identifier) should equal(Some("p4"))
+    reg.getProbe("a", "p1") should equal(None)
+  }
+
+  test("unknown platforms") {
+    val reg = new PlatformRegistry(loader)
+    reg.allProbes
+    reg.getProbe("x", "p1") should equal(None)
+    reg.getProbes("x", Seq("p1", "p2")) should equal(Vector(None, None))
+    reg.resolve("x", Seq("p1")) should be(empty)
+    reg.probeIdentifiers("x") should be(empty)
+    reg.platformProbes("x") should be(empty)
+    reg.filterProbes(Seq("p1", "p3"), Seq("x", "b")).toSeq should equal(Seq("p3"))
+  }
+
+  test("reload on generation change") {
+    var gen = 0
+    val loader = new CountingPlatforms(Map("a" -> probes("a", "p1")))
+    val reg = new PlatformRegistry(loader, Some(new DataGeneration(() => gen, 0)))
+    reg.getProbe("a", "p1").map(_.identifier) should equal(Some("p1"))
+
+    loader.platforms += "a" -> probes("a", "p2")
+    reg.getProbe("a", "p2") should equal(None)
+    gen += 1
+    reg.getProbe("a", "p2").map(_.identifier) should equal(Some("p2"))
+  }
+}
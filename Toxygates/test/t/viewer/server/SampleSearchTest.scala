@@ -24,6 +24,7 @@ import org.junit.runner.RunWith
 import t.model.sample.OTGAttribute._
 import t.TTestSuite
 import t.common.server.sample.search.IndividualSearch
+import t.common.server.sample.search.SampleSearchIndex
 import t.common.server.sample.search.UnitSearch
 import t.common.shared.sample.search.AndMatch
 import t.common.shared.sample.search.AtomicMatch
@@ -134,4 +135,100 @@ class SampleSearchTest extends TTestSuite {
     val result = sampleSearch(atomic(LiverWeight, MatchType.AboveLimit, 4))
     result.size should equal(2 * samples.size / 3 * 4 / 5)
   }
+
+  val conditions = for {
+    attr <- Seq(LiverWeight, KidneyWeight)
+    mt <- Seq(MatchType.High, MatchType.Low, MatchType.NormalRange)
+  } yield atomic(attr, mt)
+
+  test("and/or equivalence") {
+    for (c1 <- conditions; c2 <- conditions) {
+      val r1 = sampleSearch(c1).toSet
+      val r2 = sampleSearch(c2).toSet
+      sampleSearch(and(c1, c2)).toSet should equal(r1 intersect r2)
+      sampleSearch(or(c1, c2)).toSet should equal(r1 union r2)
+    }
+  }
+
+  test("normal range excludes high and low") {
+    for (attr <- Seq(LiverWeight, KidneyWeight)) {
+      val normal = sampleSearch(atomic(attr, MatchType.NormalRange)).toSet
+      (normal intersect sampleSearch(atomic(attr, MatchType.High)).toSet) should be(empty)
+      (normal intersect sampleSearch(atomic(attr, MatchType.Low)).toSet) should be(empty)
+    }
+  }
+
+  test("limits") {
+    val all = sampleSearch(atomic(LiverWeight, MatchType.AboveLimit, Double.NegativeInfinity)).toSet
+    for (limit <- Seq(0.0, 3.0, 4.0, 4.5, 10.0)) {
+      val above = sampleSearch(atomic(LiverWeight, MatchType.AboveLimit, limit)).toSet
+      val below = sampleSearch(atomic(LiverWeight, MatchType.BelowLimit, limit)).toSet
+      (above union below) should equal(all)
+      for (s <- above) {
+        s.get(LiverWeight).toDouble should be >= limit
+      }
+      for (s <- below) {
+        s.get(LiverWeight).toDouble should be <= limit
+      }
+    }
+  }
+
+  test("index against direct evaluation") {
+    val random = new scala.util.Random(1)
+    def maybe(x: Double) = if (random.nextInt(10) == 0) None else Some(x)
+    val n = 1000
+    val values = Vector.fill(n)(maybe(random.nextInt(50).toDouble))
+    val uppers = Vector.fill(n)(maybe(30.0 + random.nextInt(10)))
+    val lowers = Vector.fill(n)(maybe(10.0 + random.nextInt(10)))
+
+    val index = new SampleSearchIndex[Int](0 until n,
+      (i, a) => values(i), (i, a) => uppers(i), (i, a) => lowers(i))
+
+    def check(mt: MatchType, param: Double, expected: Int => Boolean) = {
+      val cond = new AtomicMatch(LiverWeight, mt, param)
+      index.results(cond) should equal((0 until n).filter(expected))
+    }
+
+    def high(i: Int) = (for (v <- values(i); u <- uppers(i)) yield v > u).getOrElse(false)
+    def low(i: Int) = (for (v <- values(i); l <- lowers(i)) yield v < l).getOrElse(false)
+    def normal(i: Int) = values(i).isDefined && uppers(i).isDefined && lowers(i).isDefined &&
+      !high(i) && !low(i)
+
+    check(MatchType.High, 0, high)
+    check(MatchType.Low, 0, low)
+    check(MatchType.NormalRange, 0, normal)
+    for (t <- Seq(-1.0, 0.0, 17.0, 17.5, 49.0, 100.0)) {
+      check(MatchType.AboveLimit, t, i => values(i).exists(_ >= t))
+      check(MatchType.BelowLimit, t, i => values(i).exists(_ <= t))
+    }
+
+    val hl = new OrMatch(Seq[MatchCondition](new AtomicMatch(LiverWeight, MatchType.High, null),
+      new AtomicMatch(LiverWeight, MatchType.Low, null)).asJava)
+    val cond = new AndMatch(Seq[MatchCondition](hl,
+      new AtomicMatch(LiverWeight, MatchType.AboveLimit, 20.0)).asJava)
+    index.results(cond) should equal((0 until n).filter(i =>
+      (high(i) || low(i)) && values(i).exists(_ >= 20)))
+  }
+
+  test("shared attribute indexes") {
+    var lookups = 0
+    def index(key: String) = new SampleSearchIndex[Int](0 until 10,
+      (i, a) => { lookups += 1; Some(i.toDouble) }, (i, a) => Some(5.0), (i, a) => Some(2.0),
+      Some(a => (key, a)))
+
+    val cond = atomic(LiverWeight, MatchType.High)
+    index("a").results(cond) should equal(6 until 10)
+    lookups should equal(10)
+    index("a").results(cond) should equal(6 until 10)
+    lookups should equal(10)
+    index("b").results(cond) should equal(6 until 10)
+    lookups should equal(20)
+  }
+
+  test("no duplicate results") {
+    val r = IndividualSearch(samples ++ samples, atomicCondition,
+      new UnitsHelper(schema), attributes).results
+    r.size should equal(r.toSeq.distinct.size)
+    r.size should equal(sampleSearch(atomicCondition).size)
+  }
 }
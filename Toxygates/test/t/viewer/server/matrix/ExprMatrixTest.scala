@@ -114,6 +114,35 @@ class ExprMatrixTest extends TTestSuite {
 
   }
 
+  test("two-group tests match direct computation") {
+    import org.apache.commons.math3.stat.inference.{MannWhitneyUTest, TTest}
+    val em = testMatrix
+    val g1 = Seq("a", "b", "c")
+    val g2 = Seq("d", "e", "f")
+    def values(r: Int, cols: Seq[String]) = cols.map(c => em(r, em.columnMap(c)).value).toArray
+
+    val t = em.appendTTest(em, g1, g2, "T")
+    val u = em.appendUTest(em, g1, g2, "U")
+    val d = em.appendDiffTest(em, g1, g2, "D")
+    for (r <- 0 until em.rows) {
+      t(r, 6).value should equal(new TTest().tTest(values(r, g1), values(r, g2)))
+      u(r, 6).value should equal(new MannWhitneyUTest().mannWhitneyUTest(values(r, g1), values(r, g2)))
+      d(r, 6).value should equal(values(r, g1).sum / 3 - values(r, g2).sum / 3)
+    }
+    t.columnKeys.last should equal("T")
+    t.rowKeys should equal(em.rowKeys)
+    t.annotations should equal(em.annotations)
+
+    //Too few present values
+    val absent = em.copyWith(em.toRowVectors.map(r =>
+      r.take(1) ++ r.drop(1).take(2).map(v => ExprValue(v.value, 'A')) ++ r.drop(3)))
+    val t2 = absent.appendTTest(absent, g1, g2, "T")
+    for (r <- 0 until em.rows) {
+      t2(r, 6).present should equal(false)
+      assert(t2(r, 6).value.isNaN)
+    }
+  }
+
   test("sorting") {
     val em = testMatrix
     val em2 = em.sortRows(
@@ -26,6 +26,8 @@ import t.TTestSuite
 import t.common.shared.sample._
 import t.db.testing._
 import t.db.testing.DBTestData._
+import t.db.BasicExprValue
+import t.viewer.shared.Synthetic
 import org.scalactic.source.Position.apply
 
 @RunWith(classOf[JUnitRunner])
@@ -45,7 +47,7 @@ class ManagedMatrixTest extends TTestSuite {
   context.populate(false)
 
   test("build") {
-    val m = foldBuilder.build(groups, false)
+    val m = foldBuilder.build(groups)
     val cur = m.current
 
     val usedSet = context.sparseTestData.probes.toSet
@@ -68,7 +70,7 @@ class ManagedMatrixTest extends TTestSuite {
   }
 
   test("sort and select") {
-    val m = foldBuilder.build(groups, false)
+    val m = foldBuilder.build(groups)
     val ps = context.sparseTestData.probes.take(10)
 
     val preSort = m.current
@@ -92,4 +94,100 @@ class ManagedMatrixTest extends TTestSuite {
       preSort.row(p) should equal(m.rawGrouped.row(p))
     }
   }
+
+  test("two-group synthetics are independent of sort and selection") {
+    val m = foldBuilder.build(groups)
+    val ttest = new Synthetic.TTest(groups(0), groups(1))
+    m.addSynthetic(ttest)
+    val col = m.current.columns - 1
+
+    def byProbe = Map() ++ m.current.rowKeys.zipWithIndex.map(x =>
+      x._1 -> (java.lang.Double.valueOf(m.current(x._2, col).value), m.current(x._2, col).present))
+    val initial = byProbe
+
+    m.sort(col, true)
+    byProbe should equal(initial)
+
+    m.selectProbes(context.sparseTestData.probes.take(10))
+    byProbe should equal(initial.filterKeys(m.current.rowKeys.toSet))
+
+    m.removeSynthetics()
+    m.addSynthetic(ttest)
+    byProbe should equal(initial.filterKeys(m.current.rowKeys.toSet))
+
+    val g1 = groups(0).getTreatedSamples.map(_.id).toSeq
+    val g2 = groups(1).getTreatedSamples.map(_.id).toSeq
+    val direct = m.rawUngrouped.appendTTest(m.rawUngrouped, g1, g2, "T")
+    for (p <- m.current.rowKeys) {
+      val v = direct(direct.rowMap(p), direct.columns - 1)
+      initial(p) should equal((java.lang.Double.valueOf(v.value), v.present))
+    }
+  }
+
+  test("TwoGroupResults") {
+    val r = new TwoGroupResults
+    r.missing(Seq("a", "b", "a")) should equal(Array("a", "b"))
+    r.put(Array("a", "b"), Array(BasicExprValue(1, 'P'), BasicExprValue(Double.NaN, 'A')))
+    r.missing(Seq("a", "c", "b")) should equal(Array("c"))
+    r.numProbes should equal(2)
+
+    val col = r.column(Seq("b", "c", "a"))
+    col(0).present should equal(false)
+    col(1).present should equal(false)
+    col(2) should equal(BasicExprValue(1, 'P'))
+  }
+
+  test("group statistics") {
+    import org.apache.commons.math3.stat.StatUtils
+    val m = foldBuilder.build(groups)
+    val stats = m.params.groupStatistics
+    val raw = m.rawUngrouped
+    stats.columns.size should equal(m.info.numDataColumns)
+
+    for {
+      c <- 0 until m.info.numDataColumns
+      col = stats.columns(c)
+      r <- 0 until raw.rows
+    } {
+      col.baseColumns.toSeq should equal(m.baseColumns(c))
+      val vs = col.baseColumns.map(raw(r, _)).filter(_.present).map(_.value)
+      col.present(r) should equal(vs.length)
+      if (vs.length > 0) {
+        col.mean(r) should equal(StatUtils.mean(vs))
+        col.variance(r) should equal(StatUtils.variance(vs))
+        col.min(r) should equal(vs.min)
+        col.max(r) should equal(vs.max)
+      }
+    }
+
+    //Copies share the statistics
+    val copy = m.selectProbesAsCopy(m.current.rowKeys.take(2))
+    copy.params.groupStatistics should be theSameInstanceAs (stats)
+
+    //T-tests from statistics are identical to t-tests from values
+    val rows = (0 until raw.rows).toArray
+    val c1 = stats.columns(0)
+    val c2 = stats.columns(1)
+    val fromStats = TwoGroupTests.tTest(c1, c2, rows)
+    val fromValues = TwoGroupTests.compute(raw, rows,
+      c1.baseColumns.map(raw.columnKeys(_)), c2.baseColumns.map(raw.columnKeys(_)),
+      TwoGroupTests.TTest)
+    for (r <- rows) {
+      java.lang.Double.valueOf(fromStats(r).value) should equal(
+        java.lang.Double.valueOf(fromValues(r).value))
+      fromStats(r).present should equal(fromValues(r).present)
+    }
+  }
+
+  test("sort keeps absent values last") {
+    val m = foldBuilder.build(groups)
+    for (asc <- Seq(true, false)) {
+      m.sort(0, asc)
+      val vs = (0 until m.current.rows).map(m.current(_, 0))
+      val (high, low) = vs.span(v => v.present && !v.value.isNaN)
+      assert(low.forall(v => !v.present || v.value.isNaN))
+      val values = high.map(_.value)
+      values should equal(if (asc) values.sorted else values.sorted.reverse)
+    }
+  }
 }
@@ -86,7 +86,7 @@ class MatrixMapperTest extends TTestSuite {
     }).toSeq
 
     context.populate(true)
-    val m = foldBuilder.build(groups, false)
+    val m = foldBuilder.build(groups)
 
     val conv = mm.convert(m)
     val cur = conv.current
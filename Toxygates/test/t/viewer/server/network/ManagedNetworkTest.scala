@@ -35,6 +35,7 @@ import t.viewer.server.matrix.ControllerParams
 import t.viewer.server.matrix.ExtFoldBuilder
 import t.viewer.server.matrix.MatrixController
 import t.viewer.shared.network.Network
+import t.viewer.shared.network.NetworkWindow
 import t.viewer.shared.ColumnFilter
 import t.viewer.server.matrix.ManagedMatrix
 import t.platform.mirna.TargetTable
@@ -62,8 +63,8 @@ class ManagedNetworkTest extends TTestSuite {
   val mrnaGroups = t.common.testing.TestData.groups take 5
 
   test("basic") {
-    val main = mrnaBuilder.build(mrnaGroups, false)
-    val side = mirnaBuilder.build(Seq(mirnaGroup), false)
+    val main = mrnaBuilder.build(mrnaGroups)
+    val side = mirnaBuilder.build(Seq(mirnaGroup))
     val builder = new NetworkBuilder(targets, platforms, main, side)
     val network = builder.build
 
@@ -77,6 +78,33 @@ class ManagedNetworkTest extends TTestSuite {
     network.nodes.asScala.map(_.id).toSet should equal(ids.toSet)
   }
 
+  test("window") {
+    val main = mrnaBuilder.build(mrnaGroups)
+    val side = mirnaBuilder.build(Seq(mirnaGroup))
+    val builder = new NetworkBuilder(targets, platforms, main, side)
+    val full = builder.build(new NetworkWindow(0, Int.MaxValue, Double.NegativeInfinity,
+      Int.MaxValue, null, false))
+
+    val window = new NetworkWindow(10, 20, 0.5, 30, null, false)
+    val network = builder.build(window)
+    val mainNodes = network.nodes.asScala.filter(_.`type` == Network.mrnaType)
+    mainNodes.size should be <= 20
+    network.interactions.size should be <= 30
+    assert(network.interactions.asScala.forall(_.weight >= 0.5))
+
+    //Every node and interaction in the window is also in the full network
+    val fullIds = full.nodes.asScala.map(_.id).toSet
+    assert(network.nodes.asScala.map(_.id).toSet.subsetOf(fullIds))
+    val fullInts = full.interactions.asScala.map(i => (i.from.id, i.to.id, i.weight)).toSet
+    assert(network.interactions.asScala.map(i => (i.from.id, i.to.id, i.weight)).
+      toSet.subsetOf(fullInts))
+
+    //Side nodes are only included when they participate in some interaction
+    val connected = network.interactions.asScala.flatMap(i => Seq(i.from.id, i.to.id)).toSet
+    assert(network.nodes.asScala.filter(_.`type` == Network.mirnaType).forall(n =>
+      connected.contains(n.id)))
+  }
+
   def checkNetworkInvariants(main: ManagedNetwork, side: ManagedMatrix,
       reverseLookup: Boolean) {
     println(s"Checking network with ${main.current.rows} rows, side ${side.current.rows}, targets ${main.targets.size}")
@@ -109,12 +137,12 @@ class ManagedNetworkTest extends TTestSuite {
   }
 
   test("forward network") {
-    val side = mirnaBuilder.build(Seq(mirnaGroup), false)
+    val side = mirnaBuilder.build(Seq(mirnaGroup))
     networkTest(side, mrnaGroups, Seq(mirnaGroup), t.db.testing.DBTestData.mrnaPlatformId, true)
   }
 
   test("reverse network") {
-    val side = mrnaBuilder.build(mrnaGroups, false)
+    val side = mrnaBuilder.build(mrnaGroups)
     networkTest(side, Seq(mirnaGroup), mrnaGroups, mirnaPlatformId, false)
   }
 
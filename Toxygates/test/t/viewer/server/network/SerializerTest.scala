@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2012-2019 Toxygates authors, National Institutes of Biomedical Innovation, Health and Nutrition (NIBIOHN), Japan.
+ *
+ * This file is part of Toxygates.
+ *
+ * Toxygates is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Toxygates is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Toxygates. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package t.viewer.server.network
+
+import java.io.{File, FileInputStream, StringWriter}
+import java.util.zip.GZIPInputStream
+
+import scala.collection.JavaConverters._
+import scala.io.Source
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import t.TTestSuite
+import t.viewer.shared.network._
+
+@RunWith(classOf[JUnitRunner])
+class SerializerTest extends TTestSuite {
+
+  def node(id: String, typ: String, symbol: String, weight: Double) =
+    new Node(id, Seq(symbol).asJava, typ,
+      new java.util.HashMap[String, java.lang.Double](Map("w" -> java.lang.Double.valueOf(weight)).asJava))
+
+  val mrna = node("NM_1", Network.mrnaType, "Gene1", 1.0)
+  val mirna = node("hsa-miR-1", Network.mirnaType, "", 2.0)
+  val ints = Seq(new Interaction(mirna, mrna, "a", 1.0),
+    new Interaction(mirna, mrna, "b", 2.0))
+  val network = new Network("test", Seq(mrna, mirna).asJava, ints.asJava, false, 1)
+  val serializer = new Serializer(network, "w", "w")
+
+  def lines(format: Format, distinct: Boolean) = {
+    val w = new StringWriter
+    serializer.write(w, format, distinct)
+    w.toString.split("\n").toSeq
+  }
+
+  test("SIF") {
+    lines(Format.SIF, false) should equal(Seq(
+      "hsa-miR-1\tpp\tGene1 [NM_1]", "hsa-miR-1\tpp\tGene1 [NM_1]"))
+    lines(Format.SIF, true) should equal(Seq("hsa-miR-1\tpp\tGene1 [NM_1]"))
+  }
+
+  test("custom") {
+    lines(Format.Custom, false) should equal(Seq("[nodes]",
+      " NM_1 mRNA 1.0 ", " hsa-miR-1 miRNA 2.0 ", "[edges]",
+      " hsa-miR-1 NM_1 a 1.0 ", " hsa-miR-1 NM_1 b 2.0 "))
+  }
+
+  test("DOT") {
+    val dot = lines(Format.DOT, true)
+    dot.head should equal("digraph \"test\" {")
+    dot.last should equal("}")
+    dot.count(_.contains("->")) should equal(1)
+  }
+
+  test("gzip file and progress") {
+    val file = File.createTempFile("network", ".sif.gz")
+    try {
+      var progress = (0, 0)
+      serializer.writeTo(file.getPath, Format.SIF, true, false, (w, t) => progress = (w, t))
+      progress should equal((4, 4))
+      new File(file.getPath + ".part").exists should equal(false)
+
+      val src = Source.fromInputStream(new GZIPInputStream(new FileInputStream(file)))
+      try {
+        src.getLines.size should equal(2)
+      } finally {
+        src.close()
+      }
+    } finally {
+      file.delete()
+    }
+  }
+}